@@ -0,0 +1,319 @@
+package com.github.harbby;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous access log, one json object per line: time, remote address, method, path, action, transfer
+ * mode, status, bytes sent and duration.
+ * <p>
+ * A request thread only fills a preallocated slot of a ring, it never formats, locks or does I/O. When the
+ * ring is full the entry is dropped and counted instead of blocking the request, the writer reports the number
+ * of dropped entries in the log. One background thread formats what is published in batches and writes each
+ * batch with a single write, the file is rotated to name.1 ... name.maxFiles once it reaches maxFileBytes.
+ * <p>
+ * What an exchange did is collected on its handler thread between {@link #begin()} and {@link #finish(HttpExchange)},
+ * which also records it in the {@link Metrics}.
+ */
+public class AccessLog
+{
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final int MAX_BATCH_BYTES = 256 * 1024;
+
+    private final File file;
+    private final PrintStream console;
+    private final long maxFileBytes;
+    private final int maxFiles;
+    private final Slot[] slots;
+    private final int mask;
+    private final AtomicLong claimed = new AtomicLong();
+    private volatile long consumed;
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder written = new LongAdder();
+    private final ThreadLocal<Pending> pending = ThreadLocal.withInitial(Pending::new);
+    private final Metrics metrics;
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    private FileChannel channel;
+    private long fileBytes;
+    private long reportedDropped;
+
+    private static class Slot
+    {
+        private volatile long sequence;
+        private long time;
+        private InetAddress remote;
+        private String method;
+        private String path;
+        private String action;
+        private String mode;
+        private int status;
+        private long bytes;
+        private long durationNanos;
+    }
+
+    private static class Pending
+    {
+        private long startNanos;
+        private long startMillis;
+        private String action;
+        private String mode;
+        private long bytes;
+    }
+
+    /**
+     * file null writes to the console
+     */
+    public AccessLog(File file, int capacity, long maxFileBytes, int maxFiles, Metrics metrics)
+            throws IOException
+    {
+        this.file = file;
+        this.metrics = metrics;
+        this.console = file == null ? System.out : null;
+        this.maxFileBytes = maxFileBytes;
+        this.maxFiles = maxFiles;
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        this.slots = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot();
+        }
+        this.mask = size - 1;
+        if (file != null) {
+            openFile();
+        }
+        this.writer = new Thread(this::writeLoop, "access-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "access-log-shutdown"));
+    }
+
+    public void begin()
+    {
+        Pending request = pending.get();
+        request.startNanos = System.nanoTime();
+        request.startMillis = System.currentTimeMillis();
+        request.action = null;
+        request.mode = null;
+        request.bytes = -1;
+        metrics.exchangeStarted();
+    }
+
+    /**
+     * what the exchange does and how the body is transferred, mode may be null
+     */
+    public void action(String action, String mode)
+    {
+        Pending request = pending.get();
+        request.action = action;
+        request.mode = mode;
+    }
+
+    /**
+     * body bytes of a chunked response, a fixed length response is logged with its Content-Length
+     */
+    public void bytes(long bytes)
+    {
+        pending.get().bytes = bytes;
+    }
+
+    public void finish(HttpExchange exchange)
+    {
+        Pending request = pending.get();
+        long bytes = request.bytes;
+        if (bytes < 0) {
+            String contentLength = exchange.getResponseHeaders().getFirst("Content-Length");
+            bytes = contentLength == null ? -1 : Long.parseLong(contentLength);
+        }
+        long durationNanos = System.nanoTime() - request.startNanos;
+        metrics.exchangeFinished(request.action, bytes, requestLength(exchange), durationNanos);
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (sequence - consumed >= slots.length) {
+                dropped.increment();
+                return;
+            }
+        }
+        while (!claimed.compareAndSet(sequence, sequence + 1));
+        Slot slot = slots[(int) sequence & mask];
+        slot.time = request.startMillis;
+        InetSocketAddress remote = exchange.getRemoteAddress();
+        slot.remote = remote == null ? null : remote.getAddress();
+        slot.method = exchange.getRequestMethod();
+        slot.path = exchange.getRequestURI().getRawPath();
+        slot.action = request.action;
+        slot.mode = request.mode;
+        slot.status = exchange.getResponseCode();
+        slot.bytes = bytes;
+        slot.durationNanos = durationNanos;
+        // publishes the fields above to the writer
+        slot.sequence = sequence + 1;
+    }
+
+    private static long requestLength(HttpExchange exchange)
+    {
+        String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+        try {
+            return contentLength == null ? -1 : Long.parseLong(contentLength);
+        }
+        catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public long getDroppedCount()
+    {
+        return dropped.sum();
+    }
+
+    public long getWrittenCount()
+    {
+        return written.sum();
+    }
+
+    private void writeLoop()
+    {
+        StringBuilder batch = new StringBuilder(MAX_BATCH_BYTES);
+        while (running) {
+            if (!drain(batch)) {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+        drain(batch);
+    }
+
+    /**
+     * format and write what is published, returns false when there was nothing
+     */
+    private boolean drain(StringBuilder batch)
+    {
+        long next = consumed;
+        batch.setLength(0);
+        long droppedNow = dropped.sum();
+        if (droppedNow != reportedDropped) {
+            batch.append("{\"time\":\"").append(Instant.now()).append("\",\"dropped\":").append(droppedNow - reportedDropped).append("}\n");
+            reportedDropped = droppedNow;
+        }
+        while (batch.length() < MAX_BATCH_BYTES) {
+            Slot slot = slots[(int) next & mask];
+            if (slot.sequence != next + 1) {
+                break;
+            }
+            format(slot, batch);
+            slot.remote = null;
+            next++;
+        }
+        long count = next - consumed;
+        // the slots are free for producers again
+        consumed = next;
+        if (batch.length() == 0) {
+            return false;
+        }
+        try {
+            write(batch.toString().getBytes(StandardCharsets.UTF_8));
+            written.add(count);
+        }
+        catch (IOException | RuntimeException e) {
+            System.err.println("write access log failed: " + e);
+        }
+        return true;
+    }
+
+    private static void format(Slot slot, StringBuilder out)
+    {
+        out.append("{\"time\":\"").append(Instant.ofEpochMilli(slot.time))
+                .append("\",\"remote\":").append(json(slot.remote == null ? null : slot.remote.getHostAddress()))
+                .append(",\"method\":").append(json(slot.method))
+                .append(",\"path\":").append(json(slot.path))
+                .append(",\"action\":").append(json(slot.action))
+                .append(",\"mode\":").append(json(slot.mode))
+                .append(",\"status\":").append(slot.status)
+                .append(",\"bytes\":").append(slot.bytes)
+                .append(",\"durationMicros\":").append(slot.durationNanos / 1000)
+                .append("}\n");
+    }
+
+    private static String json(String value)
+    {
+        return value == null ? "null" : HttpUtils.toJsonString(value);
+    }
+
+    private void write(byte[] bytes)
+            throws IOException
+    {
+        if (console != null) {
+            console.write(bytes, 0, bytes.length);
+            console.flush();
+            return;
+        }
+        if (fileBytes > 0 && fileBytes + bytes.length > maxFileBytes) {
+            rotate();
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        fileBytes += bytes.length;
+    }
+
+    private void openFile()
+            throws IOException
+    {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("create access log dir " + parent + " failed");
+        }
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        fileBytes = channel.size();
+    }
+
+    private void rotate()
+            throws IOException
+    {
+        channel.close();
+        for (int i = maxFiles - 1; i >= 1; i--) {
+            File rotated = new File(file.getPath() + "." + i);
+            if (rotated.exists()) {
+                Files.move(rotated.toPath(), new File(file.getPath() + "." + (i + 1)).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        if (maxFiles > 0) {
+            Files.move(file.toPath(), new File(file.getPath() + ".1").toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        else {
+            Files.delete(file.toPath());
+        }
+        openFile();
+    }
+
+    private void close()
+    {
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+            if (channel != null) {
+                channel.close();
+            }
+        }
+        catch (InterruptedException | IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,331 @@
+package com.github.harbby;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * On disk cache of built directory archives. A file is named by a hash of the archive key (directory and zip
+ * options) and a fingerprint of the tree (names, sizes and mtimes), so any change to the tree misses and the
+ * stale archive of the same key is replaced. Entries are evicted least recently used first once the total
+ * size exceeds maxBytes, after a restart in the order they were built. A miss streams the archive to the client and tees it into the cache at the same time.
+ * The directory is created with the first entry, when that fails the cache turns itself off.
+ */
+public class ArchiveCache
+{
+    private final File dir;
+    private final long maxBytes;
+    // file name -> size, access ordered
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+    private volatile boolean disabled;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public ArchiveCache(File dir, long maxBytes)
+    {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        File[] files = dir.listFiles();
+        if (files != null) {
+            Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+            for (File file : files) {
+                if (file.getName().endsWith(".uploading")) {
+                    file.delete();
+                }
+                else if (file.getName().endsWith(".zip")) {
+                    entries.put(file.getName(), file.length());
+                    totalBytes += file.length();
+                }
+            }
+        }
+        evict();
+    }
+
+    public boolean isEnabled()
+    {
+        return maxBytes > 0 && !disabled;
+    }
+
+    public static String key(File directory, String options)
+            throws IOException
+    {
+        return sha256(directory.getCanonicalPath() + "\n" + options);
+    }
+
+    public static String fingerprint(List<ZipArchiver.Source> sources)
+    {
+        StringBuilder builder = new StringBuilder();
+        for (ZipArchiver.Source source : sources) {
+            builder.append(source.getName()).append('\0').append(source.getLength()).append('\0')
+                    .append(source.getFile().lastModified()).append('\n');
+        }
+        return sha256(builder.toString());
+    }
+
+    /**
+     * the cached archive for key and fingerprint, or null on a miss
+     */
+    public synchronized File get(String key, String fingerprint)
+    {
+        String name = fileName(key, fingerprint);
+        if (entries.get(name) == null) {
+            misses.increment();
+            return null;
+        }
+        File file = new File(dir, name);
+        if (!file.isFile()) {
+            totalBytes -= entries.remove(name);
+            misses.increment();
+            return null;
+        }
+        // recency lives in the access ordered map only, the file's mtime is the validator it is served with
+        hits.increment();
+        return file;
+    }
+
+    /**
+     * start populating the entry for key and fingerprint, returns null when caching is disabled
+     */
+    public Population populate(String key, String fingerprint)
+            throws IOException
+    {
+        if (!isEnabled()) {
+            return null;
+        }
+        if (!StateDirectory.mkdirs(dir)) {
+            disabled = true;
+            throw new IOException("create archive cache directory " + dir + " failed, archive cache disabled");
+        }
+        return new Population(key, fingerprint, new UploadSink(new File(dir, fileName(key, fingerprint)), -1));
+    }
+
+    private synchronized void commit(String key, String fingerprint, long size)
+    {
+        String name = fileName(key, fingerprint);
+        Long previous = entries.put(name, size);
+        totalBytes += size - (previous == null ? 0 : previous);
+        // archives of an older tree under the same key will never hit again
+        Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            if (entry.getKey().startsWith(key) && !entry.getKey().equals(name)) {
+                delete(entry.getKey());
+                totalBytes -= entry.getValue();
+                iterator.remove();
+            }
+        }
+        evict();
+    }
+
+    private void evict()
+    {
+        Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            delete(entry.getKey());
+            totalBytes -= entry.getValue();
+            iterator.remove();
+            evictions.increment();
+        }
+    }
+
+    public long getHits()
+    {
+        return hits.sum();
+    }
+
+    public long getMisses()
+    {
+        return misses.sum();
+    }
+
+    public long getEvictions()
+    {
+        return evictions.sum();
+    }
+
+    public synchronized long getBytes()
+    {
+        return totalBytes;
+    }
+
+    public synchronized int getSize()
+    {
+        return entries.size();
+    }
+
+    private void delete(String name)
+    {
+        File file = new File(dir, name);
+        if (file.exists() && !file.delete()) {
+            System.out.println("delete cached archive " + file + " failed");
+        }
+    }
+
+    private static String fileName(String key, String fingerprint)
+    {
+        return key + "-" + fingerprint + ".zip";
+    }
+
+    private static String sha256(String value)
+    {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+            StringBuilder builder = new StringBuilder();
+            for (int i = 0; i < 16; i++) {
+                builder.append(String.format("%02x", digest[i]));
+            }
+            return builder.toString();
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * copies everything sent to the client into the cache file. Cache failures never fail the response,
+     * they only drop the entry.
+     */
+    public class Population
+            implements AutoCloseable
+    {
+        private final String key;
+        private final String fingerprint;
+        private final UploadSink sink;
+        private final ByteBuffer copyBuffer = ByteBuffer.allocate(256 * 1024);
+        private boolean failed;
+
+        private Population(String key, String fingerprint, UploadSink sink)
+        {
+            this.key = key;
+            this.fingerprint = fingerprint;
+            this.sink = sink;
+        }
+
+        public OutputStream tee(OutputStream client)
+        {
+            return new OutputStream()
+            {
+                @Override
+                public void write(int b)
+                        throws IOException
+                {
+                    write(new byte[] {(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len)
+                        throws IOException
+                {
+                    client.write(b, off, len);
+                    if (!failed) {
+                        try {
+                            sink.write(ByteBuffer.wrap(b, off, len));
+                            checkSize();
+                        }
+                        catch (IOException e) {
+                            fail(e);
+                        }
+                    }
+                }
+
+                @Override
+                public void flush()
+                        throws IOException
+                {
+                    client.flush();
+                }
+
+                @Override
+                public void close()
+                        throws IOException
+                {
+                    client.close();
+                }
+            };
+        }
+
+        public FileTransport.Sink tee(FileTransport.Sink client)
+        {
+            return (file, position, count) -> {
+                long transferred = client.transferFrom(file, position, count);
+                if (!failed) {
+                    try {
+                        copy(file, position, transferred);
+                        checkSize();
+                    }
+                    catch (IOException e) {
+                        fail(e);
+                    }
+                }
+                return transferred;
+            };
+        }
+
+        private void copy(FileChannel file, long position, long count)
+                throws IOException
+        {
+            long end = position + count;
+            while (position < end) {
+                copyBuffer.clear();
+                copyBuffer.limit((int) Math.min(copyBuffer.capacity(), end - position));
+                int n = file.read(copyBuffer, position);
+                if (n < 0) {
+                    throw new IOException("file shrank while caching archive");
+                }
+                copyBuffer.flip();
+                sink.write(copyBuffer);
+                position += n;
+            }
+        }
+
+        private void checkSize()
+        {
+            if (sink.getWritten() > maxBytes) {
+                failed = true;
+            }
+        }
+
+        private void fail(IOException e)
+        {
+            failed = true;
+            System.out.println("cache archive " + key + " failed: " + e);
+        }
+
+        /**
+         * call once the whole archive was written
+         */
+        public void commit()
+                throws IOException
+        {
+            if (failed) {
+                return;
+            }
+            long size = sink.getWritten();
+            sink.commit();
+            ArchiveCache.this.commit(key, fingerprint, size);
+        }
+
+        @Override
+        public void close()
+                throws IOException
+        {
+            sink.close();
+        }
+    }
+}
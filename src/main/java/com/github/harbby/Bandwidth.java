@@ -0,0 +1,271 @@
+package com.github.harbby;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bandwidth shaping of response bodies with token buckets: one global, one per client address and one per route
+ * (file or zip downloads), each in bytes per second, 0 is unlimited. A body is sent in slices, before each slice
+ * the handler thread reserves it in the client, route and global bucket in that order and sleeps until all of
+ * them allow it, then the slice goes out through the same transport as before, so sendfile stays zero copy.
+ * <p>
+ * Reservations are served in arrival order, a bucket that was idle lets a burst of burstMillis through at once.
+ * Without fair share a slice is burstMillis of the bucket rate, with fair share it is burstMillis of the rate
+ * divided by the transfers sharing the bucket, so concurrent downloads take turns in small slices and split the
+ * capacity evenly, a new download gets its share after one slice instead of after the queued bursts.
+ * <p>
+ * A client bucket outlives the client's transfers until it has caught up with its reservations, so a client
+ * downloading one small file after the other pays for them like for one large file. Idle buckets are swept lazily.
+ */
+public class Bandwidth
+{
+    private static final long MIN_SLICE = 16 * 1024;
+    private static final long SWEEP_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final Bucket global;
+    private final long clientRate;
+    private final Map<String, Bucket> routes = new HashMap<>();
+    private final ConcurrentMap<InetAddress, Bucket> clients = new ConcurrentHashMap<>();
+    private final long burstNanos;
+    private final boolean fairShare;
+    private volatile long lastSweepNanos = System.nanoTime();
+
+    private final LongAdder pacedBytes = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+
+    private static final Pacer UNLIMITED = new Pacer(null, new Bucket[0]);
+
+    /**
+     * @param routeRates bytes per second of a route, the routes are "file" and "zip"
+     */
+    public Bandwidth(long globalRate, long clientRate, Map<String, Long> routeRates, long burstMillis, boolean fairShare)
+    {
+        this.burstNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(burstMillis, 1));
+        this.global = globalRate > 0 ? new Bucket(globalRate, burstNanos) : null;
+        this.clientRate = clientRate;
+        for (Map.Entry<String, Long> route : routeRates.entrySet()) {
+            if (route.getValue() > 0) {
+                routes.put(route.getKey(), new Bucket(route.getValue(), burstNanos));
+            }
+        }
+        this.fairShare = fairShare;
+    }
+
+    public boolean isEnabled()
+    {
+        return global != null || clientRate > 0 || !routes.isEmpty();
+    }
+
+    /**
+     * the pacer of one response body, close it when the body is sent
+     */
+    public Pacer open(HttpExchange exchange, String route)
+    {
+        InetSocketAddress remote = exchange.getRemoteAddress();
+        InetAddress client = clientRate > 0 && remote != null ? remote.getAddress() : null;
+        Bucket routeBucket = routes.get(route);
+        if (client == null && routeBucket == null && global == null) {
+            return UNLIMITED;
+        }
+        List<Bucket> buckets = new ArrayList<>(3);
+        if (client != null) {
+            sweepClients();
+            // registered under the map lock, a sweep only removes a bucket without transfers
+            buckets.add(clients.compute(client, (key, bucket) -> {
+                Bucket value = bucket == null ? new Bucket(clientRate, burstNanos) : bucket;
+                value.active.incrementAndGet();
+                return value;
+            }));
+        }
+        if (routeBucket != null) {
+            routeBucket.active.incrementAndGet();
+            buckets.add(routeBucket);
+        }
+        if (global != null) {
+            global.active.incrementAndGet();
+            buckets.add(global);
+        }
+        return new Pacer(this, buckets.toArray(new Bucket[0]));
+    }
+
+    /**
+     * drop the buckets of clients without transfers whose reservations are all in the past, at most once a second
+     */
+    private void sweepClients()
+    {
+        long now = System.nanoTime();
+        if (now - lastSweepNanos < SWEEP_INTERVAL_NANOS) {
+            return;
+        }
+        lastSweepNanos = now;
+        for (InetAddress client : clients.keySet()) {
+            clients.computeIfPresent(client, (key, bucket) -> bucket.active.get() == 0 && bucket.isIdle(now) ? null : bucket);
+        }
+    }
+
+    public long getPacedBytes()
+    {
+        return pacedBytes.sum();
+    }
+
+    public long getWaitMillis()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(waitNanos.sum());
+    }
+
+    public int getClientCount()
+    {
+        return clients.size();
+    }
+
+    /**
+     * generic cell rate algorithm: a reservation moves the theoretical arrival time by its cost, the caller waits
+     * until that time is at most burstNanos ahead of now.
+     */
+    private static class Bucket
+    {
+        private final long rate;
+        private final long burstNanos;
+        private final AtomicInteger active = new AtomicInteger();
+        private long arrivalNanos = System.nanoTime();
+
+        private Bucket(long rate, long burstNanos)
+        {
+            this.rate = rate;
+            this.burstNanos = burstNanos;
+        }
+
+        private synchronized long reserve(long bytes, long now)
+        {
+            arrivalNanos = Math.max(arrivalNanos, now) + (long) (bytes * 1e9 / rate);
+            return arrivalNanos - burstNanos - now;
+        }
+
+        private synchronized boolean isIdle(long now)
+        {
+            return arrivalNanos - now <= 0;
+        }
+
+        private long slice(boolean fairShare)
+        {
+            long slice = (long) (rate * (burstNanos / 1e9));
+            return fairShare ? slice / Math.max(active.get(), 1) : slice;
+        }
+    }
+
+    public static class Pacer
+            implements AutoCloseable
+    {
+        private final Bandwidth bandwidth;
+        private final Bucket[] buckets;
+
+        private Pacer(Bandwidth bandwidth, Bucket[] buckets)
+        {
+            this.bandwidth = bandwidth;
+            this.buckets = buckets;
+        }
+
+        public FileTransport.Sink pace(FileTransport.Sink sink)
+        {
+            if (buckets.length == 0) {
+                return sink;
+            }
+            return (file, position, count) -> {
+                long transferred = 0;
+                while (transferred < count) {
+                    long slice = acquire(count - transferred);
+                    long n = sink.transferFrom(file, position + transferred, slice);
+                    transferred += n;
+                    if (n < slice) {
+                        break;
+                    }
+                }
+                return transferred;
+            };
+        }
+
+        public OutputStream pace(OutputStream out)
+        {
+            if (buckets.length == 0) {
+                return out;
+            }
+            return new FilterOutputStream(out)
+            {
+                @Override
+                public void write(int b)
+                        throws IOException
+                {
+                    acquire(1);
+                    out.write(b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len)
+                        throws IOException
+                {
+                    while (len > 0) {
+                        int slice = (int) acquire(len);
+                        out.write(b, off, slice);
+                        off += slice;
+                        len -= slice;
+                    }
+                }
+            };
+        }
+
+        /**
+         * reserve the next slice of at most remaining bytes and wait until it may be sent, returns its size
+         */
+        private long acquire(long remaining)
+                throws InterruptedIOException
+        {
+            long slice = remaining;
+            for (Bucket bucket : buckets) {
+                slice = Math.min(slice, Math.max(bucket.slice(bandwidth.fairShare), MIN_SLICE));
+            }
+            for (Bucket bucket : buckets) {
+                long now = System.nanoTime();
+                long wait = bucket.reserve(slice, now);
+                if (wait > 0) {
+                    long deadline = now + wait;
+                    do {
+                        LockSupport.parkNanos(wait);
+                        if (Thread.interrupted()) {
+                            throw new InterruptedIOException("interrupted while pacing a response body");
+                        }
+                        wait = deadline - System.nanoTime();
+                    }
+                    while (wait > 0);
+                    bandwidth.waitNanos.add(System.nanoTime() - now);
+                }
+            }
+            bandwidth.pacedBytes.add(slice);
+            return slice;
+        }
+
+        @Override
+        public void close()
+        {
+            // an idle client bucket stays until it caught up with its reservations, see sweepClients
+            for (Bucket bucket : buckets) {
+                bucket.active.decrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,576 @@
+package com.github.harbby;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+
+/**
+ * Archives a selection of files and directories below a directory as one download, tar or stored zip.
+ * Neither format is compressed, so the length of the archive is known before the first byte: it is computed by
+ * a dry run of the writer over the file sizes, and every file body goes out with sendfile between the headers.
+ * <p>
+ * The selection is posted to the directory (one relative path per line, or repeated path= form fields) and saved
+ * as a manifest in the state directory. The response points with Content-Location at a GET of the same archive,
+ * which honours Range and If-Range, so an interrupted download resumes where it stopped. The zip crcs come from
+ * the digest index, a resumed zip does not read the files it already sent again.
+ */
+public class BatchArchive
+{
+    private static final Pattern ID = Pattern.compile("[0-9a-f]{32}");
+    private static final int MAX_BODY_BYTES = 1024 * 1024;
+    private static final OutputStream DISCARD = new OutputStream()
+    {
+        @Override
+        public void write(int b)
+        {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len)
+        {
+        }
+    };
+
+    public enum Format
+    {
+        ZIP("application/zip"), TAR("application/x-tar");
+
+        private final String contentType;
+
+        Format(String contentType)
+        {
+            this.contentType = contentType;
+        }
+
+        /**
+         * null when the name is unknown
+         */
+        public static Format of(String name)
+        {
+            for (Format format : values()) {
+                if (format.name().equalsIgnoreCase(name)) {
+                    return format;
+                }
+            }
+            return null;
+        }
+    }
+
+    private final File dir;
+    private final StateDirectory stateDirectory;
+    private final ZipArchiver zipArchiver;
+    private final FileTransports fileTransports;
+    private final AccessLog accessLog;
+    private final int maxPaths;
+    private final long ttlMillis;
+    private volatile long lastSweep;
+
+    private final LongAdder archives = new LongAdder();
+    private final LongAdder resumed = new LongAdder();
+
+    /**
+     * dir null disables batch downloads, manifests not used for ttlMillis are deleted
+     */
+    public BatchArchive(File dir, StateDirectory stateDirectory, ZipArchiver zipArchiver, FileTransports fileTransports, AccessLog accessLog,
+            int maxPaths, long ttlMillis)
+    {
+        this.dir = dir;
+        this.stateDirectory = stateDirectory;
+        this.zipArchiver = zipArchiver;
+        this.fileTransports = fileTransports;
+        this.accessLog = accessLog;
+        this.maxPaths = maxPaths;
+        this.ttlMillis = ttlMillis;
+    }
+
+    public boolean isEnabled()
+    {
+        return dir != null;
+    }
+
+    /**
+     * POST ?archive=zip|tar to a directory: read the selection, save its manifest and send the whole archive
+     */
+    public void post(HttpExchange t, File directory, Map<String, String> query, Bandwidth.Pacer pacer)
+            throws IOException
+    {
+        Format format = Format.of(query.get("archive"));
+        byte[] body;
+        try (InputStream in = t.getRequestBody()) {
+            body = IOUtils.readNBytes(in, MAX_BODY_BYTES + 1);
+        }
+        if (body.length > MAX_BODY_BYTES) {
+            sendError(t, 413, "BATCH_TOO_LARGE", "selection is larger than " + MAX_BODY_BYTES + " bytes");
+            return;
+        }
+        if (format == null) {
+            sendError(t, 400, "BATCH_UNKNOWN_FORMAT", "archive must be zip or tar");
+            return;
+        }
+        List<String> names;
+        List<ZipArchiver.Source> sources;
+        try {
+            names = parsePaths(body, t.getRequestHeaders().getFirst("Content-Type"));
+            sources = resolve(directory, names);
+        }
+        catch (IllegalArgumentException e) {
+            sendError(t, 400, "BATCH_BAD_REQUEST", e.getMessage());
+            return;
+        }
+
+        StringBuilder manifest = new StringBuilder(t.getRequestURI().getPath());
+        for (String name : names) {
+            manifest.append('\n').append(name);
+        }
+        byte[] bytes = manifest.toString().getBytes(StandardCharsets.UTF_8);
+        // the id is a hash of the directory and the names, posting the same selection again reuses its manifest
+        String id = sha256(bytes).substring(0, 32);
+        archives.increment();
+        if (saveManifest(id, bytes)) {
+            t.getResponseHeaders().set("Content-Location",
+                    t.getRequestURI().getRawPath() + "?archive=" + format.name().toLowerCase(Locale.ROOT) + "&batch=" + id);
+        }
+        send(t, directory, format, id, sources, false, pacer);
+    }
+
+    /**
+     * GET ?batch=id&archive=zip|tar: the archive of a saved selection again, with ranges
+     */
+    public void get(HttpExchange t, File directory, Map<String, String> query, Bandwidth.Pacer pacer)
+            throws IOException
+    {
+        Format format = Format.of(query.getOrDefault("archive", "zip"));
+        String id = query.get("batch");
+        File manifest = ID.matcher(id).matches() ? new File(dir, id) : null;
+        if (format == null || manifest == null || !manifest.isFile()) {
+            sendError(t, 404, "BATCH_NOT_FOUND", "no such batch");
+            return;
+        }
+        List<String> lines = Arrays.asList(new String(Files.readAllBytes(manifest.toPath()), StandardCharsets.UTF_8).split("\n"));
+        if (!lines.get(0).equals(t.getRequestURI().getPath())) {
+            sendError(t, 404, "BATCH_NOT_FOUND", "no such batch");
+            return;
+        }
+        List<ZipArchiver.Source> sources;
+        try {
+            sources = resolve(directory, lines.subList(1, lines.size()));
+        }
+        catch (IllegalArgumentException e) {
+            sendError(t, 410, "BATCH_GONE", e.getMessage());
+            return;
+        }
+        // a manifest in use is kept
+        manifest.setLastModified(System.currentTimeMillis());
+        send(t, directory, format, id, sources, true, pacer);
+    }
+
+    private void send(HttpExchange t, File directory, Format format, String id, List<ZipArchiver.Source> sources, boolean ranges,
+            Bandwidth.Pacer pacer)
+            throws IOException
+    {
+        long length = format == Format.ZIP ? zipLength(sources) : tarLength(sources);
+        long lastModified = 0;
+        for (ZipArchiver.Source source : sources) {
+            lastModified = Math.max(lastModified, source.getLastModified());
+        }
+        String etag = "\"batch-" + id + "-" + format.name().toLowerCase(Locale.ROOT) + "-" + ArchiveCache.fingerprint(sources).substring(0, 16) + "\"";
+        String name = directory.getCanonicalFile().getName().replaceAll("[^A-Za-z0-9._-]", "_");
+        Headers responseHeaders = t.getResponseHeaders();
+        responseHeaders.set("Content-Type", format.contentType);
+        responseHeaders.set("Content-Disposition", "attachment; filename=\"" + (name.isEmpty() ? "batch" : name) + "-" + id.substring(0, 8) + "." +
+                format.name().toLowerCase(Locale.ROOT) + "\"");
+        responseHeaders.set("Last-Modified", HttpUtils.formatDate(lastModified));
+        responseHeaders.set("ETag", etag);
+        String action = "BATCH_" + format;
+        HttpRange range = null;
+        if (ranges) {
+            responseHeaders.set("Accept-Ranges", "bytes");
+            if (HttpUtils.isNotModified(t.getRequestHeaders(), etag, lastModified)) {
+                accessLog.action(action + "_NOT_MODIFIED", null);
+                t.sendResponseHeaders(304, -1);
+                t.getResponseBody().close();
+                return;
+            }
+            String rangeHeader = t.getRequestHeaders().getFirst("Range");
+            List<HttpRange> parsed = null;
+            if (rangeHeader != null && HttpUtils.checkIfRange(t.getRequestHeaders().getFirst("If-Range"), etag, lastModified)) {
+                parsed = HttpRange.parse(rangeHeader, length);
+            }
+            if (parsed != null && parsed.isEmpty()) {
+                accessLog.action(action + "_RANGE_NOT_SATISFIABLE", null);
+                responseHeaders.set("Content-Range", "bytes */" + length);
+                t.sendResponseHeaders(416, -1);
+                t.getResponseBody().close();
+                return;
+            }
+            // several ranges of a generated archive are not worth a multipart body, the whole archive is sent instead
+            if (parsed != null && parsed.size() == 1) {
+                range = parsed.get(0);
+            }
+        }
+
+        long start = range == null ? 0 : range.getStart();
+        long end = range == null ? length : range.getEnd() + 1;
+        if (range != null) {
+            resumed.increment();
+            action += "_RANGE";
+            responseHeaders.set("Content-Range", range.toContentRange(length));
+        }
+        t.sendResponseHeaders(range == null ? 200 : 206, end - start);
+        try (OutputStream out = t.getResponseBody()) {
+            FileTransports.Transfer transfer = fileTransports.open(t, out);
+            accessLog.action(action, transfer.getMode().name());
+            Window window = new Window(start, end);
+            try {
+                if (format == Format.ZIP) {
+                    ZipWriter writer = new ZipWriter(window.clip(pacer.pace(out)), window.clip(pacer.pace(transfer)));
+                    zipArchiver.write(sources, writer, ZipArchiver.Method.STORE, Deflater.NO_COMPRESSION);
+                }
+                else {
+                    writeTar(sources, new TarWriter(window.clip(pacer.pace(out)), window.clip(pacer.pace(transfer))));
+                }
+            }
+            catch (WindowComplete e) {
+                // the requested bytes are out, the rest of the archive is not generated
+            }
+            finally {
+                accessLog.bytes(window.sent);
+            }
+        }
+    }
+
+    private static void writeTar(List<ZipArchiver.Source> sources, TarWriter writer)
+            throws IOException
+    {
+        for (ZipArchiver.Source source : sources) {
+            if (source.isDirectory()) {
+                writer.putDirectory(source.getName(), source.getLastModified());
+                continue;
+            }
+            try (FileInputStream in = new FileInputStream(source.getFile())) {
+                writer.putFile(source.getName(), source.getLastModified(), in.getChannel(), source.getLength());
+            }
+        }
+        writer.finish();
+    }
+
+    /**
+     * the archive written over a discarding stream and a sink that only counts, crcs do not change the length
+     */
+    private static long zipLength(List<ZipArchiver.Source> sources)
+            throws IOException
+    {
+        ZipWriter writer = new ZipWriter(DISCARD, (file, position, count) -> count);
+        for (ZipArchiver.Source source : sources) {
+            if (source.isDirectory()) {
+                writer.putDirectory(source.getName(), source.getLastModified());
+            }
+            else {
+                writer.putStored(source.getName(), source.getLastModified(), 0, null, source.getLength());
+            }
+        }
+        writer.finish();
+        return writer.getOffset();
+    }
+
+    private static long tarLength(List<ZipArchiver.Source> sources)
+            throws IOException
+    {
+        TarWriter writer = new TarWriter(DISCARD, (file, position, count) -> count);
+        for (ZipArchiver.Source source : sources) {
+            if (source.isDirectory()) {
+                writer.putDirectory(source.getName(), source.getLastModified());
+            }
+            else {
+                writer.putFile(source.getName(), source.getLastModified(), null, source.getLength());
+            }
+        }
+        writer.finish();
+        return writer.getOffset();
+    }
+
+    /**
+     * normalized relative paths in request order without duplicates, ".." is rejected
+     */
+    private List<String> parsePaths(byte[] body, String contentType)
+    {
+        List<String> paths = new ArrayList<>();
+        String text = new String(body, StandardCharsets.UTF_8);
+        // curl -d labels a plain list as a form too, a form is recognized by its fields
+        if (contentType != null && contentType.toLowerCase(Locale.ROOT).startsWith("application/x-www-form-urlencoded") && text.startsWith("path=")) {
+            for (String pair : text.split("&")) {
+                if (pair.startsWith("path=")) {
+                    try {
+                        paths.add(URLDecoder.decode(pair.substring("path=".length()), "UTF-8"));
+                    }
+                    catch (IOException e) {
+                        throw new IllegalArgumentException("malformed form field " + pair);
+                    }
+                }
+            }
+        }
+        else {
+            for (String line : text.split("\n")) {
+                paths.add(line.endsWith("\r") ? line.substring(0, line.length() - 1) : line);
+            }
+        }
+
+        Set<String> names = new HashSet<>();
+        List<String> normalized = new ArrayList<>();
+        for (String path : paths) {
+            if (path.isEmpty()) {
+                continue;
+            }
+            StringBuilder name = new StringBuilder();
+            for (String segment : path.split("/")) {
+                if (segment.equals("..") || segment.indexOf('\0') >= 0 || segment.indexOf('\n') >= 0) {
+                    throw new IllegalArgumentException("invalid path " + path);
+                }
+                if (!segment.isEmpty() && !segment.equals(".")) {
+                    name.append(name.length() == 0 ? "" : "/").append(segment);
+                }
+            }
+            if (name.length() == 0) {
+                throw new IllegalArgumentException("invalid path " + path);
+            }
+            if (names.add(name.toString())) {
+                normalized.add(name.toString());
+            }
+        }
+        if (normalized.isEmpty()) {
+            throw new IllegalArgumentException("no paths selected");
+        }
+        if (normalized.size() > maxPaths) {
+            throw new IllegalArgumentException("more than " + maxPaths + " paths selected");
+        }
+        return normalized;
+    }
+
+    /**
+     * the entries of the selected names, a directory with its whole tree. An entry selected twice, directly and
+     * inside a selected directory, is archived once.
+     */
+    private List<ZipArchiver.Source> resolve(File directory, List<String> names)
+    {
+        List<ZipArchiver.Source> sources = new ArrayList<>();
+        Set<String> entries = new HashSet<>();
+        for (String name : names) {
+            File file = new File(directory, name);
+            if (stateDirectory.contains(file) || !(file.isFile() || file.isDirectory())) {
+                throw new IllegalArgumentException("no such file " + name);
+            }
+            if (file.isFile()) {
+                if (entries.add(name)) {
+                    sources.add(new ZipArchiver.Source(file, name));
+                }
+                continue;
+            }
+            if (entries.add(name + "/")) {
+                sources.add(new ZipArchiver.Source(file, name + "/"));
+            }
+            for (ZipArchiver.Source source : ZipArchiver.walk(file, name + "/", stateDirectory)) {
+                if (entries.add(source.getName())) {
+                    sources.add(source);
+                }
+            }
+        }
+        return sources;
+    }
+
+    /**
+     * false when the manifest can't be written, e.g. the state directory is read only. The archive is still sent,
+     * it just can't be resumed by GET.
+     */
+    private boolean saveManifest(String id, byte[] bytes)
+    {
+        File file = new File(dir, id);
+        if (file.isFile()) {
+            file.setLastModified(System.currentTimeMillis());
+            return true;
+        }
+        File temp = new File(dir, id + ".tmp" + Thread.currentThread().getId());
+        try {
+            if (!StateDirectory.mkdirs(dir)) {
+                throw new IOException("create batch manifest directory " + dir + " failed");
+            }
+            Files.write(temp.toPath(), bytes);
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e) {
+            System.out.println("save batch manifest " + file + " failed, the archive can't be resumed: " + e.getMessage());
+            temp.delete();
+            return false;
+        }
+        sweep();
+        return true;
+    }
+
+    private void sweep()
+    {
+        long now = System.currentTimeMillis();
+        if (now - lastSweep < Math.min(ttlMillis, 60 * 60 * 1000)) {
+            return;
+        }
+        lastSweep = now;
+        File[] manifests = dir.listFiles();
+        for (File manifest : manifests == null ? new File[0] : manifests) {
+            if (now - manifest.lastModified() > ttlMillis) {
+                manifest.delete();
+            }
+        }
+    }
+
+    private void sendError(HttpExchange t, int status, String action, String message)
+            throws IOException
+    {
+        accessLog.action(action, null);
+        byte[] bytes = (message + "\n").getBytes(StandardCharsets.UTF_8);
+        t.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        t.sendResponseHeaders(status, bytes.length);
+        try (OutputStream os = t.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+
+    private static String sha256(byte[] bytes)
+    {
+        try {
+            StringBuilder builder = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-256").digest(bytes)) {
+                builder.append(String.format("%02x", b));
+            }
+            return builder.toString();
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public long getArchiveCount()
+    {
+        return archives.sum();
+    }
+
+    public long getResumedCount()
+    {
+        return resumed.sum();
+    }
+
+    /**
+     * thrown through the writer once the window is complete
+     */
+    private static class WindowComplete
+            extends IOException
+    {
+        private static final long serialVersionUID = 1L;
+
+        private WindowComplete()
+        {
+            super("window complete");
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace()
+        {
+            return this;
+        }
+    }
+
+    /**
+     * the part [start, end) of the archive stream: bytes before start are dropped, file regions before start are
+     * skipped without reading them, and the writer is stopped at end. The stream and the sink share one position.
+     */
+    private static class Window
+    {
+        private final long start;
+        private final long end;
+        private long position;
+        private long sent;
+
+        private Window(long start, long end)
+        {
+            this.start = start;
+            this.end = end;
+        }
+
+        OutputStream clip(OutputStream out)
+        {
+            return new OutputStream()
+            {
+                @Override
+                public void write(int b)
+                        throws IOException
+                {
+                    write(new byte[] {(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len)
+                        throws IOException
+                {
+                    long skip = Math.max(0, Math.min(len, start - position));
+                    long take = Math.max(0, Math.min(len, end - position) - skip);
+                    if (take > 0) {
+                        out.write(b, off + (int) skip, (int) take);
+                        sent += take;
+                    }
+                    advance(len);
+                }
+
+                @Override
+                public void flush()
+                        throws IOException
+                {
+                    out.flush();
+                }
+            };
+        }
+
+        FileTransport.Sink clip(FileTransport.Sink sink)
+        {
+            return (file, filePosition, count) -> {
+                long skip = Math.max(0, Math.min(count, start - position));
+                long take = Math.max(0, Math.min(count, end - position) - skip);
+                if (take > 0) {
+                    long transferred = sink.transferFrom(file, filePosition + skip, take);
+                    sent += transferred;
+                    if (transferred != take) {
+                        return skip + transferred;
+                    }
+                }
+                advance(count);
+                return count;
+            };
+        }
+
+        private void advance(long count)
+                throws WindowComplete
+        {
+            position += count;
+            if (position >= end) {
+                throw new WindowComplete();
+            }
+        }
+    }
+}
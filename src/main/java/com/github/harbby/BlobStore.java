@@ -0,0 +1,171 @@
+package com.github.harbby;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * Content addressed store deduplicating uploads: every unique body is kept once as blobs/ab/&lt;sha-256&gt; in the
+ * state directory and each uploaded file is a hard link to its blob. An upload is hashed while it streams (see
+ * {@link UploadSink}), at commit its temp file either becomes the new blob or is dropped in favour of a link to
+ * the existing one. A client that knows the digest can ask for a link first and skip the transfer.
+ * <p>
+ * Links share one inode, so a blob is made read only when it is stored and its size and mtime are indexed with its
+ * digest. A blob whose size or mtime changed since, because a copy was modified in place anyway, is never linked
+ * again: the digest handshake is refused and the next upload of that content replaces it. Blobs no uploaded file
+ * links to any more are deleted at startup. When the upload directory is on another filesystem than the state
+ * directory links fail and the upload is stored as a plain file.
+ */
+public class BlobStore
+{
+    private static final Pattern SHA256 = Pattern.compile("[0-9a-f]{64}");
+
+    private final File dir;
+    private final DigestIndex digestIndex;
+
+    private final LongAdder stored = new LongAdder();
+    private final LongAdder deduplicated = new LongAdder();
+    private final LongAdder savedBytes = new LongAdder();
+
+    /**
+     * dir null disables deduplication
+     */
+    public BlobStore(File dir, DigestIndex digestIndex)
+    {
+        this.dir = dir;
+        this.digestIndex = digestIndex;
+        if (dir != null) {
+            int deleted = deleteUnreferenced();
+            if (deleted > 0) {
+                System.out.println("deleted " + deleted + " unreferenced upload blobs");
+            }
+        }
+    }
+
+    public boolean isEnabled()
+    {
+        return dir != null;
+    }
+
+    public static boolean isDigest(String sha256)
+    {
+        return sha256 != null && SHA256.matcher(sha256).matches();
+    }
+
+    /**
+     * commit a fully written upload: the temp file becomes the blob of its digest and is moved to target, or when
+     * the blob exists target becomes a link to it and the temp file is deleted. Returns true when deduplicated.
+     */
+    public boolean commit(File tempFile, long length, String sha256, File target)
+            throws IOException
+    {
+        File blob = blobFile(sha256);
+        try {
+            Files.createLink(blob.toPath(), tempFile.toPath());
+            if (!blob.setReadOnly()) {
+                System.out.println("make upload blob " + blob + " read only failed");
+            }
+            digestIndex.recordSealed(blob, DigestIndex.Algorithm.SHA256, length, blob.lastModified(), sha256);
+            stored.increment();
+        }
+        catch (FileAlreadyExistsException e) {
+            if (link(blob, length, sha256, target)) {
+                Files.delete(tempFile.toPath());
+                return true;
+            }
+            // the blob was modified outside the server or predates the index, the new upload replaces it
+            Files.delete(blob.toPath());
+            return commit(tempFile, length, sha256, target);
+        }
+        catch (IOException | UnsupportedOperationException e) {
+            System.out.println("link upload blob " + blob + " failed, storing " + target + " without deduplication: " + e);
+        }
+        UploadSink.replace(tempFile, target);
+        return false;
+    }
+
+    /**
+     * link target to the blob of sha256 when the store has it, the digest first handshake of an upload
+     */
+    public boolean link(String sha256, File target)
+            throws IOException
+    {
+        File blob = blobFile(sha256);
+        return blob.isFile() && link(blob, blob.length(), sha256, target);
+    }
+
+    private boolean link(File blob, long length, String sha256, File target)
+            throws IOException
+    {
+        // the size and mtime indexed when the blob was stored, anything else means its content can't be trusted
+        if (blob.length() != length || !sha256.equals(digestIndex.lookup(blob, DigestIndex.Algorithm.SHA256, length, blob.lastModified()))) {
+            return false;
+        }
+        File temp = new File(target.getAbsoluteFile().getParentFile(),
+                "." + target.getName() + "." + Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".linking");
+        Files.createLink(temp.toPath(), blob.toPath());
+        try {
+            UploadSink.replace(temp, target);
+        }
+        finally {
+            Files.deleteIfExists(temp.toPath());
+        }
+        deduplicated.increment();
+        savedBytes.add(length);
+        // the linked file keeps the mtime of the blob, usually old enough to be indexed right away
+        digestIndex.record(target, DigestIndex.Algorithm.SHA256, length, target.lastModified(), sha256);
+        return true;
+    }
+
+    private File blobFile(String sha256)
+            throws IOException
+    {
+        File shard = new File(dir, sha256.substring(0, 2));
+        if (!shard.isDirectory() && !shard.mkdirs() && !shard.isDirectory()) {
+            throw new IOException("create blob directory " + shard + " failed");
+        }
+        return new File(shard, sha256);
+    }
+
+    /**
+     * blobs with a link count of one are referenced by the store only
+     */
+    private int deleteUnreferenced()
+    {
+        int deleted = 0;
+        File[] shards = dir.listFiles(File::isDirectory);
+        for (File shard : shards == null ? new File[0] : shards) {
+            File[] blobs = shard.listFiles();
+            for (File blob : blobs == null ? new File[0] : blobs) {
+                try {
+                    if (((Number) Files.getAttribute(blob.toPath(), "unix:nlink")).intValue() <= 1 && blob.delete()) {
+                        deleted++;
+                    }
+                }
+                catch (IOException | UnsupportedOperationException | IllegalArgumentException e) {
+                    return deleted; // no link counts on this platform, keep everything
+                }
+            }
+        }
+        return deleted;
+    }
+
+    public long getStoredCount()
+    {
+        return stored.sum();
+    }
+
+    public long getDeduplicatedCount()
+    {
+        return deduplicated.sum();
+    }
+
+    public long getSavedBytes()
+    {
+        return savedBytes.sum();
+    }
+}
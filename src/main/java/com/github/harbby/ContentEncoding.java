@@ -0,0 +1,196 @@
+package com.github.harbby;
+
+import com.sun.net.httpserver.Headers;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Accept-Encoding negotiation for compressible types. A file with an up to date sibling {@code name.zst} or
+ * {@code name.gz} is answered with the sibling and Content-Encoding zstd or gzip, the sibling is a plain file so
+ * it keeps Content-Length, ranges and zero copy. Without a sibling, files of at least {@code gzipMinBytes} are
+ * gzipped while streaming.
+ */
+public class ContentEncoding
+{
+    private static final Map<String, String> CONTENT_TYPES = new HashMap<>();
+    private static final String[][] SIBLINGS = {{"zstd", ".zst"}, {"gzip", ".gz"}};
+
+    static {
+        String[] types = {
+                "html", "text/html; charset=utf-8", "htm", "text/html; charset=utf-8",
+                "txt", "text/plain; charset=utf-8", "log", "text/plain; charset=utf-8", "md", "text/markdown; charset=utf-8",
+                "csv", "text/csv; charset=utf-8", "css", "text/css; charset=utf-8", "js", "text/javascript; charset=utf-8",
+                "json", "application/json", "xml", "application/xml", "svg", "image/svg+xml", "wasm", "application/wasm",
+                "png", "image/png", "jpg", "image/jpeg", "jpeg", "image/jpeg", "gif", "image/gif", "webp", "image/webp",
+                "ico", "image/x-icon", "pdf", "application/pdf", "mp4", "video/mp4", "webm", "video/webm", "mp3", "audio/mpeg",
+                "zip", "application/zip", "gz", "application/gzip", "tgz", "application/gzip", "zst", "application/zstd",
+                "jar", "application/java-archive", "woff2", "font/woff2"};
+        for (int i = 0; i < types.length; i += 2) {
+            CONTENT_TYPES.put(types[i], types[i + 1]);
+        }
+    }
+
+    private final boolean precompressed;
+    private final long gzipMinBytes;
+    private final int gzipLevel;
+
+    private final LongAdder precompressedCount = new LongAdder();
+    private final LongAdder gzipCount = new LongAdder();
+
+    public static class Sibling
+    {
+        private final File file;
+        private final String coding;
+
+        private Sibling(File file, String coding)
+        {
+            this.file = file;
+            this.coding = coding;
+        }
+
+        public File getFile()
+        {
+            return file;
+        }
+
+        public String getCoding()
+        {
+            return coding;
+        }
+    }
+
+    /**
+     * gzipMinBytes below 0 disables streaming gzip
+     */
+    public ContentEncoding(boolean precompressed, long gzipMinBytes, int gzipLevel)
+    {
+        this.precompressed = precompressed;
+        this.gzipMinBytes = gzipMinBytes;
+        this.gzipLevel = gzipLevel;
+    }
+
+    /**
+     * media type by file extension, null when unknown
+     */
+    public static String contentType(String fileName)
+    {
+        int dot = fileName.lastIndexOf('.');
+        return dot == -1 ? null : CONTENT_TYPES.get(fileName.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    public static boolean isCompressible(String contentType)
+    {
+        return contentType != null && (contentType.startsWith("text/") || contentType.startsWith("application/json") ||
+                contentType.startsWith("application/xml") || contentType.startsWith("image/svg+xml") || contentType.startsWith("application/wasm"));
+    }
+
+    /**
+     * the q-value the client gives a coding (RFC 7231 section 5.3.4), "*" covers codings not listed
+     */
+    static double quality(String acceptEncoding, String coding)
+    {
+        if (acceptEncoding == null) {
+            return 0;
+        }
+        double wildcard = 0;
+        for (String element : acceptEncoding.split(",")) {
+            String[] parts = element.split(";");
+            String name = parts[0].trim().toLowerCase(Locale.ROOT);
+            double q = 1;
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        q = Double.parseDouble(parameter.substring(2));
+                    }
+                    catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            if (name.equals(coding)) {
+                return q;
+            }
+            if ("*".equals(name)) {
+                wildcard = q;
+            }
+        }
+        return wildcard;
+    }
+
+    /**
+     * the precompressed sibling with the highest q-value the client accepts, ties go to zstd.
+     * A sibling older than the file is stale and ignored.
+     */
+    public Sibling findSibling(File file, Headers requestHeaders)
+    {
+        String acceptEncoding = requestHeaders.getFirst("Accept-Encoding");
+        if (!precompressed || acceptEncoding == null) {
+            return null;
+        }
+        Sibling best = null;
+        double bestQuality = 0;
+        for (String[] sibling : SIBLINGS) {
+            double q = quality(acceptEncoding, sibling[0]);
+            if (q <= bestQuality) {
+                continue;
+            }
+            File candidate = new File(file.getPath() + sibling[1]);
+            if (candidate.isFile() && candidate.lastModified() >= file.lastModified()) {
+                best = new Sibling(candidate, sibling[0]);
+                bestQuality = q;
+            }
+        }
+        if (best != null) {
+            precompressedCount.increment();
+        }
+        return best;
+    }
+
+    public boolean acceptsGzip(Headers requestHeaders)
+    {
+        return gzipMinBytes >= 0 && quality(requestHeaders.getFirst("Accept-Encoding"), "gzip") > 0;
+    }
+
+    public boolean shouldGzip(Headers requestHeaders, String contentType, long length)
+    {
+        return length >= gzipMinBytes && isCompressible(contentType) && acceptsGzip(requestHeaders);
+    }
+
+    /**
+     * the entity tag of an encoded representation, it must differ from the identity tag
+     */
+    public static String encodedTag(String etag, String coding)
+    {
+        return etag.substring(0, etag.length() - 1) + "-" + coding + "\"";
+    }
+
+    public OutputStream gzip(OutputStream out)
+            throws IOException
+    {
+        gzipCount.increment();
+        return new GZIPOutputStream(out, 64 * 1024)
+        {
+            {
+                def.setLevel(gzipLevel);
+            }
+        };
+    }
+
+    public long getPrecompressedCount()
+    {
+        return precompressedCount.sum();
+    }
+
+    public long getGzipCount()
+    {
+        return gzipCount.sum();
+    }
+}
@@ -0,0 +1,566 @@
+package com.github.harbby;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+/**
+ * Persistent index of file digests keyed by algorithm and path, valid for the size and mtime they were computed
+ * for. A lookup is a map get, a missing digest is computed on a bounded background pool that reads the file through
+ * a direct buffer per thread, so a request never reads a file to answer. Every computed digest is appended to a
+ * journal in the state directory and loaded again at startup, the journal is compacted when most of it is
+ * superseded and entries of deleted files are dropped then.
+ * When the state directory can't be written the index lives in memory only.
+ * Files modified within the mtime granularity are hashed but not indexed.
+ */
+public class DigestIndex
+{
+    private static final long MTIME_GRANULARITY_MILLIS = 2000;
+    private static final int READ_BUFFER_BYTES = 1024 * 1024;
+    // reused by the pool threads, a mapped region would stay mapped until the buffer is collected
+    private static final ThreadLocal<ByteBuffer> READ_BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(READ_BUFFER_BYTES));
+    private static final String JOURNAL = "digests.log";
+
+    private final File journalFile;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, CompletableFuture<String>> pending = new ConcurrentHashMap<>();
+    private final ThreadPoolExecutor pool;
+    // null when the state directory is not writable
+    private final FileChannel journal;
+    private final long waitMillis;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder computed = new LongAdder();
+    private final LongAdder computedBytes = new LongAdder();
+
+    public enum Algorithm
+    {
+        SHA256("sha256", "SHA-256"),
+        MD5("md5", "MD5"),
+        CRC32C("crc32c", "CRC32c"),
+        // not a Digest header algorithm, indexed for the stored entries of zip archives
+        CRC32("crc32", "CRC32");
+
+        private final String name;
+        private final String digestName;
+
+        Algorithm(String name, String digestName)
+        {
+            this.name = name;
+            this.digestName = digestName;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        /**
+         * the algorithm name of the Digest header (RFC 3230)
+         */
+        public String getDigestName()
+        {
+            return digestName;
+        }
+
+        /**
+         * null when the name is unknown
+         */
+        public static Algorithm of(String name)
+        {
+            for (Algorithm algorithm : values()) {
+                if (algorithm.name.equalsIgnoreCase(name)) {
+                    return algorithm;
+                }
+            }
+            return null;
+        }
+    }
+
+    private static class Entry
+    {
+        private final long length;
+        private final long lastModified;
+        private final String hex;
+
+        private Entry(long length, long lastModified, String hex)
+        {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.hex = hex;
+        }
+    }
+
+    /**
+     * @param waitMillis how long a request waits for a digest being computed before it is told to retry
+     */
+    public DigestIndex(File dir, int threads, int maxQueue, long waitMillis)
+            throws IOException
+    {
+        this.journalFile = new File(dir, JOURNAL);
+        this.waitMillis = waitMillis;
+        int lines = load();
+        FileChannel journal = null;
+        try {
+            if (!StateDirectory.mkdirs(dir)) {
+                throw new IOException("create digest index directory " + dir + " failed");
+            }
+            if (lines > 2 * entries.size() + 1024) {
+                compact();
+            }
+            journal = FileChannel.open(journalFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+        catch (IOException e) {
+            System.out.println("open digest journal " + journalFile + " failed, digests are kept in memory only: " + e.getMessage());
+        }
+        this.journal = journal;
+        AtomicInteger threadId = new AtomicInteger();
+        this.pool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(maxQueue), r -> {
+            Thread thread = new Thread(r, "digest-" + threadId.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * the hex digest of file when it is indexed for this size and mtime, otherwise null
+     */
+    public String lookup(File file, Algorithm algorithm, long length, long lastModified)
+    {
+        Entry entry = entries.get(key(algorithm, file));
+        if (entry == null || entry.length != length || entry.lastModified != lastModified) {
+            return null;
+        }
+        hits.increment();
+        return entry.hex;
+    }
+
+    /**
+     * the Digest header value of all indexed digests of file, null when none is indexed
+     */
+    public String digestHeader(File file, long length, long lastModified)
+    {
+        if (entries.isEmpty()) {
+            return null;
+        }
+        StringBuilder header = null;
+        for (Algorithm algorithm : Algorithm.values()) {
+            if (algorithm == Algorithm.CRC32) {
+                continue;
+            }
+            Entry entry = entries.get(key(algorithm, file));
+            if (entry != null && entry.length == length && entry.lastModified == lastModified) {
+                header = header == null ? new StringBuilder() : header.append(',');
+                header.append(algorithm.getDigestName()).append('=').append(base64(entry.hex));
+            }
+        }
+        return header == null ? null : header.toString();
+    }
+
+    /**
+     * hash file in the background, concurrent requests for the same version share one computation. The future
+     * fails when the file changes while it is hashed.
+     *
+     * @throws java.util.concurrent.RejectedExecutionException when the queue of the pool is full
+     */
+    public CompletableFuture<String> compute(File file, Algorithm algorithm, long length, long lastModified)
+    {
+        String key = key(algorithm, file);
+        return pending.computeIfAbsent(key + "\0" + length + "\0" + lastModified, pendingKey -> {
+            CompletableFuture<String> future = new CompletableFuture<>();
+            pool.execute(() -> {
+                try {
+                    String hex = hex(hash(file, algorithm, length));
+                    BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+                    if (attributes.size() != length || attributes.lastModifiedTime().toMillis() != lastModified) {
+                        throw new IOException("file " + file + " changed while hashing");
+                    }
+                    computed.increment();
+                    computedBytes.add(length);
+                    if (System.currentTimeMillis() - lastModified >= MTIME_GRANULARITY_MILLIS) {
+                        put(key, new Entry(length, lastModified, hex));
+                    }
+                    future.complete(hex);
+                }
+                catch (IOException | RuntimeException e) {
+                    future.completeExceptionally(e);
+                }
+                finally {
+                    pending.remove(pendingKey, future);
+                }
+            });
+            return future;
+        });
+    }
+
+    /**
+     * index a digest known from elsewhere, e.g. computed while the file was uploaded
+     */
+    public void record(File file, Algorithm algorithm, long length, long lastModified, String hex)
+            throws IOException
+    {
+        if (System.currentTimeMillis() - lastModified >= MTIME_GRANULARITY_MILLIS) {
+            put(key(algorithm, file), new Entry(length, lastModified, hex));
+        }
+    }
+
+    /**
+     * index a digest of a file that is never written again, e.g. a read only upload blob, without waiting for the
+     * mtime granularity to pass
+     */
+    public void recordSealed(File file, Algorithm algorithm, long length, long lastModified, String hex)
+            throws IOException
+    {
+        put(key(algorithm, file), new Entry(length, lastModified, hex));
+    }
+
+    public long getWaitMillis()
+    {
+        return waitMillis;
+    }
+
+    public long getHits()
+    {
+        return hits.sum();
+    }
+
+    public long getComputedCount()
+    {
+        return computed.sum();
+    }
+
+    public long getComputedBytes()
+    {
+        return computedBytes.sum();
+    }
+
+    public int getQueueDepth()
+    {
+        return pool.getQueue().size();
+    }
+
+    public int getSize()
+    {
+        return entries.size();
+    }
+
+    private static String key(Algorithm algorithm, File file)
+    {
+        return algorithm.getName() + ":" + file.getPath();
+    }
+
+    private void put(String key, Entry entry)
+            throws IOException
+    {
+        entries.put(key, entry);
+        // a path with a line break would corrupt the journal, it is indexed until restart only
+        if (journal != null && key.indexOf('\n') == -1) {
+            byte[] line = journalLine(key, entry).getBytes(StandardCharsets.UTF_8);
+            synchronized (this) {
+                ByteBuffer buffer = ByteBuffer.wrap(line);
+                while (buffer.hasRemaining()) {
+                    journal.write(buffer);
+                }
+            }
+        }
+    }
+
+    private static String journalLine(String key, Entry entry)
+    {
+        return entry.length + "\t" + entry.lastModified + "\t" + entry.hex + "\t" + key + "\n";
+    }
+
+    /**
+     * returns the number of journal lines, later lines supersede earlier ones
+     */
+    private int load()
+            throws IOException
+    {
+        if (!journalFile.isFile()) {
+            return 0;
+        }
+        int lines = 0;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(Files.newInputStream(journalFile.toPath()), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines++;
+                String[] fields = line.split("\t", 4);
+                if (fields.length != 4) {
+                    continue; // torn last line of a crash
+                }
+                try {
+                    entries.put(fields[3], new Entry(Long.parseLong(fields[0]), Long.parseLong(fields[1]), fields[2]));
+                }
+                catch (NumberFormatException ignored) {
+                }
+            }
+        }
+        return lines;
+    }
+
+    private void compact()
+            throws IOException
+    {
+        File temp = new File(journalFile.getPath() + ".compacting");
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            String key = entry.getKey();
+            if (!new File(key.substring(key.indexOf(':') + 1)).exists()) {
+                entries.remove(key);
+                continue;
+            }
+            builder.append(journalLine(key, entry.getValue()));
+        }
+        Files.write(temp.toPath(), builder.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(temp.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static byte[] hash(File file, Algorithm algorithm, long length)
+            throws IOException
+    {
+        Hasher hasher = Hasher.create(algorithm);
+        ByteBuffer buffer = READ_BUFFER.get();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long position = 0;
+            while (position < length) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), length - position));
+                int n = channel.read(buffer, position);
+                if (n < 0) {
+                    throw new IOException("file " + file + " changed while hashing");
+                }
+                position += n;
+                buffer.flip();
+                hasher.update(buffer);
+            }
+        }
+        return hasher.digest();
+    }
+
+    private static String hex(byte[] bytes)
+    {
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return builder.toString();
+    }
+
+    static String base64(String hex)
+    {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return Base64.getEncoder().encodeToString(bytes);
+    }
+
+    private abstract static class Hasher
+    {
+        // java.util.zip.CRC32C and Checksum.update(ByteBuffer) are java 9, the build still targets java 8
+        private static final MethodHandle NEW_CRC32C;
+        private static final MethodHandle UPDATE_CHECKSUM;
+
+        static {
+            MethodHandle newCrc32c = null;
+            MethodHandle updateChecksum = null;
+            try {
+                MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+                newCrc32c = lookup.findConstructor(Class.forName("java.util.zip.CRC32C"), MethodType.methodType(void.class))
+                        .asType(MethodType.methodType(Checksum.class));
+                updateChecksum = lookup.findVirtual(Checksum.class, "update", MethodType.methodType(void.class, ByteBuffer.class));
+            }
+            catch (ReflectiveOperationException e) {
+                newCrc32c = null;
+            }
+            NEW_CRC32C = newCrc32c;
+            UPDATE_CHECKSUM = updateChecksum;
+        }
+
+        abstract void update(ByteBuffer buffer);
+
+        abstract byte[] digest();
+
+        static Hasher create(Algorithm algorithm)
+        {
+            if (algorithm == Algorithm.CRC32) {
+                CRC32 crc = new CRC32();
+                return new Hasher()
+                {
+                    @Override
+                    void update(ByteBuffer buffer)
+                    {
+                        crc.update(buffer);
+                    }
+
+                    @Override
+                    byte[] digest()
+                    {
+                        return toBytes(crc);
+                    }
+                };
+            }
+            if (algorithm != Algorithm.CRC32C) {
+                MessageDigest digest;
+                try {
+                    digest = MessageDigest.getInstance(algorithm.getDigestName());
+                }
+                catch (NoSuchAlgorithmException e) {
+                    throw new IllegalStateException(e);
+                }
+                return new Hasher()
+                {
+                    @Override
+                    void update(ByteBuffer buffer)
+                    {
+                        digest.update(buffer);
+                    }
+
+                    @Override
+                    byte[] digest()
+                    {
+                        return digest.digest();
+                    }
+                };
+            }
+            Checksum checksum = newCrc32c();
+            return new Hasher()
+            {
+                @Override
+                void update(ByteBuffer buffer)
+                {
+                    if (checksum instanceof Crc32c) {
+                        ((Crc32c) checksum).update(buffer);
+                        return;
+                    }
+                    try {
+                        UPDATE_CHECKSUM.invokeExact(checksum, buffer);
+                    }
+                    catch (Throwable e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+
+                @Override
+                byte[] digest()
+                {
+                    return toBytes(checksum);
+                }
+            };
+        }
+
+        private static byte[] toBytes(Checksum checksum)
+        {
+            int value = (int) checksum.getValue();
+            return new byte[] {(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+        }
+
+        private static Checksum newCrc32c()
+        {
+            if (NEW_CRC32C == null) {
+                return new Crc32c();
+            }
+            try {
+                return (Checksum) NEW_CRC32C.invokeExact();
+            }
+            catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * slicing-by-8 crc32c (Castagnoli) for java 8, newer jdks use the intrinsic java.util.zip.CRC32C
+     */
+    static class Crc32c
+            implements Checksum
+    {
+        private static final int[][] TABLES = new int[8][256];
+
+        static {
+            for (int i = 0; i < 256; i++) {
+                int crc = i;
+                for (int bit = 0; bit < 8; bit++) {
+                    crc = (crc & 1) != 0 ? (crc >>> 1) ^ 0x82F63B78 : crc >>> 1;
+                }
+                TABLES[0][i] = crc;
+            }
+            for (int i = 0; i < 256; i++) {
+                for (int table = 1; table < 8; table++) {
+                    TABLES[table][i] = (TABLES[table - 1][i] >>> 8) ^ TABLES[0][TABLES[table - 1][i] & 0xFF];
+                }
+            }
+        }
+
+        private final byte[] chunk = new byte[64 * 1024];
+        private int crc = 0xFFFFFFFF;
+
+        @Override
+        public void update(int b)
+        {
+            crc = (crc >>> 8) ^ TABLES[0][(crc ^ b) & 0xFF];
+        }
+
+        @Override
+        public void update(byte[] b, int off, int len)
+        {
+            int c = crc;
+            int end = off + len;
+            for (; off + 8 <= end; off += 8) {
+                int low = c ^ ((b[off] & 0xFF) | (b[off + 1] & 0xFF) << 8 | (b[off + 2] & 0xFF) << 16 | (b[off + 3] & 0xFF) << 24);
+                c = TABLES[7][low & 0xFF] ^ TABLES[6][(low >>> 8) & 0xFF] ^ TABLES[5][(low >>> 16) & 0xFF] ^ TABLES[4][low >>> 24] ^
+                        TABLES[3][b[off + 4] & 0xFF] ^ TABLES[2][b[off + 5] & 0xFF] ^ TABLES[1][b[off + 6] & 0xFF] ^ TABLES[0][b[off + 7] & 0xFF];
+            }
+            for (; off < end; off++) {
+                c = (c >>> 8) ^ TABLES[0][(c ^ b[off]) & 0xFF];
+            }
+            crc = c;
+        }
+
+        public void update(ByteBuffer buffer)
+        {
+            while (buffer.hasRemaining()) {
+                int len = Math.min(chunk.length, buffer.remaining());
+                buffer.get(chunk, 0, len);
+                update(chunk, 0, len);
+            }
+        }
+
+        @Override
+        public long getValue()
+        {
+            return ~crc & 0xFFFFFFFFL;
+        }
+
+        @Override
+        public void reset()
+        {
+            crc = 0xFFFFFFFF;
+        }
+    }
+}
@@ -1,83 +1,208 @@
 package com.github.harbby;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 
 import static java.util.Objects.requireNonNull;
 
+/**
+ * Reads until an end flag (e.g. "\r\n--boundary") and stops there, the flag itself is consumed.
+ * <p>
+ * Input is read in large blocks into one reusable buffer and the flag is searched with Boyer-Moore-Horspool,
+ * so whole chunks up to the flag are returned at once. The last flag.length - 1 bytes of a block are held
+ * back until more input arrives, this handles a flag split across two reads.
+ * All reads of the underlying stream must go through this class, use {@link #readRawFully} to bypass the flag.
+ */
 public class EndFlagInputStream
         extends InputStream
 {
-    private byte[] endFlag;
+    private static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+
     private final InputStream in;
-    private int index;
+    private final byte[] buffer;
+    private final int[] skipTable = new int[256];
+    private int pos;
+    private int limit;
+    private boolean eof;
+    private byte[] endFlag;
     private boolean matched = false;
 
     EndFlagInputStream(InputStream in)
     {
-        this.in = in;
+        this(in, DEFAULT_BUFFER_SIZE);
+    }
+
+    EndFlagInputStream(InputStream in, int bufferSize)
+    {
+        this.in = requireNonNull(in, "in is null");
+        this.buffer = new byte[bufferSize];
     }
 
     public void initEndWith(byte[] endFlag)
     {
         this.endFlag = requireNonNull(endFlag, "endFlag is null");
+        if (endFlag.length == 0 || endFlag.length > buffer.length / 2) {
+            throw new IllegalArgumentException("bad endFlag length " + endFlag.length);
+        }
         this.matched = false;
-        this.index = 0;
+        int last = endFlag.length - 1;
+        for (int i = 0; i < skipTable.length; i++) {
+            skipTable[i] = endFlag.length;
+        }
+        for (int i = 0; i < last; i++) {
+            skipTable[endFlag[i] & 0xFF] = last - i;
+        }
     }
 
     @Override
     public int read()
             throws IOException
+    {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] arr, int off, int len)
+            throws IOException
+    {
+        if (len == 0) {
+            return 0;
+        }
+        int n = nextChunk();
+        if (n <= 0) {
+            return -1;
+        }
+        n = Math.min(n, len);
+        System.arraycopy(buffer, pos, arr, off, n);
+        pos += n;
+        return n;
+    }
+
+    /**
+     * write everything up to the end flag to the channel without copying it out of the buffer
+     */
+    public long transferTo(WritableByteChannel out)
+            throws IOException
+    {
+        long transferred = 0;
+        int n;
+        while ((n = nextChunk()) > 0) {
+            ByteBuffer chunk = ByteBuffer.wrap(buffer, pos, n);
+            while (chunk.hasRemaining()) {
+                out.write(chunk);
+            }
+            pos += n;
+            transferred += n;
+        }
+        return transferred;
+    }
+
+    /**
+     * true once the end flag was consumed, false if the input ended before it
+     */
+    public boolean isMatched()
+    {
+        return matched;
+    }
+
+    /**
+     * read exactly len bytes ignoring the end flag
+     */
+    public void readRawFully(byte[] arr, int off, int len)
+            throws IOException
+    {
+        while (len > 0) {
+            if (pos == limit && !fill()) {
+                throw new EOFException("unexpected end of stream");
+            }
+            int n = Math.min(len, limit - pos);
+            System.arraycopy(buffer, pos, arr, off, n);
+            pos += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * returns the count of data bytes at pos before the end flag, 0 or -1 when the flag is reached or input ended.
+     */
+    private int nextChunk()
+            throws IOException
     {
         if (matched) {
             return -1;
         }
-        int i;
-        in.mark(endFlag.length - index);
-        while ((i = in.read()) != -1) {
-            byte b = (byte) i;
-            if (endFlag[index] == b) {
-                index++;
-                if (index == endFlag.length) {
-                    matched = true;
-                    return -1;
-                }
+        int flagLength = endFlag.length;
+        while (true) {
+            int index = indexOf(pos, limit);
+            if (index == pos) {
+                pos += flagLength;
+                matched = true;
+                return -1;
+            }
+            if (index > pos) {
+                return index - pos;
             }
-            else {
-                index = 0;
-                in.reset();
-                return in.read();
+            // the tail might be the start of a flag split across reads, keep it
+            int safe = limit - pos - (flagLength - 1);
+            if (safe > 0) {
+                return safe;
+            }
+            if (!fill()) {
+                return limit - pos > 0 ? limit - pos : -1;
             }
         }
-        matched = false;
+    }
+
+    private int indexOf(int from, int to)
+    {
+        byte[] flag = endFlag;
+        int last = flag.length - 1;
+        int i = from;
+        while (i + last < to) {
+            int j = last;
+            while (buffer[i + j] == flag[j]) {
+                if (j == 0) {
+                    return i;
+                }
+                j--;
+            }
+            i += skipTable[buffer[i + last] & 0xFF];
+        }
         return -1;
     }
 
-    @Override
-    public int read(byte[] arr, int off, int len)
+    /**
+     * compact and read one more block, returns false at end of input
+     */
+    private boolean fill()
             throws IOException
     {
-        for (int i = 0; i < len; i++) {
-            int b = this.read();
-            if (b == -1) {
-                return i == 0 ? -1 : i;
-            }
-            arr[off + i] = (byte) b;
+        if (eof) {
+            return false;
         }
-        return len;
+        if (pos > 0) {
+            System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+            limit -= pos;
+            pos = 0;
+        }
+        int n = in.read(buffer, limit, buffer.length - limit);
+        if (n < 0) {
+            eof = true;
+            return false;
+        }
+        limit += n;
+        return true;
     }
 
-//    public static void main(String[] args)
-//            throws IOException
-//    {
-//        String input = "12345678aaa----aaa";
-//        EndFlagInputStream inputStream = new EndFlagInputStream(
-//                new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8)),
-//                "aaa".getBytes(StandardCharsets.UTF_8));
-//        byte[] bytes = IOUtils.readAllBytes(inputStream);
-//        System.out.println(new String(bytes));
-//        inputStream.reMatch();
-//        byte[] bytes2 = IOUtils.readAllBytes(inputStream);
-//        System.out.println(new String(bytes2));
-//    }
+    @Override
+    public void close()
+            throws IOException
+    {
+        in.close();
+    }
 }
@@ -0,0 +1,148 @@
+package com.github.harbby;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Builds ETag validators. By default a file tag is derived from size and mtime, when content hash
+ * is enabled it is a sha-256 of the file body, cached by path, size and mtime. Concurrent requests for
+ * the same version wait for one hash, files modified within the mtime granularity are hashed but not cached.
+ */
+public class EntityTags
+{
+    private static final int MAX_CACHED_HASHES = 10_000;
+    private static final long MTIME_GRANULARITY_MILLIS = 2000;
+
+    private final boolean contentHash;
+    private final Map<String, CachedHash> hashes = new LinkedHashMap<String, CachedHash>(16, 0.75f, true)
+    {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedHash> eldest)
+        {
+            return size() > MAX_CACHED_HASHES;
+        }
+    };
+    private final ConcurrentMap<String, CompletableFuture<String>> pending = new ConcurrentHashMap<>();
+
+    private static class CachedHash
+    {
+        private final long length;
+        private final long lastModified;
+        private final String tag;
+
+        private CachedHash(long length, long lastModified, String tag)
+        {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.tag = tag;
+        }
+    }
+
+    public EntityTags(boolean contentHash)
+    {
+        this.contentHash = contentHash;
+    }
+
+    public String fileTag(File file, long length, long lastModified)
+            throws IOException
+    {
+        if (!contentHash) {
+            return "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + "\"";
+        }
+        String key = file.getPath();
+        synchronized (hashes) {
+            CachedHash cached = hashes.get(key);
+            if (cached != null && cached.length == length && cached.lastModified == lastModified) {
+                return cached.tag;
+            }
+        }
+        String pendingKey = key + "\0" + length + "\0" + lastModified;
+        CompletableFuture<String> created = new CompletableFuture<>();
+        CompletableFuture<String> running = pending.putIfAbsent(pendingKey, created);
+        if (running != null) {
+            return await(running);
+        }
+        try {
+            String tag = "\"sha256-" + sha256(file) + "\"";
+            // a file written again within the granularity can keep its mtime, its hash is not reused
+            if (System.currentTimeMillis() - lastModified >= MTIME_GRANULARITY_MILLIS) {
+                synchronized (hashes) {
+                    hashes.put(key, new CachedHash(length, lastModified, tag));
+                }
+            }
+            created.complete(tag);
+            return tag;
+        }
+        catch (IOException | RuntimeException e) {
+            created.completeExceptionally(e);
+            throw e;
+        }
+        finally {
+            pending.remove(pendingKey, created);
+        }
+    }
+
+    private static String await(CompletableFuture<String> running)
+            throws IOException
+    {
+        try {
+            return running.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for the content hash");
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        }
+    }
+
+    /**
+     * directory listing also renders the mail history, so both versions take part in the tag
+     */
+    public static String dirTag(long lastModified, long historyVersion)
+    {
+        return "W/\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(historyVersion) + "\"";
+    }
+
+    private static String sha256(File file)
+            throws IOException
+    {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        try (FileInputStream in = new FileInputStream(file)) {
+            FileChannel channel = in.getChannel();
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        StringBuilder builder = new StringBuilder();
+        for (byte b : digest.digest()) {
+            builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return builder.toString();
+    }
+}
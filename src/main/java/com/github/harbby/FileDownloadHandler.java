@@ -1,182 +1,471 @@
 package com.github.harbby;
 
+import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
-import sun.misc.Unsafe;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.URI;
-import java.net.URLEncoder;
-import java.nio.channels.SocketChannel;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
-import java.time.LocalDateTime;
-import java.util.Arrays;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.Deflater;
 
 public class FileDownloadHandler
         implements HttpHandler
 {
-    private final String template;
+    private final Template template;
     private final String notFoundError;
     private final MailHandler mailHandler;
     private final FileUploadHandler fileUploadHandler;
+    private final EntityTags entityTags;
+    private final FileTransports fileTransports;
+    private final StateDirectory stateDirectory;
+    private final ResumableUploadHandler resumableUploadHandler;
+    private final ZipArchiver zipArchiver;
+    private final ArchiveCache archiveCache;
+    private final ListingCache listingCache;
+    private final JsonListing jsonListing;
+    private final ContentEncoding contentEncoding;
+    private final HotFileCache hotFileCache;
+    private final AccessLog accessLog;
+    private final Bandwidth bandwidth;
+    private final DigestIndex digestIndex;
+    private final SearchIndex searchIndex;
+    private final BatchArchive batchArchive;
 
-    private static final long wrappedFieldOffset;
-    private static final long outFieldOffset;
-    private static final long channelFieldOffset;
+    public FileDownloadHandler(String template, String notFoundError, MailHandler mailHandler, FileUploadHandler fileUploadHandler,
+            EntityTags entityTags, FileTransports fileTransports, StateDirectory stateDirectory, ResumableUploadHandler resumableUploadHandler,
+            ZipArchiver zipArchiver, ArchiveCache archiveCache, ListingCache listingCache, ContentEncoding contentEncoding,
+            HotFileCache hotFileCache, AccessLog accessLog, Bandwidth bandwidth, DigestIndex digestIndex, SearchIndex searchIndex,
+            BatchArchive batchArchive)
+    {
+        this.template = Template.compile(template);
+        this.notFoundError = notFoundError;
+        this.mailHandler = mailHandler;
+        this.fileUploadHandler = fileUploadHandler;
+        this.entityTags = entityTags;
+        this.fileTransports = fileTransports;
+        this.stateDirectory = stateDirectory;
+        this.resumableUploadHandler = resumableUploadHandler;
+        this.zipArchiver = zipArchiver;
+        this.archiveCache = archiveCache;
+        this.listingCache = listingCache;
+        this.jsonListing = new JsonListing(stateDirectory);
+        this.contentEncoding = contentEncoding;
+        this.hotFileCache = hotFileCache;
+        this.accessLog = accessLog;
+        this.bandwidth = bandwidth;
+        this.digestIndex = digestIndex;
+        this.searchIndex = searchIndex;
+        this.batchArchive = batchArchive;
+    }
 
-    static {
-        Unsafe unsafe = IOUtils.getUnsafe();
-        long wrappedFieldOffset0 = -1;
-        long outFieldOffset0 = -1;
-        long channelFieldOffset0 = -1;
+    /**
+     * zip options from the query: method=store|deflate|auto and level=0-9, defaults from the server settings
+     */
+    private void downloadDir(HttpExchange t, File inputPath, Map<String, String> query, Bandwidth.Pacer pacer)
+            throws IOException
+    {
+        ZipArchiver.Method method = zipArchiver.getDefaultMethod();
+        int level = zipArchiver.getDefaultLevel();
         try {
-            Class<?> tClass = Class.forName("sun.net.httpserver.PlaceholderOutputStream");
-            wrappedFieldOffset0 = unsafe.objectFieldOffset(tClass.getDeclaredField("wrapped"));
-            outFieldOffset0 = unsafe.objectFieldOffset(FilterOutputStream.class.getDeclaredField("out"));
-            tClass = Class.forName("sun.net.httpserver.Request$WriteStream");
-            channelFieldOffset0 = unsafe.objectFieldOffset(tClass.getDeclaredField("channel"));
-            System.out.println("enable zero copy mode succeed.");
+            if (query.containsKey("method")) {
+                method = ZipArchiver.Method.valueOf(query.get("method").toUpperCase(Locale.ROOT));
+            }
+            if (query.containsKey("level")) {
+                level = Integer.parseInt(query.get("level"));
+            }
+        }
+        catch (IllegalArgumentException e) {
+            t.sendResponseHeaders(400, -1);
+            t.getResponseBody().close();
+            return;
         }
-        catch (ClassNotFoundException | NoSuchFieldException | ClassCastException e) {
-            System.out.println("enable zero copy mode failed.");
-            e.printStackTrace();
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            t.sendResponseHeaders(400, -1);
+            t.getResponseBody().close();
+            return;
+        }
+        List<ZipArchiver.Source> sources = ZipArchiver.walk(inputPath, "", stateDirectory);
+        t.getResponseHeaders().set("Content-Type", "application/zip");
+        ArchiveCache.Population population = null;
+        if (archiveCache.isEnabled()) {
+            String key = ArchiveCache.key(inputPath, method + ":" + level);
+            String fingerprint = ArchiveCache.fingerprint(sources);
+            File cached = archiveCache.get(key, fingerprint);
+            if (cached != null) {
+                // a hit is a plain file: Content-Length, ranges and zero copy
+                sendEntity(t, cached, pacer);
+                return;
+            }
+            // the cache file is opened before the response starts, a cache that can't be written never fails the download
+            try {
+                population = archiveCache.populate(key, fingerprint);
+            }
+            catch (IOException e) {
+                System.out.println("cache archive of " + inputPath + " failed, sending it uncached: " + e);
+            }
+        }
+        if (population == null) {
+            t.sendResponseHeaders(200, 0);
+            try (OutputStream out = t.getResponseBody()) {
+                FileTransports.Transfer transfer = fileTransports.open(t, out);
+                logInfo("DOWNLOAD_DIR_" + method, transfer.getMode().name());
+                ZipWriter writer = new ZipWriter(pacer.pace(out), pacer.pace(transfer));
+                zipArchiver.write(sources, writer, method, level);
+                accessLog.bytes(writer.getOffset());
+            }
+            return;
+        }
+
+        t.sendResponseHeaders(200, 0);
+        try (ArchiveCache.Population cache = population;
+                OutputStream out = t.getResponseBody()) {
+            FileTransports.Transfer transfer = fileTransports.open(t, out);
+            logInfo("DOWNLOAD_DIR_" + method + "_CACHE_MISS", transfer.getMode().name());
+            ZipWriter writer = new ZipWriter(cache.tee(pacer.pace(out)), cache.tee(pacer.pace(transfer)));
+            zipArchiver.write(sources, writer, method, level);
+            accessLog.bytes(writer.getOffset());
+            cache.commit();
         }
-        wrappedFieldOffset = wrappedFieldOffset0;
-        outFieldOffset = outFieldOffset0;
-        channelFieldOffset = channelFieldOffset0;
     }
 
-    public FileDownloadHandler(String template, String notFoundError, MailHandler mailHandler, FileUploadHandler fileUploadHandler)
+    /**
+     * compressible types are negotiated: a precompressed sibling, streaming gzip, or the file as stored.
+     * A range request always gets the file as stored.
+     */
+    private void downloadFile(HttpExchange t, File inputPath, Bandwidth.Pacer pacer)
+            throws IOException
     {
-        this.template = template;
-        this.notFoundError = notFoundError;
-        this.mailHandler = mailHandler;
-        this.fileUploadHandler = fileUploadHandler;
+        String contentType = ContentEncoding.contentType(inputPath.getName());
+        if (contentType != null) {
+            t.getResponseHeaders().set("Content-Type", contentType);
+        }
+        if (!ContentEncoding.isCompressible(contentType)) {
+            sendEntity(t, inputPath, pacer);
+            return;
+        }
+        t.getResponseHeaders().set("Vary", "Accept-Encoding");
+        ContentEncoding.Sibling sibling = contentEncoding.findSibling(inputPath, t.getRequestHeaders());
+        if (sibling != null) {
+            t.getResponseHeaders().set("Content-Encoding", sibling.getCoding());
+            sendEntity(t, sibling.getFile(), pacer);
+        }
+        else if (t.getRequestHeaders().getFirst("Range") == null &&
+                contentEncoding.shouldGzip(t.getRequestHeaders(), contentType, inputPath.length())) {
+            sendGzip(t, inputPath, pacer);
+        }
+        else {
+            sendEntity(t, inputPath, pacer);
+        }
     }
 
-    private void downloadDir(HttpExchange t, File inputPath)
+    private void sendGzip(HttpExchange t, File inputPath, Bandwidth.Pacer pacer)
             throws IOException
     {
+        long fileLength = inputPath.length();
+        long lastModified = inputPath.lastModified();
+        String etag = ContentEncoding.encodedTag(entityTags.fileTag(inputPath, fileLength, lastModified), "gzip");
+        Headers responseHeaders = t.getResponseHeaders();
+        responseHeaders.set("Last-Modified", HttpUtils.formatDate(lastModified));
+        responseHeaders.set("ETag", etag);
+        if (HttpUtils.isNotModified(t.getRequestHeaders(), etag, lastModified)) {
+            sendNotModified(t, "DOWNLOAD_FILE_NOT_MODIFIED");
+            return;
+        }
+        responseHeaders.set("Content-Encoding", "gzip");
+        logInfo("DOWNLOAD_FILE", "GZIP");
         t.sendResponseHeaders(200, 0);
-        try (OutputStream out = t.getResponseBody();
-                ZipOutputStream zout = new ZipOutputStream(out)) {
-            downloadDir0(zout, inputPath, "");
+        CountingOutputStream body = new CountingOutputStream(t.getResponseBody());
+        try (FileInputStream fileInputStream = new FileInputStream(inputPath);
+                OutputStream os = contentEncoding.gzip(pacer.pace(body))) {
+            IOUtils.transferTo(fileInputStream.getChannel(), 0, fileLength, os);
         }
+        accessLog.bytes(body.getCount());
     }
 
-    private void downloadDir0(ZipOutputStream zout, File inputDir, String parent)
+    /**
+     * send a file as stored with validators and ranges, from the hot file cache when it holds the file
+     */
+    private void sendEntity(HttpExchange t, File inputPath, Bandwidth.Pacer pacer)
             throws IOException
     {
-        File[] files = inputDir.listFiles();
-        if (files == null) {
+        HotFileCache.Entry hot = hotFileCache.get(inputPath);
+        long fileLength = hot != null ? hot.getLength() : inputPath.length();
+        long lastModified = hot != null ? hot.getLastModified() : inputPath.lastModified();
+        String etag = hot != null ? hot.getEtag() : entityTags.fileTag(inputPath, fileLength, lastModified);
+        Headers responseHeaders = t.getResponseHeaders();
+        responseHeaders.set("Accept-Ranges", "bytes");
+        responseHeaders.set("Last-Modified", hot != null ? hot.getLastModifiedHeader() : HttpUtils.formatDate(lastModified));
+        responseHeaders.set("ETag", etag);
+        if (HttpUtils.isNotModified(t.getRequestHeaders(), etag, lastModified)) {
+            sendNotModified(t, "DOWNLOAD_FILE_NOT_MODIFIED");
             return;
         }
-        for (File file : files) {
-            String path = parent + "/" + file.getName();
-            if (file.isFile()) {
-                ZipEntry zipEntry = new ZipEntry(path);
-                zipEntry.setSize(file.length());
-                zipEntry.setTime(file.lastModified());
-                zout.putNextEntry(zipEntry);
-                try (FileInputStream in = new FileInputStream(file)) {
-                    IOUtils.transferTo(in, zout);
-                }
-                zout.closeEntry();
+        // digests of the stored file, not of a content coding
+        String digest = responseHeaders.containsKey("Content-Encoding") ? null : digestIndex.digestHeader(inputPath, fileLength, lastModified);
+        if (digest != null) {
+            responseHeaders.set("Digest", digest);
+        }
+
+        List<HttpRange> ranges = null;
+        String range = t.getRequestHeaders().getFirst("Range");
+        if (range != null && HttpUtils.checkIfRange(t.getRequestHeaders().getFirst("If-Range"), etag, lastModified)) {
+            ranges = HttpRange.parse(range, fileLength);
+        }
+        if (ranges == null) {
+            t.sendResponseHeaders(200, fileLength == 0 ? -1 : fileLength);
+            long count = sendFile(t, inputPath, hot, 200, Collections.singletonList(null), fileLength, null, null, pacer);
+            if (count != fileLength) {
+                System.out.println("download file " + inputPath.getPath() +
+                        " failed. transferTo count is " + count + " but file length is " + fileLength);
             }
-            else if (file.isDirectory()) {
-                ZipEntry zipEntry = new ZipEntry(path + "/");
-                zout.putNextEntry(zipEntry);
-                downloadDir0(zout, file, path);
-                zout.closeEntry();
+        }
+        else if (ranges.isEmpty()) {
+            logInfo("DOWNLOAD_FILE_RANGE_NOT_SATISFIABLE", null);
+            responseHeaders.set("Content-Range", "bytes */" + fileLength);
+            t.sendResponseHeaders(416, -1);
+            t.getResponseBody().close();
+        }
+        else if (ranges.size() == 1) {
+            HttpRange httpRange = ranges.get(0);
+            responseHeaders.set("Content-Range", httpRange.toContentRange(fileLength));
+            t.sendResponseHeaders(206, httpRange.length());
+            sendFile(t, inputPath, hot, 206, ranges, fileLength, null, null, pacer);
+        }
+        else {
+            String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong()) + Long.toHexString(System.nanoTime());
+            // each part keeps the type of the file, the response itself becomes the multipart
+            String partType = responseHeaders.containsKey("Content-Type") ? responseHeaders.getFirst("Content-Type") : "application/octet-stream";
+            responseHeaders.set("Content-Type", "multipart/byteranges; boundary=" + boundary);
+            long contentLength = ("\r\n--" + boundary + "--\r\n").length();
+            for (HttpRange httpRange : ranges) {
+                contentLength += partHeader(boundary, partType, httpRange, fileLength).length + httpRange.length();
             }
+            t.sendResponseHeaders(206, contentLength);
+            sendFile(t, inputPath, hot, 206, ranges, fileLength, boundary, partType, pacer);
         }
     }
 
-    private void downloadFile(HttpExchange t, File inputPath)
+    private static byte[] partHeader(String boundary, String partType, HttpRange range, long fileLength)
+    {
+        return ("\r\n--" + boundary + "\r\n" +
+                "Content-Type: " + partType + "\r\n" +
+                "Content-Range: " + range.toContentRange(fileLength) + "\r\n\r\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * send whole file (range is null) or ranges of file, multipart part headers are written
+     * through the response stream, the transport keeps them ordered with the file body.
+     */
+    private long sendFile(HttpExchange t, File inputPath, HotFileCache.Entry hot, int status, List<HttpRange> ranges, long fileLength, String boundary,
+            String partType, Bandwidth.Pacer pacer)
             throws IOException
     {
-        long fileLength = inputPath.length();
-        t.sendResponseHeaders(200, fileLength == 0 ? -1 : fileLength);
-        long count;
+        long count = 0;
+        if (hot != null) {
+            try (OutputStream os = t.getResponseBody()) {
+                logInfo("DOWNLOAD_FILE", "HOT_CACHE");
+                OutputStream body = pacer.pace(os);
+                for (HttpRange range : ranges) {
+                    long length = range == null ? fileLength : range.length();
+                    if (boundary != null) {
+                        os.write(partHeader(boundary, partType, range, fileLength));
+                    }
+                    hot.write(body, range == null ? 0 : range.getStart(), length);
+                    count += length;
+                }
+                if (boundary != null) {
+                    os.write(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            return count;
+        }
         try (OutputStream os = t.getResponseBody();
                 FileInputStream fileInputStream = new FileInputStream(inputPath)) {
-            if (channelFieldOffset == -1) {
-                logInfo(t, "DOWNLOAD_FILE_BY_BIO", 200);
-                count = IOUtils.transferTo(fileInputStream, os);
+            FileChannel fileChannel = fileInputStream.getChannel();
+            FileTransports.Transfer transfer = fileTransports.open(t, os);
+            logInfo("DOWNLOAD_FILE", transfer.getMode().name());
+            FileTransport.Sink sink = pacer.pace(transfer);
+            for (HttpRange range : ranges) {
+                long position = range == null ? 0 : range.getStart();
+                long length = range == null ? fileLength : range.length();
+                if (boundary != null) {
+                    os.write(partHeader(boundary, partType, range, fileLength));
+                }
+                count += sink.transferFrom(fileChannel, position, length);
             }
-            else {
-                // doZeroCopy
-                SocketChannel channel = getSocketChannel(os);
-                logInfo(t, "DOWNLOAD_FILE_BY_ZeroCopy", 200);
-                count = IOUtils.transferTo(fileInputStream.getChannel(), 0, fileLength, channel);
+            if (boundary != null) {
+                os.write(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.UTF_8));
             }
         }
-        if (count != fileLength) {
-            System.out.println("download file " + inputPath.getPath() +
-                    " failed. transferTo count is " + count + " but file length is " + fileLength);
+        return count;
+    }
+
+    /**
+     * the digest of a file as "hex  name" like sha256sum, with a Digest header. A digest that is not indexed yet is
+     * computed in the background, the request waits for it a little and otherwise gets 202 and Retry-After.
+     */
+    private void sendChecksum(HttpExchange t, File inputPath, String algorithmName)
+            throws IOException
+    {
+        DigestIndex.Algorithm algorithm = DigestIndex.Algorithm.of(algorithmName);
+        if (algorithm == null) {
+            logInfo("CHECKSUM_UNKNOWN_ALGORITHM", null);
+            t.sendResponseHeaders(400, -1);
+            t.getResponseBody().close();
+            return;
+        }
+        long fileLength = inputPath.length();
+        long lastModified = inputPath.lastModified();
+        String hex = digestIndex.lookup(inputPath, algorithm, fileLength, lastModified);
+        String mode = "INDEXED";
+        if (hex == null) {
+            mode = "COMPUTED";
+            try {
+                hex = digestIndex.compute(inputPath, algorithm, fileLength, lastModified).get(digestIndex.getWaitMillis(), TimeUnit.MILLISECONDS);
+            }
+            catch (TimeoutException e) {
+                // about 500MB/s per hashing thread
+                sendRetry(t, 202, "CHECKSUM", "PENDING", 1 + fileLength / (500L * 1024 * 1024));
+                return;
+            }
+            catch (RejectedExecutionException e) {
+                sendRetry(t, 503, "CHECKSUM", "QUEUE_FULL", 5);
+                return;
+            }
+            catch (ExecutionException e) {
+                sendRetry(t, 503, "CHECKSUM", "FAILED", 1);
+                return;
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for a digest");
+            }
+        }
+        String etag = "\"" + algorithm.getName() + "-" + hex + "\"";
+        Headers responseHeaders = t.getResponseHeaders();
+        responseHeaders.set("Content-Type", "text/plain; charset=utf-8");
+        responseHeaders.set("Last-Modified", HttpUtils.formatDate(lastModified));
+        responseHeaders.set("ETag", etag);
+        // every indexed digest of the file, a file modified within the mtime granularity is not indexed
+        String digest = digestIndex.digestHeader(inputPath, fileLength, lastModified);
+        responseHeaders.set("Digest", digest != null ? digest : algorithm.getDigestName() + "=" + DigestIndex.base64(hex));
+        if (HttpUtils.isNotModified(t.getRequestHeaders(), etag, lastModified)) {
+            sendNotModified(t, "CHECKSUM_NOT_MODIFIED");
+            return;
+        }
+        logInfo("CHECKSUM", mode);
+        byte[] body = (hex + "  " + inputPath.getName() + "\n").getBytes(StandardCharsets.UTF_8);
+        t.sendResponseHeaders(200, body.length);
+        try (OutputStream os = t.getResponseBody()) {
+            os.write(body);
         }
     }
 
-    private SocketChannel getSocketChannel(OutputStream os)
+    private void sendRetry(HttpExchange t, int status, String action, String mode, long retryAfterSeconds)
+            throws IOException
     {
-        Unsafe unsafe = IOUtils.getUnsafe();
-        Object wrapped = unsafe.getObject(os, wrappedFieldOffset);
-        Object outStream = unsafe.getObject(wrapped, outFieldOffset);
-        return (SocketChannel) unsafe.getObject(outStream, channelFieldOffset);
+        logInfo(action, mode);
+        t.getResponseHeaders().set("Retry-After", String.valueOf(retryAfterSeconds));
+        t.sendResponseHeaders(status, -1);
+        t.getResponseBody().close();
+    }
+
+    private void sendNotModified(HttpExchange t, String action)
+            throws IOException
+    {
+        logInfo(action, null);
+        t.sendResponseHeaders(304, -1);
+        t.getResponseBody().close();
     }
 
     private void listDirs(HttpExchange t, File inputPath)
             throws IOException
     {
-        StringBuilder builder = new StringBuilder();
-        File[] files = inputPath.listFiles();
-        if (files != null && files.length > 0) {
-            Arrays.sort(files, (f1, f2) -> {
-                int cmp = Boolean.compare(f2.isDirectory(), f1.isDirectory());
-                return cmp == 0 ? f1.getName().compareTo(f2.getName()) : cmp;
-            });
-            for (File file : files) {
-                String encodeName = URLEncoder.encode(file.getName(), "UTF-8").replace("+", "%20");
-                String name = file.getName();
-                if (file.isDirectory()) {
-                    encodeName += "/";
-                    name += "/";
-                }
-                builder.append(String.format("<li><a href=\"%s\">%s</a></li>\n", encodeName, name));
-            }
-        }
-        String response = template.replace("${files}", builder);
-        response = response.replace("${path}", t.getRequestURI().getPath());
-        response = response.replace("${upath}", t.getRequestURI().getRawPath());
-        String zipPath = t.getRequestURI().getRawPath();
-        zipPath = zipPath.substring(0, zipPath.length() - 1) + ".zip?&download_dir";
-        response = response.replace("${zip_path}", zipPath);
-        response = response.replace("${history}", mailHandler.getAllHistory());
-        byte[] rs = response.getBytes(StandardCharsets.UTF_8);
-        t.sendResponseHeaders(200, rs.length);
+        long lastModified = Math.max(inputPath.lastModified(), mailHandler.getLastModified());
+        String etag = EntityTags.dirTag(inputPath.lastModified(), mailHandler.getHistoryVersion());
+        boolean gzip = contentEncoding.acceptsGzip(t.getRequestHeaders());
+        if (gzip) {
+            etag = ContentEncoding.encodedTag(etag, "gzip");
+        }
+        t.getResponseHeaders().set("Vary", "Accept-Encoding");
+        t.getResponseHeaders().set("Last-Modified", HttpUtils.formatDate(lastModified));
+        t.getResponseHeaders().set("ETag", etag);
+        if (HttpUtils.isNotModified(t.getRequestHeaders(), etag, lastModified)) {
+            sendNotModified(t, "LIST_DIR_NOT_MODIFIED");
+            return;
+        }
+        if (!gzip) {
+            logInfo("LIST_DIR", null);
+            Map<String, byte[]> values = pageValues(t, listingCache.get(inputPath));
+            t.sendResponseHeaders(200, 0);
+            CountingOutputStream body = new CountingOutputStream(t.getResponseBody());
+            // the buffer merges the small segments, the listing fragment is written through as one chunk
+            try (OutputStream os = new BufferedOutputStream(body, 16 * 1024)) {
+                template.render(os, values);
+            }
+            accessLog.bytes(body.getCount());
+            return;
+        }
+
+        // the tag covers the directory and the mail history, the raw path the links in the page
+        String pageKey = etag + " " + t.getRequestURI().getRawPath();
+        byte[] page = listingCache.getPage(inputPath, pageKey);
+        logInfo(page == null ? "LIST_DIR_GZIP" : "LIST_DIR_GZIP_CACHED", null);
+        if (page == null) {
+            byte[] fragment = listingCache.get(inputPath);
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            try (OutputStream os = contentEncoding.gzip(buffer)) {
+                template.render(os, pageValues(t, fragment));
+            }
+            page = buffer.toByteArray();
+            listingCache.putPage(inputPath, fragment, pageKey, page);
+        }
+        t.getResponseHeaders().set("Content-Encoding", "gzip");
+        t.sendResponseHeaders(200, page.length);
         try (OutputStream os = t.getResponseBody()) {
-            os.write(rs);
+            os.write(page);
         }
     }
 
-    private void logInfo(HttpExchange t, String action, int status)
+    private Map<String, byte[]> pageValues(HttpExchange t, byte[] files)
     {
-        String resPath = t.getRequestURI().getPath();
-        System.out.printf("%s - [%s] - %s - %s - %s - %s%n",
-                t.getRemoteAddress().getAddress().getHostAddress(),
-                LocalDateTime.now(), t.getRequestMethod(), action, resPath, status);
+        Map<String, byte[]> values = new HashMap<>();
+        values.put("files", files);
+        values.put("path", HttpUtils.escapeHtml(t.getRequestURI().getPath()).getBytes(StandardCharsets.UTF_8));
+        String rawPath = t.getRequestURI().getRawPath();
+        values.put("upath", rawPath.getBytes(StandardCharsets.UTF_8));
+        values.put("zip_path", (rawPath.substring(0, rawPath.length() - 1) + ".zip?&download_dir").getBytes(StandardCharsets.UTF_8));
+        values.put("history", mailHandler.getHistoryHtml());
+        return values;
+    }
+
+    private void logInfo(String action, String mode)
+    {
+        accessLog.action(action, mode);
     }
 
     private void send404(HttpExchange t)
             throws IOException
     {
-        logInfo(t, "UNKNOWN", 404);
+        logInfo("UNKNOWN", null);
         t.getResponseHeaders().set("Content-Type", "text/html; charset=utf-8");
         t.getResponseHeaders().set("Server", "SimpleHTTPFileServer Java");
         byte[] bytes = notFoundError.getBytes(StandardCharsets.UTF_8);
@@ -185,36 +474,55 @@ public class FileDownloadHandler
         t.getResponseBody().close();
     }
 
-    private void doGet(HttpExchange t)
+    private void doGet(HttpExchange t, Map<String, String> query)
             throws IOException
     {
-        URI requestURI = t.getRequestURI();
-        String resPath = requestURI.getPath();
-        String query = requestURI.getQuery();
-        if ("&download_dir".equals(query) && resPath.endsWith(".zip")) {
+        String resPath = t.getRequestURI().getPath();
+        if (query.containsKey("download_dir") && resPath.endsWith(".zip")) {
             resPath = resPath.substring(0, resPath.length() - ".zip".length());
             File inputPath = new File(".", resPath);
-            if (!inputPath.exists()) {
+            if (!inputPath.isDirectory()) {
                 send404(t);
                 return;
             }
-            logInfo(t, "DOWNLOAD_DIR", 200);
-            downloadDir(t, new File(".", resPath));
+            try (Bandwidth.Pacer pacer = bandwidth.open(t, "zip")) {
+                downloadDir(t, inputPath, query, pacer);
+            }
             return;
         }
 
         File inputPath = new File(".", resPath);
-        if (!inputPath.exists()) {
-            send404(t);
+        if (query.containsKey("batch") && batchArchive.isEnabled() && inputPath.isDirectory()) {
+            try (Bandwidth.Pacer pacer = bandwidth.open(t, "zip")) {
+                batchArchive.get(t, inputPath, query, pacer);
+            }
             return;
         }
-        if (inputPath.isFile()) {
-            downloadFile(t, inputPath);
+        // a fresh hot file cache entry is served without touching the filesystem
+        if (query.containsKey("checksum") && inputPath.isFile()) {
+            sendChecksum(t, inputPath, query.get("checksum"));
+        }
+        else if (hotFileCache.isFresh(inputPath) || inputPath.isFile()) {
+            try (Bandwidth.Pacer pacer = bandwidth.open(t, "file")) {
+                downloadFile(t, inputPath, pacer);
+            }
+        }
+        else if (!inputPath.exists()) {
+            send404(t);
+        }
+        else if (query.containsKey("search") && searchIndex.isEnabled() && inputPath.isDirectory()) {
+            logInfo("SEARCH", searchIndex.isReady() ? null : "BUILDING");
+            searchIndex.send(t, query);
+        }
+        else if (query.containsKey("list")) {
+            // the route is a metrics label, it must not take the client's spelling
+            String format = query.get("list");
+            logInfo(format.isEmpty() || format.equals("json") ? "LIST_DIR_JSON" : format.equals("ndjson") ? "LIST_DIR_NDJSON" : "LIST_DIR_BAD_REQUEST", null);
+            jsonListing.send(t, inputPath, query);
         }
         else {
             t.getResponseHeaders().set("Content-Type", "text/html; charset=utf-8");
             t.getResponseHeaders().set("Server", "SimpleHTTPFileServer Java");
-            logInfo(t, "LIST_DIR", 200);
             listDirs(t, inputPath);
         }
     }
@@ -223,23 +531,68 @@ public class FileDownloadHandler
     public void handle(HttpExchange t)
             throws IOException
     {
+        accessLog.begin();
+        try {
+            dispatch(t);
+        }
+        finally {
+            accessLog.finish(t);
+        }
+    }
+
+    private void dispatch(HttpExchange t)
+            throws IOException
+    {
+        // the request path catches the state directory itself, canonicalization only a symlink into it. A fresh
+        // hot file cache entry passed the check when it was loaded and is served without touching the filesystem
+        URI requestURI = t.getRequestURI();
+        String path = requestURI.getPath();
+        File requested = new File(".", path);
         String method = t.getRequestMethod();
+        if (stateDirectory.containsRequestPath(path) ||
+                (!(method.equals("GET") && hotFileCache.isFresh(requested)) && stateDirectory.contains(requested))) {
+            send404(t);
+            return;
+        }
+        Map<String, String> params = HttpUtils.parseQuery(requestURI.getRawQuery());
+        if (params.containsKey("upload_session")) {
+            logInfo("UPLOAD_SESSION", null);
+            resumableUploadHandler.handle(t);
+            return;
+        }
         switch (method) {
             case "GET":
-                doGet(t);
+                if (params.containsKey("mail")) {
+                    logInfo("MAIL", null);
+                    mailHandler.handle(t);
+                    return;
+                }
+                doGet(t, params);
                 return;
             case "POST":
-                URI requestURI = t.getRequestURI();
                 String query = requestURI.getQuery();
-                if ("&upload".equals(query)) {
+                if (params.containsKey("upload")) {
+                    logInfo(params.containsKey("sha256") ? "UPLOAD_DIGEST" : "UPLOAD", null);
                     fileUploadHandler.handle(t);
                     return;
                 }
+                else if (params.containsKey("archive") && batchArchive.isEnabled()) {
+                    if (!requested.isDirectory()) {
+                        send404(t);
+                        return;
+                    }
+                    try (Bandwidth.Pacer pacer = bandwidth.open(t, "zip")) {
+                        batchArchive.post(t, requested, params, pacer);
+                    }
+                    return;
+                }
                 else if ("&mail".equals(query)) {
+                    logInfo("MAIL_POST", null);
                     mailHandler.handle(t);
                     return;
                 }
         }
+        logInfo("METHOD_NOT_ALLOWED", null);
         t.sendResponseHeaders(405, -1);
         t.getResponseBody().close();
     }
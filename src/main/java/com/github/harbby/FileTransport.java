@@ -0,0 +1,28 @@
+package com.github.harbby;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+
+/**
+ * A way to write file regions into a response body.
+ * It is bound to an exchange after sendResponseHeaders, bytes written through the response stream and
+ * through the sink are counted against the same Content-Length and can be interleaved.
+ */
+public interface FileTransport
+{
+    TransferMode getMode();
+
+    /**
+     * returns null if this transport cannot serve the exchange
+     */
+    Sink open(HttpExchange exchange, OutputStream body);
+
+    interface Sink
+    {
+        long transferFrom(FileChannel file, long position, long count)
+                throws IOException;
+    }
+}
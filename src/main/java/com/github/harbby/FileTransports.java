@@ -0,0 +1,129 @@
+package com.github.harbby;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Ordered list of file transports, the first one able to serve an exchange wins.
+ * Counts how many transfers each mode served, so a silent fallback is visible.
+ */
+public class FileTransports
+{
+    private final List<FileTransport> transports;
+    private final Map<TransferMode, LongAdder> transfers = new EnumMap<>(TransferMode.class);
+    private final Map<TransferMode, LongAdder> transferBytes = new EnumMap<>(TransferMode.class);
+
+    public FileTransports(List<FileTransport> transports)
+    {
+        List<FileTransport> list = new ArrayList<>(transports);
+        if (list.isEmpty() || list.get(list.size() - 1).getMode() != TransferMode.STREAM) {
+            list.add(new StreamTransport());
+        }
+        this.transports = Collections.unmodifiableList(list);
+        for (TransferMode mode : TransferMode.values()) {
+            transfers.put(mode, new LongAdder());
+            transferBytes.put(mode, new LongAdder());
+        }
+    }
+
+    /**
+     * parse a comma separated preference list such as "sendfile,mapped,stream"
+     */
+    public static FileTransports create(String preference)
+    {
+        List<FileTransport> list = new ArrayList<>();
+        for (String name : preference.split(",")) {
+            switch (name.trim().toLowerCase()) {
+                case "sendfile":
+                    SendfileTransport sendfileTransport = new SendfileTransport();
+                    if (sendfileTransport.getProbeError() == null) {
+                        System.out.println("enable zero copy mode succeed.");
+                    }
+                    else {
+                        System.out.println("enable zero copy mode for com.sun.net.httpserver failed. " + sendfileTransport.getProbeError());
+                    }
+                    list.add(sendfileTransport);
+                    break;
+                case "mapped":
+                    list.add(new MappedTransport());
+                    break;
+                case "stream":
+                    list.add(new StreamTransport());
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown file transport " + name);
+            }
+        }
+        return new FileTransports(list);
+    }
+
+    public Transfer open(HttpExchange exchange, OutputStream body)
+    {
+        for (FileTransport transport : transports) {
+            FileTransport.Sink sink = transport.open(exchange, body);
+            if (sink != null) {
+                TransferMode mode = transport.getMode();
+                transfers.get(mode).increment();
+                return new Transfer(mode, sink, transferBytes.get(mode));
+            }
+        }
+        throw new IllegalStateException("stream transport never refuses");
+    }
+
+    public long getTransferCount(TransferMode mode)
+    {
+        return transfers.get(mode).sum();
+    }
+
+    public long getTransferBytes(TransferMode mode)
+    {
+        return transferBytes.get(mode).sum();
+    }
+
+    public List<TransferMode> getModes()
+    {
+        List<TransferMode> modes = new ArrayList<>();
+        for (FileTransport transport : transports) {
+            modes.add(transport.getMode());
+        }
+        return modes;
+    }
+
+    public static class Transfer
+            implements FileTransport.Sink
+    {
+        private final TransferMode mode;
+        private final FileTransport.Sink sink;
+        private final LongAdder bytes;
+
+        private Transfer(TransferMode mode, FileTransport.Sink sink, LongAdder bytes)
+        {
+            this.mode = mode;
+            this.sink = sink;
+            this.bytes = bytes;
+        }
+
+        public TransferMode getMode()
+        {
+            return mode;
+        }
+
+        @Override
+        public long transferFrom(FileChannel file, long position, long count)
+                throws IOException
+        {
+            long transferred = sink.transferFrom(file, position, count);
+            bytes.add(transferred);
+            return transferred;
+        }
+    }
+}
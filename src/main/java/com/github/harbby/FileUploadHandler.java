@@ -3,20 +3,32 @@ package com.github.harbby;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 
-import java.io.BufferedInputStream;
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
+/**
+ * multipart/form-data uploads into dir/__upload__. With a {@link BlobStore} the parts are deduplicated, and
+ * POST /dir/?&upload&sha256=HEX&name=a.bin without a body links a.bin to stored content with that digest,
+ * 404 tells the client to upload it.
+ */
 public class FileUploadHandler
         implements HttpHandler
 {
+    private final BlobStore blobStore;
+
+    public FileUploadHandler(BlobStore blobStore)
+    {
+        this.blobStore = blobStore;
+    }
+
     @Override
     public void handle(HttpExchange exchange)
             throws IOException
@@ -29,16 +41,20 @@ public class FileUploadHandler
         String path = exchange.getRequestURI().getPath();
         File savePath = new File(".", path);
         if (!savePath.exists() || !savePath.isDirectory()) {
-            exchange.sendResponseHeaders(404, 0);
-            exchange.getResponseBody().write("upload dir not found".getBytes(StandardCharsets.UTF_8));
+            sendText(exchange, 404, "upload dir not found");
+            return;
+        }
+        Map<String, String> query = HttpUtils.parseQuery(exchange.getRequestURI().getRawQuery());
+        if (query.containsKey("sha256")) {
+            linkUpload(exchange, savePath, query.get("sha256"), query.get("name"));
             return;
         }
         // 获取请求体的输入流
         try (InputStream inputStream = exchange.getRequestBody()) {
-            //int contentSize = Integer.parseInt(exchange.getRequestHeaders().getFirst("Content-length"));
+            long contentLength = parseContentLength(exchange.getRequestHeaders().getFirst("Content-Length"));
             // 解析 multipart/form-data 请求体
             String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
-            Map<String, Long> parts = saveMultipart(inputStream, contentType, savePath);
+            Map<String, Long> parts = saveMultipart(inputStream, contentType, savePath, contentLength);
 
             // 返回响应
             String response = parts.isEmpty() ? "not found upload files!" : "File upload successful!";
@@ -47,6 +63,10 @@ public class FileUploadHandler
                 os.write(response.getBytes());
             }
         }
+        catch (UploadSink.InsufficientStorageException e) {
+            System.out.println(e.getMessage());
+            sendText(exchange, 507, "insufficient storage");
+        }
         catch (Exception e) {
             e.printStackTrace();
             // 返回500 Internal Server Error
@@ -54,6 +74,54 @@ public class FileUploadHandler
         }
     }
 
+    private void linkUpload(HttpExchange exchange, File savePath, String sha256, String name)
+            throws IOException
+    {
+        if (!BlobStore.isDigest(sha256) || name == null || name.isEmpty() || name.equals(".") || name.equals("..") ||
+                name.indexOf('/') != -1 || name.indexOf('\\') != -1) {
+            sendText(exchange, 400, "bad sha256 or file name");
+            return;
+        }
+        if (!blobStore.isEnabled()) {
+            sendText(exchange, 404, "unknown content");
+            return;
+        }
+        File uploadDir = new File(savePath, "__upload__");
+        if (!uploadDir.exists()) {
+            uploadDir.mkdir();
+        }
+        File saveFile = new File(uploadDir, name);
+        if (!blobStore.link(sha256, saveFile)) {
+            sendText(exchange, 404, "unknown content");
+            return;
+        }
+        System.out.printf("upload file %s linked to stored content %s\n", saveFile, sha256);
+        sendText(exchange, 200, "File upload successful!");
+    }
+
+    private static void sendText(HttpExchange exchange, int status, String text)
+            throws IOException
+    {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+
+    private static long parseContentLength(String value)
+    {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        }
+        catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
     private String readFileName(EndFlagInputStream reader)
             throws IOException
     {
@@ -80,10 +148,21 @@ public class FileUploadHandler
         }
     }
 
-    private void readTwoBytes(InputStream in, byte[] twoByteArray)
+    private void readTwoBytes(EndFlagInputStream in, byte[] twoByteArray)
+            throws IOException
+    {
+        in.readRawFully(twoByteArray, 0, 2);
+    }
+
+    private void checkAndSkip(EndFlagInputStream in, String skip)
             throws IOException
     {
-        IOUtils.readFully(in, twoByteArray, 0, 2);
+        byte[] expected = skip.getBytes(StandardCharsets.UTF_8);
+        byte[] actual = new byte[expected.length];
+        in.readRawFully(actual, 0, actual.length);
+        if (!Arrays.equals(expected, actual)) {
+            throw new IllegalStateException(String.format("skip %s failed", skip));
+        }
     }
 
     private void checkAndSkip(InputStream in, String skip)
@@ -96,9 +175,13 @@ public class FileUploadHandler
         }
     }
 
-    private Map<String, Long> saveMultipart(InputStream inputStream, String contentType, File savePath)
+    /**
+     * @param contentLength request body length or -1, it bounds every part and is checked against the free space
+     */
+    private Map<String, Long> saveMultipart(InputStream inputStream, String contentType, File savePath, long contentLength)
             throws IOException
     {
+        long remainingHint = contentLength;
         Map<String, Long> parts = new HashMap<>();
         String boundary = extractBoundary(contentType);
         String flag = "--" + boundary;
@@ -108,8 +191,7 @@ public class FileUploadHandler
         checkAndSkip(inputStream, "\r\n");
 
         byte[] twoByteArray = new byte[2];
-        try (BufferedInputStream bin = new BufferedInputStream(inputStream);
-                EndFlagInputStream endFlagInputStream = new EndFlagInputStream(bin)) {
+        try (EndFlagInputStream endFlagInputStream = new EndFlagInputStream(inputStream)) {
             while (true) {
                 // 读取 part 头部
                 endFlagInputStream.initEndWith("\r\n".getBytes());
@@ -120,21 +202,34 @@ public class FileUploadHandler
                 endFlagInputStream.initEndWith("\r\n".getBytes());
                 String fileType = readFileType(endFlagInputStream);
                 // skip \r\n
-                checkAndSkip(bin, "\r\n");
+                checkAndSkip(endFlagInputStream, "\r\n");
 
                 File uploadDir = new File(savePath, "__upload__");
                 if (!uploadDir.exists()) {
                     uploadDir.mkdir();
                 }
                 File saveFile = new File(uploadDir, partName);
-                try (FileOutputStream out = new FileOutputStream(saveFile, false)) {
+                try (UploadSink sink = new UploadSink(saveFile, remainingHint, blobStore.isEnabled())) {
                     endFlagInputStream.initEndWith(("\r\n" + flag).getBytes(StandardCharsets.UTF_8));
-                    long size = IOUtils.transferTo(endFlagInputStream, out);
-                    System.out.printf("upload file %s [%s] [size=%s] to %s\n", partName, fileType, size, saveFile);
+                    long size = endFlagInputStream.transferTo(sink);
+                    if (!endFlagInputStream.isMatched()) {
+                        throw new EOFException("upload " + partName + " interrupted after " + size + " bytes");
+                    }
+                    boolean deduplicated = false;
+                    if (blobStore.isEnabled()) {
+                        deduplicated = sink.commit(blobStore);
+                    }
+                    else {
+                        sink.commit();
+                    }
+                    System.out.printf("upload file %s [%s] [size=%s] to %s%s\n", partName, fileType, size, saveFile, deduplicated ? " (deduplicated)" : "");
                     parts.put(partName, size);
+                    if (remainingHint > 0) {
+                        remainingHint = Math.max(remainingHint - size, -1);
+                    }
                 }
 
-                readTwoBytes(bin, twoByteArray);
+                readTwoBytes(endFlagInputStream, twoByteArray);
                 switch (new String(twoByteArray, StandardCharsets.UTF_8)) {
                     case "\r\n":
                         break; // this found next part file
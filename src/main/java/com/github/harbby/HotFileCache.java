@@ -0,0 +1,416 @@
+package com.github.harbby;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps popular files in memory: files up to maxDirectFileBytes are copied into direct buffers, larger ones up to
+ * maxMappedFileBytes are memory mapped, each kind bounded by its own byte budget with lru eviction. Admission is
+ * TinyLFU style: a count-min sketch estimates how often every path was requested recently, a file is loaded on
+ * its second request at the earliest and only when it is requested more often than the entries it would evict.
+ * <p>
+ * An entry carries its length, mtime, ETag and Last-Modified header. A hit within revalidateMillis of the last
+ * check does no syscall at all, after that one stat compares mtime and size. Files modified within the mtime
+ * granularity are not admitted. Buffers are never unmapped or freed explicitly, a response still writing from
+ * an evicted entry keeps it alive until the garbage collector releases it. Evicted mappings count against the
+ * mapped budget until then, so live and evicted mappings together stay within twice the budget.
+ * A mapped file truncated between two checks faults on access, the response fails with an IOException and the
+ * entry is revalidated by the next request.
+ */
+public class HotFileCache
+{
+    private static final long MTIME_GRANULARITY_MILLIS = 2000;
+    private static final int MIN_FREQUENCY = 2;
+
+    private final long maxDirectBytes;
+    private final long maxMappedBytes;
+    private final long maxDirectFileBytes;
+    private final long maxMappedFileBytes;
+    private final long revalidateMillis;
+    private final EntityTags entityTags;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final FrequencySketch sketch = new FrequencySketch(1 << 16);
+    private long directBytes;
+    private long mappedBytes;
+    // evicted mappings not yet collected, a mapping is released once its buffer is unreachable
+    private final ReferenceQueue<ByteBuffer> releasedMappings = new ReferenceQueue<>();
+    private final Set<EvictedMapping> evictedMappings = new HashSet<>();
+    private long evictedMappedBytes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    public static class Entry
+    {
+        private final String key;
+        private final ByteBuffer buffer;
+        private final ByteBuffer content;
+        private final boolean mapped;
+        private final long length;
+        private final long lastModified;
+        private final String etag;
+        private final String lastModifiedHeader;
+        private volatile long checkedAt;
+
+        private Entry(String key, ByteBuffer buffer, boolean mapped, long lastModified, String etag, long checkedAt)
+        {
+            this.key = key;
+            this.buffer = buffer;
+            this.content = buffer.asReadOnlyBuffer();
+            this.mapped = mapped;
+            this.length = buffer.capacity();
+            this.lastModified = lastModified;
+            this.etag = etag;
+            this.lastModifiedHeader = HttpUtils.formatDate(lastModified);
+            this.checkedAt = checkedAt;
+        }
+
+        public long getLength()
+        {
+            return length;
+        }
+
+        public long getLastModified()
+        {
+            return lastModified;
+        }
+
+        public String getEtag()
+        {
+            return etag;
+        }
+
+        public String getLastModifiedHeader()
+        {
+            return lastModifiedHeader;
+        }
+
+        public boolean isMapped()
+        {
+            return mapped;
+        }
+
+        public void write(OutputStream out, long position, long count)
+                throws IOException
+        {
+            ByteBuffer view = content.duplicate();
+            view.position((int) position);
+            view.limit((int) (position + count));
+            try {
+                IOUtils.write(view, out);
+            }
+            catch (InternalError e) {
+                // the mapped file was truncated, the next request stats it and drops the entry
+                checkedAt = 0;
+                throw new IOException("hot file cache entry " + key + " changed on disk", e);
+            }
+        }
+    }
+
+    private static class EvictedMapping
+            extends WeakReference<ByteBuffer>
+    {
+        private final long length;
+
+        private EvictedMapping(Entry entry, ReferenceQueue<ByteBuffer> queue)
+        {
+            super(entry.buffer, queue);
+            this.length = entry.length;
+        }
+    }
+
+    public HotFileCache(long maxDirectBytes, long maxMappedBytes, long maxDirectFileBytes, long maxMappedFileBytes,
+            long revalidateMillis, EntityTags entityTags)
+    {
+        this.maxDirectBytes = maxDirectBytes;
+        this.maxMappedBytes = maxMappedBytes;
+        this.maxDirectFileBytes = Math.min(maxDirectFileBytes, maxDirectBytes);
+        this.maxMappedFileBytes = Math.min(Math.min(maxMappedFileBytes, maxMappedBytes), Integer.MAX_VALUE);
+        this.revalidateMillis = revalidateMillis;
+        this.entityTags = entityTags;
+    }
+
+    public boolean isEnabled()
+    {
+        return maxDirectBytes > 0 || maxMappedBytes > 0;
+    }
+
+    /**
+     * true when file has an entry that is answered without a stat, the request is not counted
+     */
+    public synchronized boolean isFresh(File file)
+    {
+        Entry entry = entries.isEmpty() ? null : entries.get(file.getPath());
+        return entry != null && System.currentTimeMillis() - entry.checkedAt < revalidateMillis;
+    }
+
+    /**
+     * count a request of file and return its entry, loaded now if the file was admitted. Null when the file is
+     * not cached, the caller reads it from disk.
+     */
+    public Entry get(File file)
+            throws IOException
+    {
+        if (!isEnabled()) {
+            return null;
+        }
+        String key = file.getPath();
+        Entry entry;
+        synchronized (this) {
+            sketch.increment(key);
+            entry = entries.get(key);
+        }
+        long now = System.currentTimeMillis();
+        if (entry != null && now - entry.checkedAt < revalidateMillis) {
+            hits.increment();
+            return entry;
+        }
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        }
+        catch (NoSuchFileException e) {
+            attributes = null;
+        }
+        if (entry != null) {
+            if (attributes != null && attributes.size() == entry.length && attributes.lastModifiedTime().toMillis() == entry.lastModified) {
+                entry.checkedAt = now;
+                hits.increment();
+                return entry;
+            }
+            remove(entry);
+            invalidations.increment();
+        }
+        misses.increment();
+        if (attributes == null || !attributes.isRegularFile()) {
+            return null;
+        }
+        long length = attributes.size();
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        boolean mapped = length > maxDirectFileBytes;
+        if (length == 0 || length > maxMappedFileBytes || now - lastModified < MTIME_GRANULARITY_MILLIS || !admit(key, length, mapped)) {
+            return null;
+        }
+        entry = new Entry(key, load(file, length, mapped), mapped, lastModified, entityTags.fileTag(file, length, lastModified), now);
+        return put(entry);
+    }
+
+    private static ByteBuffer load(File file, long length, boolean mapped)
+            throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (mapped) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            }
+            ByteBuffer buffer = ByteBuffer.allocateDirect((int) length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, buffer.position()) < 0) {
+                    throw new IOException("file " + file + " truncated while loading into the hot file cache");
+                }
+            }
+            buffer.flip();
+            return buffer;
+        }
+    }
+
+    /**
+     * the lru victims that make room for the candidate must all be requested less often than it is
+     */
+    private synchronized boolean admit(String key, long length, boolean mapped)
+    {
+        int frequency = sketch.frequency(key);
+        if (frequency < MIN_FREQUENCY) {
+            rejections.increment();
+            return false;
+        }
+        long needed = (mapped ? mappedBytes + pollEvictedMappings() : directBytes) + length - (mapped ? maxMappedBytes : maxDirectBytes);
+        for (Iterator<Entry> iterator = entries.values().iterator(); needed > 0 && iterator.hasNext(); ) {
+            Entry victim = iterator.next();
+            if (victim.mapped != mapped) {
+                continue;
+            }
+            if (sketch.frequency(victim.key) >= frequency) {
+                rejections.increment();
+                return false;
+            }
+            needed -= victim.length;
+        }
+        return true;
+    }
+
+    private synchronized Entry put(Entry entry)
+    {
+        Entry previous = entries.get(entry.key);
+        if (previous != null && previous.lastModified == entry.lastModified && previous.length == entry.length) {
+            // loaded concurrently by another request
+            return previous;
+        }
+        if (previous != null) {
+            remove(previous);
+        }
+        entries.put(entry.key, entry);
+        if (entry.mapped) {
+            mappedBytes += entry.length;
+        }
+        else {
+            directBytes += entry.length;
+        }
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while ((directBytes > maxDirectBytes || mappedBytes > maxMappedBytes) && iterator.hasNext()) {
+            Entry eldest = iterator.next().getValue();
+            if (eldest.mapped ? mappedBytes > maxMappedBytes : directBytes > maxDirectBytes) {
+                iterator.remove();
+                release(eldest);
+                evictions.increment();
+            }
+        }
+        return entry;
+    }
+
+    private synchronized void remove(Entry entry)
+    {
+        if (entries.remove(entry.key, entry)) {
+            release(entry);
+        }
+    }
+
+    private void release(Entry entry)
+    {
+        if (entry.mapped) {
+            mappedBytes -= entry.length;
+            evictedMappings.add(new EvictedMapping(entry, releasedMappings));
+            evictedMappedBytes += entry.length;
+        }
+        else {
+            directBytes -= entry.length;
+        }
+    }
+
+    /**
+     * forget the evicted mappings the garbage collector released and return the bytes of those still held
+     */
+    private long pollEvictedMappings()
+    {
+        for (EvictedMapping released = (EvictedMapping) releasedMappings.poll(); released != null; released = (EvictedMapping) releasedMappings.poll()) {
+            evictedMappings.remove(released);
+            evictedMappedBytes -= released.length;
+        }
+        return evictedMappedBytes;
+    }
+
+    public long getHits()
+    {
+        return hits.sum();
+    }
+
+    public long getMisses()
+    {
+        return misses.sum();
+    }
+
+    public long getRejections()
+    {
+        return rejections.sum();
+    }
+
+    public long getEvictions()
+    {
+        return evictions.sum();
+    }
+
+    public long getInvalidations()
+    {
+        return invalidations.sum();
+    }
+
+    public synchronized long getDirectBytes()
+    {
+        return directBytes;
+    }
+
+    public synchronized long getMappedBytes()
+    {
+        return mappedBytes;
+    }
+
+    public synchronized int getSize()
+    {
+        return entries.size();
+    }
+
+    /**
+     * count-min sketch of 4 bit counters in four rows. All counters are halved after 10 * width increments, so
+     * the estimate follows recent popularity instead of all time counts.
+     */
+    private static class FrequencySketch
+    {
+        private static final int[] SEEDS = {0x97cb3127, 0xb8d3c2a1, 0x6f5a8d13, 0xe1f0b74d};
+
+        private final byte[][] rows = new byte[SEEDS.length][];
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+        private FrequencySketch(int width)
+        {
+            for (int i = 0; i < rows.length; i++) {
+                rows[i] = new byte[width];
+            }
+            this.mask = width - 1;
+            this.sampleSize = 10 * width;
+        }
+
+        private int index(int hash, int row)
+        {
+            int h = (hash ^ SEEDS[row]) * 0x9e3779b9;
+            return (h ^ (h >>> 16)) & mask;
+        }
+
+        void increment(String key)
+        {
+            int hash = key.hashCode();
+            for (int row = 0; row < rows.length; row++) {
+                int index = index(hash, row);
+                if (rows[row][index] < 15) {
+                    rows[row][index]++;
+                }
+            }
+            if (++additions == sampleSize) {
+                for (byte[] counters : rows) {
+                    for (int i = 0; i < counters.length; i++) {
+                        counters[i] = (byte) (counters[i] >> 1);
+                    }
+                }
+                additions /= 2;
+            }
+        }
+
+        int frequency(String key)
+        {
+            int hash = key.hashCode();
+            int frequency = 15;
+            for (int row = 0; row < rows.length; row++) {
+                frequency = Math.min(frequency, rows[row][index(hash, row)]);
+            }
+            return frequency;
+        }
+    }
+}
@@ -0,0 +1,430 @@
+package com.github.harbby;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * HPACK header compression (RFC 7541) of {@link Http2Connection}. The decoder accepts everything a client may
+ * send, including Huffman coded strings. The encoder keeps response headers whose values repeat across streams
+ * (content-type, server, vary...) in its dynamic table so later responses send them as one byte, per-response
+ * values like date, etag or content-length are literals without indexing. It never Huffman codes.
+ */
+final class Hpack
+{
+    static final int DEFAULT_TABLE_SIZE = 4096;
+
+    private static final String[][] STATIC_TABLE = {
+            {":authority", ""}, {":method", "GET"}, {":method", "POST"}, {":path", "/"},
+            {":path", "/index.html"}, {":scheme", "http"}, {":scheme", "https"}, {":status", "200"},
+            {":status", "204"}, {":status", "206"}, {":status", "304"}, {":status", "400"},
+            {":status", "404"}, {":status", "500"}, {"accept-charset", ""}, {"accept-encoding", "gzip, deflate"},
+            {"accept-language", ""}, {"accept-ranges", ""}, {"accept", ""}, {"access-control-allow-origin", ""},
+            {"age", ""}, {"allow", ""}, {"authorization", ""}, {"cache-control", ""},
+            {"content-disposition", ""}, {"content-encoding", ""}, {"content-language", ""}, {"content-length", ""},
+            {"content-location", ""}, {"content-range", ""}, {"content-type", ""}, {"cookie", ""},
+            {"date", ""}, {"etag", ""}, {"expect", ""}, {"expires", ""},
+            {"from", ""}, {"host", ""}, {"if-match", ""}, {"if-modified-since", ""},
+            {"if-none-match", ""}, {"if-range", ""}, {"if-unmodified-since", ""}, {"last-modified", ""},
+            {"link", ""}, {"location", ""}, {"max-forwards", ""}, {"proxy-authenticate", ""},
+            {"proxy-authorization", ""}, {"range", ""}, {"referer", ""}, {"refresh", ""},
+            {"retry-after", ""}, {"server", ""}, {"set-cookie", ""}, {"strict-transport-security", ""},
+            {"transfer-encoding", ""}, {"user-agent", ""}, {"vary", ""}, {"via", ""},
+            {"www-authenticate", ""}
+    };
+
+    // RFC 7541 appendix B, code of each octet right aligned, EOS is 30 one bits
+    private static final int[] HUFFMAN_CODES = {
+            0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+            0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+            0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+            0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+            0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+            0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+            0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+            0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+            0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+            0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+            0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+            0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+            0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+            0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+            0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+            0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+            0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+            0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+            0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+            0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+            0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+            0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+            0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+            0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+            0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+            0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+            0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+            0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+            0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+            0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+            0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+            0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee
+    };
+    private static final byte[] HUFFMAN_LENGTHS = {
+            13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+            28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+            6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+            5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+            13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+            7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+            15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+            6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+            20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+            24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+            22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+            21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+            26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+            19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+            20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+            26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26
+    };
+
+    // decoding tree: node n has children at 2n and 2n + 1, a child > 0 is a node, < 0 the leaf of symbol -child - 1
+    private static final int[] HUFFMAN_TREE = buildHuffmanTree();
+
+    private static final Set<String> NOT_INDEXED = new HashSet<>(Arrays.asList("date", "content-length", "content-range",
+            "etag", "last-modified", "expires", "age", "digest", "content-disposition", "location", "set-cookie", "retry-after"));
+
+    private Hpack() {}
+
+    private static int[] buildHuffmanTree()
+    {
+        int[] tree = new int[2 * 512];
+        int nodes = 1;
+        for (int symbol = 0; symbol < 256; symbol++) {
+            int node = 0;
+            for (int bit = HUFFMAN_LENGTHS[symbol] - 1; bit >= 0; bit--) {
+                int child = 2 * node + ((HUFFMAN_CODES[symbol] >>> bit) & 1);
+                if (bit == 0) {
+                    tree[child] = -symbol - 1;
+                }
+                else {
+                    if (tree[child] == 0) {
+                        tree[child] = nodes++;
+                    }
+                    node = tree[child];
+                }
+            }
+        }
+        return tree;
+    }
+
+    /**
+     * entries newest first, sizes as defined by the rfc: name and value octets plus 32
+     */
+    private static class DynamicTable
+    {
+        private final List<String[]> entries = new ArrayList<>();
+        private int size;
+        private int maxSize;
+
+        private DynamicTable(int maxSize)
+        {
+            this.maxSize = maxSize;
+        }
+
+        private String[] get(int index)
+                throws IOException
+        {
+            if (index <= 0 || index > STATIC_TABLE.length + entries.size()) {
+                throw new IOException("header table index " + index + " out of range");
+            }
+            return index <= STATIC_TABLE.length ? STATIC_TABLE[index - 1] : entries.get(index - STATIC_TABLE.length - 1);
+        }
+
+        private void add(String name, String value)
+        {
+            int entrySize = name.length() + value.length() + 32;
+            evict(maxSize - entrySize);
+            if (entrySize <= maxSize) {
+                entries.add(0, new String[] {name, value});
+                size += entrySize;
+            }
+        }
+
+        private void setMaxSize(int maxSize)
+        {
+            this.maxSize = maxSize;
+            evict(maxSize);
+        }
+
+        private void evict(int targetSize)
+        {
+            while (size > Math.max(targetSize, 0) && !entries.isEmpty()) {
+                String[] entry = entries.remove(entries.size() - 1);
+                size -= entry[0].length() + entry[1].length() + 32;
+            }
+        }
+
+        /**
+         * index of the exact entry, or minus the index of an entry with that name, 0 when neither exists
+         */
+        private int find(String name, String value)
+        {
+            int nameIndex = 0;
+            for (int i = 0; i < STATIC_TABLE.length; i++) {
+                if (STATIC_TABLE[i][0].equals(name)) {
+                    if (STATIC_TABLE[i][1].equals(value)) {
+                        return i + 1;
+                    }
+                    if (nameIndex == 0) {
+                        nameIndex = -(i + 1);
+                    }
+                }
+            }
+            for (int i = 0; i < entries.size(); i++) {
+                String[] entry = entries.get(i);
+                if (entry[0].equals(name)) {
+                    if (entry[1].equals(value)) {
+                        return STATIC_TABLE.length + i + 1;
+                    }
+                    if (nameIndex == 0) {
+                        nameIndex = -(STATIC_TABLE.length + i + 1);
+                    }
+                }
+            }
+            return nameIndex;
+        }
+    }
+
+    /**
+     * a header block decoded to more than the advertised header list size, the dynamic table is still in sync
+     */
+    static class HeaderListTooLargeException
+            extends IOException
+    {
+        private static final long serialVersionUID = 1L;
+
+        HeaderListTooLargeException(String message)
+        {
+            super(message);
+        }
+    }
+
+    /**
+     * used by the selector thread only, header blocks must be decoded in the order they arrive
+     */
+    static class Decoder
+    {
+        private final DynamicTable table;
+        private final int maxTableSize;
+        private final int maxHeaderListSize;
+        private byte[] in;
+        private int position;
+        private int end;
+
+        Decoder(int maxTableSize, int maxHeaderListSize)
+        {
+            this.table = new DynamicTable(maxTableSize);
+            this.maxTableSize = maxTableSize;
+            this.maxHeaderListSize = maxHeaderListSize;
+        }
+
+        /**
+         * the names and values of a header block, alternating. A block is always decoded to its end to keep the
+         * dynamic table in sync, once the fields pass maxHeaderListSize (name, value and 32 bytes each, RFC 7540
+         * section 6.5.2) they are dropped and {@link HeaderListTooLargeException} is thrown at the end.
+         */
+        List<String> decode(byte[] block, int offset, int length)
+                throws IOException
+        {
+            in = block;
+            position = offset;
+            end = offset + length;
+            List<String> fields = new ArrayList<>();
+            long listSize = 0;
+            while (position < end) {
+                int b = in[position] & 0xFF;
+                String name;
+                String value;
+                if ((b & 0x80) != 0) {
+                    String[] entry = table.get(readInt(7));
+                    name = entry[0];
+                    value = entry[1];
+                }
+                else if ((b & 0xE0) == 0x20) {
+                    int size = readInt(5);
+                    if (size > maxTableSize) {
+                        throw new IOException("header table size " + size + " above the advertised " + maxTableSize);
+                    }
+                    table.setMaxSize(size);
+                    continue;
+                }
+                else {
+                    boolean indexed = (b & 0xC0) == 0x40;
+                    int nameIndex = readInt(indexed ? 6 : 4);
+                    name = nameIndex == 0 ? readString() : table.get(nameIndex)[0];
+                    value = readString();
+                    if (indexed) {
+                        table.add(name, value);
+                    }
+                }
+                listSize += name.length() + value.length() + 32;
+                if (listSize <= maxHeaderListSize) {
+                    fields.add(name);
+                    fields.add(value);
+                }
+            }
+            in = null;
+            if (listSize > maxHeaderListSize) {
+                throw new HeaderListTooLargeException("header list of " + listSize + " bytes above the advertised " + maxHeaderListSize);
+            }
+            return fields;
+        }
+
+        private int readInt(int prefixBits)
+                throws IOException
+        {
+            int mask = (1 << prefixBits) - 1;
+            int value = in[position++] & mask;
+            if (value < mask) {
+                return value;
+            }
+            for (int shift = 0; ; shift += 7) {
+                if (position == end || shift > 21) {
+                    throw new IOException("bad header integer");
+                }
+                int b = in[position++] & 0xFF;
+                value += (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+        }
+
+        private String readString()
+                throws IOException
+        {
+            if (position == end) {
+                throw new IOException("truncated header block");
+            }
+            boolean huffman = (in[position] & 0x80) != 0;
+            int length = readInt(7);
+            if (length > end - position) {
+                throw new IOException("truncated header block");
+            }
+            String value = huffman ? huffmanDecode(in, position, length) : new String(in, position, length, StandardCharsets.ISO_8859_1);
+            position += length;
+            return value;
+        }
+    }
+
+    static String huffmanDecode(byte[] in, int offset, int length)
+            throws IOException
+    {
+        StringBuilder out = new StringBuilder(length * 8 / 5);
+        int node = 0;
+        int depth = 0;
+        boolean allOnes = true;
+        for (int i = offset; i < offset + length; i++) {
+            for (int bit = 7; bit >= 0; bit--) {
+                int value = (in[i] >>> bit) & 1;
+                int child = HUFFMAN_TREE[2 * node + value];
+                if (child == 0) {
+                    throw new IOException("bad huffman code");
+                }
+                depth++;
+                allOnes &= value == 1;
+                if (child < 0) {
+                    out.append((char) (-child - 1));
+                    node = 0;
+                    depth = 0;
+                    allOnes = true;
+                }
+                else {
+                    node = child;
+                }
+            }
+        }
+        // the padding is a prefix of EOS, shorter than one octet
+        if (depth > 7 || !allOnes) {
+            throw new IOException("bad huffman padding");
+        }
+        return out.toString();
+    }
+
+    /**
+     * used under the write lock of the connection, header blocks must be sent in the order they are encoded
+     */
+    static class Encoder
+    {
+        private final DynamicTable table = new DynamicTable(DEFAULT_TABLE_SIZE);
+        private volatile int peerMaxTableSize = DEFAULT_TABLE_SIZE;
+
+        /**
+         * SETTINGS_HEADER_TABLE_SIZE of the peer, applied at the next header block
+         */
+        void setMaxTableSize(int size)
+        {
+            peerMaxTableSize = size;
+        }
+
+        /**
+         * names must be lower case
+         */
+        byte[] encode(List<String> fields)
+        {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+            int maxSize = Math.min(peerMaxTableSize, DEFAULT_TABLE_SIZE);
+            if (maxSize != table.maxSize) {
+                table.setMaxSize(maxSize);
+                writeInt(out, 0x20, 5, maxSize);
+            }
+            for (int i = 0; i < fields.size(); i += 2) {
+                String name = fields.get(i);
+                String value = fields.get(i + 1);
+                int index = table.find(name, value);
+                if (index > 0) {
+                    writeInt(out, 0x80, 7, index);
+                    continue;
+                }
+                boolean indexed = !NOT_INDEXED.contains(name);
+                writeInt(out, indexed ? 0x40 : 0x00, indexed ? 6 : 4, -index);
+                if (index == 0) {
+                    writeString(out, name);
+                }
+                writeString(out, value);
+                if (indexed) {
+                    table.add(name, value);
+                }
+            }
+            return out.toByteArray();
+        }
+
+        private static void writeInt(ByteArrayOutputStream out, int flags, int prefixBits, int value)
+        {
+            int mask = (1 << prefixBits) - 1;
+            if (value < mask) {
+                out.write(flags | value);
+                return;
+            }
+            out.write(flags | mask);
+            value -= mask;
+            while (value >= 0x80) {
+                out.write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out.write(value);
+        }
+
+        private static void writeString(ByteArrayOutputStream out, String value)
+        {
+            byte[] bytes = value.getBytes(StandardCharsets.ISO_8859_1);
+            writeInt(out, 0, 7, bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+    }
+}
@@ -0,0 +1,1036 @@
+package com.github.harbby;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.Headers;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * HTTP/2 over cleartext (h2c) for {@link NioHttpServer}, entered with the prior knowledge preface or by an
+ * HTTP/1.1 request with Upgrade: h2c.
+ * <p>
+ * Frames are read by the selector thread without blocking like HTTP/1.1 request heads, so an idle connection
+ * holds no thread, and every stream runs its exchange on the executor. Workers write their frames under one
+ * write lock, waiting for the socket and for the flow control windows of the peer. Frames the selector thread
+ * has to send (acks, resets, goaway) are queued and written by the next writer or a task on the executor, so the
+ * selector never waits for a socket. Request bodies are acknowledged with WINDOW_UPDATE as the handler consumes
+ * them, a slow consumer makes the client wait instead of the server buffer.
+ */
+class Http2Connection
+{
+    static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int PRIORITY = 0x2;
+    private static final int RST_STREAM = 0x3;
+    private static final int SETTINGS = 0x4;
+    private static final int PUSH_PROMISE = 0x5;
+    private static final int PING = 0x6;
+    private static final int GOAWAY = 0x7;
+    private static final int WINDOW_UPDATE = 0x8;
+    private static final int CONTINUATION = 0x9;
+
+    private static final int FLAG_END_STREAM = 0x1;
+    private static final int FLAG_ACK = 0x1;
+    private static final int FLAG_END_HEADERS = 0x4;
+    private static final int FLAG_PADDED = 0x8;
+    private static final int FLAG_PRIORITY = 0x20;
+
+    static final int NO_ERROR = 0x0;
+    static final int PROTOCOL_ERROR = 0x1;
+    static final int INTERNAL_ERROR = 0x2;
+    static final int FLOW_CONTROL_ERROR = 0x3;
+    static final int STREAM_CLOSED = 0x5;
+    static final int FRAME_SIZE_ERROR = 0x6;
+    static final int REFUSED_STREAM = 0x7;
+    static final int COMPRESSION_ERROR = 0x9;
+
+    private static final int DEFAULT_WINDOW = 65535;
+    private static final int DEFAULT_FRAME_SIZE = 16384;
+    private static final int MAX_HEADER_BLOCK = 64 * 1024;
+    private static final int MAX_QUEUED_CONTROL_FRAMES = 10_000;
+    static final int STREAM_WINDOW = 1024 * 1024;
+    private static final int CONNECTION_WINDOW = 4 * 1024 * 1024;
+    // bytes granted to one stream at a time, streams take turns on the socket in slices of this size
+    static final int MAX_DATA_SLICE = 256 * 1024;
+    private static final int MAX_STREAMS = Integer.getInteger("sfs.http2.maxStreams", 128);
+
+    private final NioHttpServer server;
+    private final NioConnection connection;
+    private final SocketChannel channel;
+    private final ByteBuffer readBuffer;
+    private final Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE, MAX_HEADER_BLOCK);
+    private final Map<Integer, Http2Exchange> streams = new ConcurrentHashMap<>();
+    private boolean prefaceReceived;
+    private int lastStreamId;
+    private int headerStream;
+    private int headerFlags;
+    private final ByteArrayOutputStream headerBlock = new ByteArrayOutputStream();
+    private final AtomicLong receiveWindow = new AtomicLong(CONNECTION_WINDOW);
+    private final AtomicLong unacknowledged = new AtomicLong();
+
+    // guarded by writeLock
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final Hpack.Encoder encoder = new Hpack.Encoder();
+    private final ByteBuffer frameHeaders = ByteBuffer.allocateDirect(9 * (MAX_DATA_SLICE / DEFAULT_FRAME_SIZE + 1));
+    private Selector writeSelector;
+
+    private final Queue<ByteBuffer> controlFrames = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queuedControlFrames = new AtomicInteger();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private volatile boolean closeAfterFlush;
+
+    // guarded by flowLock
+    private final ReentrantLock flowLock = new ReentrantLock();
+    private final Condition windowOpened = flowLock.newCondition();
+    private long sendWindow = DEFAULT_WINDOW;
+    private int peerInitialWindow = DEFAULT_WINDOW;
+
+    private volatile int peerMaxFrameSize = DEFAULT_FRAME_SIZE;
+    private volatile boolean goingAway;
+    private volatile boolean closed;
+    private volatile long lastActive = System.currentTimeMillis();
+
+    static class Http2Exception
+            extends IOException
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final int code;
+
+        Http2Exception(int code, String message)
+        {
+            super(message);
+            this.code = code;
+        }
+    }
+
+    Http2Connection(NioHttpServer server, NioConnection connection, ByteBuffer buffered)
+    {
+        this.server = server;
+        this.connection = connection;
+        this.channel = connection.getChannel();
+        this.readBuffer = ByteBuffer.allocate(Math.max(64 * 1024, buffered.remaining()));
+        readBuffer.put(buffered);
+        server.http2ConnectionOpened();
+    }
+
+    /**
+     * selector thread, prior knowledge: the channel is registered and the preface is buffered
+     */
+    void start()
+    {
+        queueControl(serverPreface());
+        onRegistered();
+    }
+
+    /**
+     * worker thread, after the 101 response to an Upgrade: h2c request. The channel is non-blocking and not
+     * registered yet, the request becomes stream 1 half closed by the client.
+     */
+    Http2Exchange upgrade(byte[] settings, NioConnection.RequestHead head)
+            throws IOException
+    {
+        applySettings(settings, 0, settings.length);
+        Headers headers = new Headers();
+        for (Map.Entry<String, List<String>> header : head.headers.entrySet()) {
+            String name = header.getKey().toLowerCase(Locale.ROOT);
+            if (!name.equals("connection") && !name.equals("upgrade") && !name.equals("http2-settings")) {
+                headers.put(header.getKey(), header.getValue());
+            }
+        }
+        lastStreamId = 1;
+        Http2Exchange exchange = new Http2Exchange(this, 1, head.method, head.uri, headers, server.findContext(head.uri.getPath()),
+                true, initialSendWindow());
+        streams.put(1, exchange);
+        server.http2StreamOpened();
+        writeLock.lock();
+        try {
+            writeFully(serverPreface());
+        }
+        finally {
+            writeLock.unlock();
+        }
+        return exchange;
+    }
+
+    /**
+     * selector thread, once the channel is registered: frames buffered before are processed now
+     */
+    void onRegistered()
+    {
+        try {
+            processFrames();
+        }
+        catch (Http2Exception e) {
+            goAway(e.code, e.getMessage());
+        }
+        catch (IOException | RuntimeException e) {
+            close();
+        }
+    }
+
+    /**
+     * selector thread
+     */
+    void onReadable()
+    {
+        if (closeAfterFlush) {
+            return;
+        }
+        try {
+            int n = channel.read(readBuffer);
+            if (n < 0) {
+                close();
+                return;
+            }
+            lastActive = System.currentTimeMillis();
+            processFrames();
+        }
+        catch (Http2Exception e) {
+            goAway(e.code, e.getMessage());
+        }
+        catch (IOException | RuntimeException e) {
+            close();
+        }
+    }
+
+    boolean isIdle(long now)
+    {
+        return !goingAway && streams.isEmpty() && now - lastActive > NioHttpServer.IDLE_TIMEOUT_MILLIS;
+    }
+
+    private ByteBuffer serverPreface()
+    {
+        ByteBuffer frames = ByteBuffer.allocate(9 + 18 + 9 + 4);
+        frames.put(frameHeader(18, SETTINGS, 0, 0));
+        frames.putShort((short) 0x3).putInt(MAX_STREAMS);
+        frames.putShort((short) 0x4).putInt(STREAM_WINDOW);
+        frames.putShort((short) 0x6).putInt(MAX_HEADER_BLOCK);
+        // the connection window is raised with an update, the setting only covers streams
+        frames.put(frameHeader(4, WINDOW_UPDATE, 0, 0)).putInt(CONNECTION_WINDOW - DEFAULT_WINDOW);
+        frames.flip();
+        return frames;
+    }
+
+    private void processFrames()
+            throws IOException
+    {
+        readBuffer.flip();
+        try {
+            while (!closeAfterFlush && readFrame()) {
+                // next frame
+            }
+        }
+        finally {
+            readBuffer.compact();
+        }
+    }
+
+    private boolean readFrame()
+            throws IOException
+    {
+        if (!prefaceReceived) {
+            if (readBuffer.remaining() < PREFACE.length) {
+                return false;
+            }
+            for (byte b : PREFACE) {
+                if (readBuffer.get() != b) {
+                    throw new Http2Exception(PROTOCOL_ERROR, "bad connection preface");
+                }
+            }
+            prefaceReceived = true;
+        }
+        if (readBuffer.remaining() < 9) {
+            return false;
+        }
+        int start = readBuffer.position();
+        int length = ((readBuffer.get(start) & 0xFF) << 16) | ((readBuffer.get(start + 1) & 0xFF) << 8) | (readBuffer.get(start + 2) & 0xFF);
+        if (length > DEFAULT_FRAME_SIZE) {
+            throw new Http2Exception(FRAME_SIZE_ERROR, "frame of " + length + " bytes");
+        }
+        if (readBuffer.remaining() < 9 + length) {
+            return false;
+        }
+        int type = readBuffer.get(start + 3) & 0xFF;
+        int flags = readBuffer.get(start + 4) & 0xFF;
+        int streamId = readBuffer.getInt(start + 5) & 0x7FFFFFFF;
+        readBuffer.position(start + 9 + length);
+        onFrame(type, flags, streamId, readBuffer.array(), readBuffer.arrayOffset() + start + 9, length);
+        return true;
+    }
+
+    private void onFrame(int type, int flags, int streamId, byte[] payload, int offset, int length)
+            throws IOException
+    {
+        if (headerStream != 0 && (type != CONTINUATION || streamId != headerStream)) {
+            throw new Http2Exception(PROTOCOL_ERROR, "expected CONTINUATION of stream " + headerStream);
+        }
+        switch (type) {
+            case DATA:
+                onData(flags, streamId, payload, offset, length);
+                break;
+            case HEADERS:
+                onHeaders(flags, streamId, payload, offset, length);
+                break;
+            case PRIORITY:
+                if (streamId == 0 || length != 5) {
+                    throw new Http2Exception(PROTOCOL_ERROR, "bad PRIORITY frame");
+                }
+                break;
+            case RST_STREAM:
+                if (streamId == 0 || length != 4) {
+                    throw new Http2Exception(PROTOCOL_ERROR, "bad RST_STREAM frame");
+                }
+                Http2Exchange reset = streams.remove(streamId);
+                if (reset != null) {
+                    reset.onReset();
+                    signalWindow();
+                }
+                break;
+            case SETTINGS:
+                if (streamId != 0 || length % 6 != 0 || ((flags & FLAG_ACK) != 0 && length != 0)) {
+                    throw new Http2Exception(PROTOCOL_ERROR, "bad SETTINGS frame");
+                }
+                if ((flags & FLAG_ACK) == 0) {
+                    applySettings(payload, offset, length);
+                    ByteBuffer ack = frame(SETTINGS, FLAG_ACK, 0, 0);
+                    ack.flip();
+                    queueControl(ack);
+                }
+                break;
+            case PUSH_PROMISE:
+                throw new Http2Exception(PROTOCOL_ERROR, "PUSH_PROMISE from a client");
+            case PING:
+                if (streamId != 0 || length != 8) {
+                    throw new Http2Exception(PROTOCOL_ERROR, "bad PING frame");
+                }
+                if ((flags & FLAG_ACK) == 0) {
+                    ByteBuffer pong = frame(PING, FLAG_ACK, 0, 8);
+                    pong.put(payload, offset, 8);
+                    pong.flip();
+                    queueControl(pong);
+                }
+                break;
+            case GOAWAY:
+                goingAway = true;
+                if (streams.isEmpty()) {
+                    close();
+                }
+                break;
+            case WINDOW_UPDATE:
+                onWindowUpdate(streamId, payload, offset, length);
+                break;
+            case CONTINUATION:
+                if (headerStream == 0) {
+                    throw new Http2Exception(PROTOCOL_ERROR, "CONTINUATION without HEADERS");
+                }
+                appendHeaderBlock(payload, offset, length, flags);
+                break;
+            default:
+                // unknown frame types are ignored
+        }
+    }
+
+    private void onHeaders(int flags, int streamId, byte[] payload, int offset, int length)
+            throws IOException
+    {
+        if (streamId == 0 || (streamId & 1) == 0) {
+            throw new Http2Exception(PROTOCOL_ERROR, "HEADERS on stream " + streamId);
+        }
+        int end = offset + length;
+        if ((flags & FLAG_PADDED) != 0) {
+            end -= payload[offset++] & 0xFF;
+        }
+        if ((flags & FLAG_PRIORITY) != 0) {
+            offset += 5;
+        }
+        if (end < offset) {
+            throw new Http2Exception(PROTOCOL_ERROR, "HEADERS padding exceeds the frame");
+        }
+        headerStream = streamId;
+        headerFlags = flags;
+        headerBlock.reset();
+        appendHeaderBlock(payload, offset, end - offset, flags);
+    }
+
+    private void appendHeaderBlock(byte[] payload, int offset, int length, int flags)
+            throws IOException
+    {
+        headerBlock.write(payload, offset, length);
+        if (headerBlock.size() > MAX_HEADER_BLOCK) {
+            throw new Http2Exception(PROTOCOL_ERROR, "header block larger than " + MAX_HEADER_BLOCK);
+        }
+        if ((flags & FLAG_END_HEADERS) != 0) {
+            int streamId = headerStream;
+            headerStream = 0;
+            onHeaderBlock(streamId, (headerFlags & FLAG_END_STREAM) != 0);
+        }
+    }
+
+    private void onHeaderBlock(int streamId, boolean endStream)
+            throws IOException
+    {
+        List<String> fields;
+        try {
+            fields = decoder.decode(headerBlock.toByteArray(), 0, headerBlock.size());
+        }
+        catch (Hpack.HeaderListTooLargeException e) {
+            // the advertised SETTINGS_MAX_HEADER_LIST_SIZE, only this stream fails
+            lastStreamId = Math.max(lastStreamId, streamId);
+            resetStream(streamId, PROTOCOL_ERROR);
+            return;
+        }
+        catch (IOException e) {
+            throw new Http2Exception(COMPRESSION_ERROR, e.getMessage());
+        }
+        Http2Exchange existing = streams.get(streamId);
+        if (existing != null) {
+            // trailers end the request body, their fields are dropped
+            if (!endStream) {
+                resetStream(streamId, PROTOCOL_ERROR);
+                return;
+            }
+            existing.onData(null, 0, 0, true, 0);
+            return;
+        }
+        if (streamId <= lastStreamId) {
+            throw new Http2Exception(STREAM_CLOSED, "HEADERS on closed stream " + streamId);
+        }
+        lastStreamId = streamId;
+        if (goingAway || streams.size() >= MAX_STREAMS) {
+            resetStream(streamId, REFUSED_STREAM);
+            return;
+        }
+        String method = null;
+        String path = null;
+        String authority = null;
+        Headers headers = new Headers();
+        List<String> cookies = new ArrayList<>();
+        for (int i = 0; i < fields.size(); i += 2) {
+            String name = fields.get(i);
+            String value = fields.get(i + 1);
+            if (name.equals(":method")) {
+                method = value;
+            }
+            else if (name.equals(":path")) {
+                path = value;
+            }
+            else if (name.equals(":authority")) {
+                authority = value;
+            }
+            else if (name.equals("cookie")) {
+                cookies.add(value);
+            }
+            else if (!name.startsWith(":")) {
+                headers.add(name, value);
+            }
+        }
+        if (method == null || path == null || path.isEmpty()) {
+            resetStream(streamId, PROTOCOL_ERROR);
+            return;
+        }
+        if (authority != null && !headers.containsKey("Host")) {
+            headers.add("Host", authority);
+        }
+        if (!cookies.isEmpty()) {
+            headers.add("Cookie", String.join("; ", cookies));
+        }
+        URI uri;
+        try {
+            uri = new URI(path);
+        }
+        catch (URISyntaxException e) {
+            resetStream(streamId, PROTOCOL_ERROR);
+            return;
+        }
+        Http2Exchange exchange = new Http2Exchange(this, streamId, method, uri, headers, server.findContext(uri.getPath()), endStream,
+                initialSendWindow());
+        streams.put(streamId, exchange);
+        server.http2StreamOpened();
+        try {
+            server.getExecutor().execute(() -> runExchange(exchange));
+        }
+        catch (RejectedExecutionException e) {
+            streams.remove(streamId);
+            resetStream(streamId, REFUSED_STREAM);
+        }
+    }
+
+    void runExchange(Http2Exchange exchange)
+    {
+        try {
+            NioHttpContext context = (NioHttpContext) exchange.getHttpContext();
+            if (context == null || context.getHandler() == null) {
+                exchange.sendResponseHeaders(404, -1);
+                exchange.close();
+                return;
+            }
+            if ("100-continue".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Expect")) && !exchange.isRemoteEnded()) {
+                List<String> fields = new ArrayList<>(2);
+                fields.add(":status");
+                fields.add("100");
+                writeHeaders(exchange, fields, false);
+            }
+            new Filter.Chain(context.getFilters(), context.getHandler()).doFilter(exchange);
+        }
+        catch (Throwable e) {
+            if (!(e instanceof IOException)) {
+                e.printStackTrace();
+            }
+            if (!exchange.isResponseSent()) {
+                try {
+                    // the handler's headers describe the response that failed, one may be what was refused
+                    exchange.getResponseHeaders().clear();
+                    exchange.sendResponseHeaders(500, -1);
+                    exchange.close();
+                    return;
+                }
+                catch (IOException ignored) {
+                }
+            }
+            resetStream(exchange.getStreamId(), INTERNAL_ERROR);
+        }
+    }
+
+    private void onData(int flags, int streamId, byte[] payload, int offset, int length)
+            throws IOException
+    {
+        if (streamId == 0) {
+            throw new Http2Exception(PROTOCOL_ERROR, "DATA on stream 0");
+        }
+        int end = offset + length;
+        if ((flags & FLAG_PADDED) != 0) {
+            end -= payload[offset++] & 0xFF;
+        }
+        if (end < offset) {
+            throw new Http2Exception(PROTOCOL_ERROR, "DATA padding exceeds the frame");
+        }
+        if (receiveWindow.addAndGet(-length) < 0) {
+            throw new Http2Exception(FLOW_CONTROL_ERROR, "connection receive window exceeded");
+        }
+        Http2Exchange stream = streams.get(streamId);
+        if (stream == null || stream.isRemoteEnded()) {
+            if (streamId > lastStreamId) {
+                throw new Http2Exception(PROTOCOL_ERROR, "DATA on idle stream " + streamId);
+            }
+            // a stream reset or answered before its body arrived, the bytes are dropped
+            consumed(length);
+            if (stream != null) {
+                resetStream(streamId, STREAM_CLOSED);
+            }
+            return;
+        }
+        int dataLength = end - offset;
+        consumed(length - dataLength);
+        if (!stream.onData(payload, offset, dataLength, (flags & FLAG_END_STREAM) != 0, length)) {
+            resetStream(streamId, FLOW_CONTROL_ERROR);
+        }
+    }
+
+    private void onWindowUpdate(int streamId, byte[] payload, int offset, int length)
+            throws IOException
+    {
+        if (length != 4) {
+            throw new Http2Exception(FRAME_SIZE_ERROR, "bad WINDOW_UPDATE frame");
+        }
+        int increment = ((payload[offset] & 0x7F) << 24) | ((payload[offset + 1] & 0xFF) << 16) | ((payload[offset + 2] & 0xFF) << 8) |
+                (payload[offset + 3] & 0xFF);
+        if (increment == 0) {
+            if (streamId == 0) {
+                throw new Http2Exception(PROTOCOL_ERROR, "window increment of 0");
+            }
+            resetStream(streamId, PROTOCOL_ERROR);
+            return;
+        }
+        boolean overflow = false;
+        flowLock.lock();
+        try {
+            if (streamId == 0) {
+                sendWindow += increment;
+                overflow = sendWindow > Integer.MAX_VALUE;
+            }
+            else {
+                Http2Exchange stream = streams.get(streamId);
+                if (stream != null) {
+                    stream.sendWindow += increment;
+                    overflow = stream.sendWindow > Integer.MAX_VALUE;
+                }
+            }
+            windowOpened.signalAll();
+        }
+        finally {
+            flowLock.unlock();
+        }
+        if (overflow && streamId == 0) {
+            throw new Http2Exception(FLOW_CONTROL_ERROR, "connection window above 2^31-1");
+        }
+        if (overflow) {
+            resetStream(streamId, FLOW_CONTROL_ERROR);
+        }
+    }
+
+    private void applySettings(byte[] payload, int offset, int length)
+            throws Http2Exception
+    {
+        for (int i = offset; i + 6 <= offset + length; i += 6) {
+            int id = ((payload[i] & 0xFF) << 8) | (payload[i + 1] & 0xFF);
+            long value = ((payload[i + 2] & 0xFFL) << 24) | ((payload[i + 3] & 0xFF) << 16) | ((payload[i + 4] & 0xFF) << 8) | (payload[i + 5] & 0xFF);
+            switch (id) {
+                case 0x1:
+                    encoder.setMaxTableSize((int) Math.min(value, Integer.MAX_VALUE));
+                    break;
+                case 0x2:
+                    if (value > 1) {
+                        throw new Http2Exception(PROTOCOL_ERROR, "SETTINGS_ENABLE_PUSH of " + value);
+                    }
+                    break;
+                case 0x4:
+                    if (value > Integer.MAX_VALUE) {
+                        throw new Http2Exception(FLOW_CONTROL_ERROR, "SETTINGS_INITIAL_WINDOW_SIZE of " + value);
+                    }
+                    flowLock.lock();
+                    try {
+                        int delta = (int) value - peerInitialWindow;
+                        // RFC 7540 section 6.9.2, a window pushed above 2^31-1 by the change is a connection error
+                        for (Http2Exchange stream : streams.values()) {
+                            if (stream.sendWindow + delta > Integer.MAX_VALUE) {
+                                throw new Http2Exception(FLOW_CONTROL_ERROR, "SETTINGS_INITIAL_WINDOW_SIZE of " + value + " overflows the window of stream " + stream.getStreamId());
+                            }
+                        }
+                        peerInitialWindow = (int) value;
+                        for (Http2Exchange stream : streams.values()) {
+                            stream.sendWindow += delta;
+                        }
+                        windowOpened.signalAll();
+                    }
+                    finally {
+                        flowLock.unlock();
+                    }
+                    break;
+                case 0x5:
+                    if (value < DEFAULT_FRAME_SIZE || value > 0xFFFFFF) {
+                        throw new Http2Exception(PROTOCOL_ERROR, "SETTINGS_MAX_FRAME_SIZE of " + value);
+                    }
+                    peerMaxFrameSize = (int) value;
+                    break;
+                default:
+                    // concurrent streams and header list size limit what we send, we never push and answer one list per request
+            }
+        }
+    }
+
+    private int initialSendWindow()
+    {
+        flowLock.lock();
+        try {
+            return peerInitialWindow;
+        }
+        finally {
+            flowLock.unlock();
+        }
+    }
+
+    /**
+     * request body bytes of the connection window were consumed, returned to the peer in batches
+     */
+    void consumed(long bytes)
+    {
+        if (bytes <= 0) {
+            return;
+        }
+        long pending = unacknowledged.addAndGet(bytes);
+        if (pending >= CONNECTION_WINDOW / 2 && unacknowledged.compareAndSet(pending, 0)) {
+            receiveWindow.addAndGet(pending);
+            queueControl(windowUpdate(0, (int) pending));
+        }
+    }
+
+    void windowUpdate(Http2Exchange stream, int increment)
+    {
+        queueControl(windowUpdate(stream.getStreamId(), increment));
+    }
+
+    private static ByteBuffer windowUpdate(int streamId, int increment)
+    {
+        ByteBuffer frame = frame(WINDOW_UPDATE, 0, streamId, 4);
+        frame.putInt(increment);
+        frame.flip();
+        return frame;
+    }
+
+    void resetStream(int streamId, int code)
+    {
+        Http2Exchange stream = streams.remove(streamId);
+        if (stream != null) {
+            stream.onReset();
+            signalWindow();
+        }
+        ByteBuffer frame = frame(RST_STREAM, 0, streamId, 4);
+        frame.putInt(code);
+        frame.flip();
+        queueControl(frame);
+    }
+
+    /**
+     * worker thread: the response of stream is complete
+     */
+    void streamFinished(Http2Exchange stream)
+    {
+        if (streams.remove(stream.getStreamId(), stream) && !stream.isRemoteEnded()) {
+            // the rest of the request body is not needed any more
+            resetStream(stream.getStreamId(), NO_ERROR);
+        }
+        if (goingAway && streams.isEmpty()) {
+            closeAfterFlush = true;
+            scheduleFlush();
+        }
+    }
+
+    /**
+     * connection error or idle: tell the peer the last stream processed and close once that is written
+     */
+    void goAway(int code, String message)
+    {
+        goingAway = true;
+        byte[] debug = message == null ? new byte[0] : message.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = frame(GOAWAY, 0, 0, 8 + debug.length);
+        frame.putInt(lastStreamId).putInt(code).put(debug);
+        frame.flip();
+        closeAfterFlush = true;
+        queueControl(frame);
+    }
+
+    /**
+     * reserve up to wanted bytes of the connection and stream send windows, waits while either is closed
+     */
+    int reserve(Http2Exchange stream, long wanted)
+            throws IOException
+    {
+        flowLock.lock();
+        try {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(NioHttpServer.IDLE_TIMEOUT_MILLIS);
+            while (true) {
+                if (closed) {
+                    throw new EOFException("connection closed");
+                }
+                if (stream.isReset()) {
+                    throw new IOException("stream " + stream.getStreamId() + " reset");
+                }
+                long available = Math.min(sendWindow, stream.sendWindow);
+                if (available > 0) {
+                    int granted = (int) Math.min(Math.min(wanted, available), MAX_DATA_SLICE);
+                    sendWindow -= granted;
+                    stream.sendWindow -= granted;
+                    return granted;
+                }
+                long wait = deadline - System.nanoTime();
+                if (wait <= 0) {
+                    throw new IOException("flow control window of stream " + stream.getStreamId() + " stayed closed");
+                }
+                windowOpened.awaitNanos(wait);
+            }
+        }
+        catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted waiting for the flow control window");
+        }
+        finally {
+            flowLock.unlock();
+        }
+    }
+
+    private void signalWindow()
+    {
+        flowLock.lock();
+        try {
+            windowOpened.signalAll();
+        }
+        finally {
+            flowLock.unlock();
+        }
+    }
+
+    int getPeerMaxFrameSize()
+    {
+        return peerMaxFrameSize;
+    }
+
+    /**
+     * worker thread: HEADERS and CONTINUATION frames of one header block, encoded under the write lock so the
+     * dynamic tables of both sides see blocks in the same order
+     */
+    void writeHeaders(Http2Exchange stream, List<String> fields, boolean endStream)
+            throws IOException
+    {
+        writeLock.lock();
+        try {
+            checkOpen(stream);
+            byte[] block = encoder.encode(fields);
+            int maxFrame = peerMaxFrameSize;
+            List<ByteBuffer> buffers = new ArrayList<>();
+            int offset = 0;
+            do {
+                int n = Math.min(maxFrame, block.length - offset);
+                boolean first = offset == 0;
+                int flags = (offset + n == block.length ? FLAG_END_HEADERS : 0) | (first && endStream ? FLAG_END_STREAM : 0);
+                buffers.add(frameHeader(n, first ? HEADERS : CONTINUATION, flags, stream.getStreamId()));
+                buffers.add(ByteBuffer.wrap(block, offset, n));
+                offset += n;
+            }
+            while (offset < block.length);
+            writeControl();
+            writeFully(buffers.toArray(new ByteBuffer[0]));
+        }
+        finally {
+            writeLock.unlock();
+        }
+        lastActive = System.currentTimeMillis();
+    }
+
+    /**
+     * worker thread: data as DATA frames of at most the peer frame size, in one gathering write per window slice.
+     * Heap, direct and mapped buffers all go to the socket without a copy on the heap.
+     */
+    void writeData(Http2Exchange stream, ByteBuffer data, boolean endStream)
+            throws IOException
+    {
+        if (!data.hasRemaining()) {
+            if (endStream) {
+                writeFrames(stream, data, true);
+            }
+            return;
+        }
+        while (data.hasRemaining()) {
+            int granted = reserve(stream, data.remaining());
+            ByteBuffer slice = data.duplicate();
+            slice.limit(slice.position() + granted);
+            data.position(data.position() + granted);
+            writeFrames(stream, slice, endStream && !data.hasRemaining());
+        }
+    }
+
+    private void writeFrames(Http2Exchange stream, ByteBuffer data, boolean endStream)
+            throws IOException
+    {
+        writeLock.lock();
+        try {
+            checkOpen(stream);
+            writeControl();
+            int maxFrame = peerMaxFrameSize;
+            int frames = Math.max(1, (data.remaining() + maxFrame - 1) / maxFrame);
+            ByteBuffer[] buffers = new ByteBuffer[frames * 2];
+            frameHeaders.clear();
+            for (int i = 0; i < frames; i++) {
+                int n = Math.min(maxFrame, data.remaining());
+                int headerStart = frameHeaders.position();
+                frameHeaders.put((byte) (n >>> 16)).put((byte) (n >>> 8)).put((byte) n).put((byte) DATA)
+                        .put((byte) (endStream && i == frames - 1 ? FLAG_END_STREAM : 0)).putInt(stream.getStreamId());
+                ByteBuffer header = frameHeaders.duplicate();
+                header.flip();
+                header.position(headerStart);
+                ByteBuffer payload = data.duplicate();
+                payload.limit(payload.position() + n);
+                data.position(data.position() + n);
+                buffers[2 * i] = header;
+                buffers[2 * i + 1] = payload;
+            }
+            writeFully(buffers);
+        }
+        finally {
+            writeLock.unlock();
+        }
+        lastActive = System.currentTimeMillis();
+    }
+
+    private void checkOpen(Http2Exchange stream)
+            throws IOException
+    {
+        if (closed) {
+            throw new EOFException("connection closed");
+        }
+        if (stream.isReset()) {
+            throw new IOException("stream " + stream.getStreamId() + " reset");
+        }
+    }
+
+    /**
+     * never blocks, the frame is written by the next writer or by a task on the executor
+     */
+    private void queueControl(ByteBuffer frame)
+    {
+        if (queuedControlFrames.incrementAndGet() > MAX_QUEUED_CONTROL_FRAMES) {
+            // the peer floods us with frames to answer and does not read the answers
+            close();
+            return;
+        }
+        controlFrames.add(frame);
+        scheduleFlush();
+    }
+
+    private void scheduleFlush()
+    {
+        if (flushScheduled.compareAndSet(false, true)) {
+            try {
+                server.getExecutor().execute(this::flushControl);
+            }
+            catch (RejectedExecutionException e) {
+                flushScheduled.set(false);
+                close();
+            }
+        }
+    }
+
+    private void flushControl()
+    {
+        flushScheduled.set(false);
+        writeLock.lock();
+        try {
+            writeControl();
+        }
+        catch (IOException e) {
+            close();
+        }
+        finally {
+            writeLock.unlock();
+        }
+        if (closeAfterFlush && (streams.isEmpty() || closed)) {
+            close();
+        }
+    }
+
+    private void writeControl()
+            throws IOException
+    {
+        ByteBuffer frame;
+        while ((frame = controlFrames.poll()) != null) {
+            queuedControlFrames.decrementAndGet();
+            writeFully(frame);
+        }
+    }
+
+    private void writeFully(ByteBuffer... buffers)
+            throws IOException
+    {
+        long remaining = 0;
+        for (ByteBuffer buffer : buffers) {
+            remaining += buffer.remaining();
+        }
+        while (remaining > 0) {
+            if (closed) {
+                closeWriteSelector();
+                throw new EOFException("connection closed");
+            }
+            long n = channel.write(buffers);
+            remaining -= n;
+            if (n == 0) {
+                awaitWritable();
+            }
+        }
+    }
+
+    private void awaitWritable()
+            throws IOException
+    {
+        if (writeSelector == null) {
+            writeSelector = Selector.open();
+            channel.register(writeSelector, SelectionKey.OP_WRITE);
+        }
+        long start = System.currentTimeMillis();
+        if (writeSelector.select(NioHttpServer.IDLE_TIMEOUT_MILLIS) == 0 && !closed &&
+                System.currentTimeMillis() - start >= NioHttpServer.IDLE_TIMEOUT_MILLIS) {
+            close();
+            throw new IOException("write timed out");
+        }
+        writeSelector.selectedKeys().clear();
+    }
+
+    private void closeWriteSelector()
+    {
+        if (writeSelector != null) {
+            try {
+                writeSelector.close();
+            }
+            catch (IOException ignored) {
+            }
+            writeSelector = null;
+        }
+    }
+
+    private static ByteBuffer frameHeader(int length, int type, int flags, int streamId)
+    {
+        ByteBuffer header = ByteBuffer.allocate(9);
+        header.put((byte) (length >>> 16)).put((byte) (length >>> 8)).put((byte) length).put((byte) type).put((byte) flags).putInt(streamId);
+        header.flip();
+        return header;
+    }
+
+    /**
+     * a frame with its header written, ready for a payload of length bytes
+     */
+    private static ByteBuffer frame(int type, int flags, int streamId, int length)
+    {
+        ByteBuffer frame = ByteBuffer.allocate(9 + length);
+        frame.put((byte) (length >>> 16)).put((byte) (length >>> 8)).put((byte) length).put((byte) type).put((byte) flags).putInt(streamId);
+        return frame;
+    }
+
+    InetSocketAddress getRemoteAddress()
+    {
+        return connection.getRemoteAddress();
+    }
+
+    InetSocketAddress getLocalAddress()
+    {
+        return connection.getLocalAddress();
+    }
+
+    SocketChannel getChannel()
+    {
+        return channel;
+    }
+
+    void close()
+    {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (Http2Exchange stream : streams.values()) {
+            stream.onReset();
+        }
+        streams.clear();
+        signalWindow();
+        Selector selector = writeSelector;
+        if (selector != null) {
+            selector.wakeup();
+        }
+        connection.close();
+        server.http2ConnectionClosed();
+    }
+}
@@ -0,0 +1,539 @@
+package com.github.harbby;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * One stream of an {@link Http2Connection}, run by a worker like {@link NioHttpExchange}. The response body is
+ * sent as DATA frames, file regions go out from mapped or direct buffers through {@link #openFileSink}.
+ */
+public class Http2Exchange
+        extends HttpExchange
+{
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final long MAP_WINDOW_SIZE = 16 * 1024 * 1024;
+    private static final ThreadLocal<ByteBuffer> READ_BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(Http2Connection.MAX_DATA_SLICE));
+
+    private final Http2Connection connection;
+    private final int streamId;
+    private final String method;
+    private final URI uri;
+    private final Headers requestHeaders;
+    private final HttpContext context;
+    private final Headers responseHeaders = new Headers();
+    private final Map<String, Object> attributes = new HashMap<>();
+    private final RequestBody requestBody = new RequestBody();
+    private final ResponseBody responseBody = new ResponseBody();
+    private InputStream userRequestBody;
+    private OutputStream userResponseBody;
+    private boolean responseSent;
+    private boolean finished;
+    private int responseCode = -1;
+
+    // guarded by requestBody
+    private final ArrayDeque<byte[]> received = new ArrayDeque<>();
+    private int receivedOffset;
+    private long receiveWindow = Http2Connection.STREAM_WINDOW;
+    private int unacknowledged;
+
+    private volatile boolean remoteEnded;
+    private volatile boolean reset;
+    // guarded by the flow lock of the connection
+    long sendWindow;
+
+    Http2Exchange(Http2Connection connection, int streamId, String method, URI uri, Headers requestHeaders, HttpContext context,
+            boolean remoteEnded, long sendWindow)
+    {
+        this.connection = connection;
+        this.streamId = streamId;
+        this.method = method;
+        this.uri = uri;
+        this.requestHeaders = requestHeaders;
+        this.context = context;
+        this.remoteEnded = remoteEnded;
+        this.sendWindow = sendWindow;
+    }
+
+    int getStreamId()
+    {
+        return streamId;
+    }
+
+    boolean isRemoteEnded()
+    {
+        return remoteEnded;
+    }
+
+    boolean isReset()
+    {
+        return reset;
+    }
+
+    boolean isResponseSent()
+    {
+        return responseSent;
+    }
+
+    /**
+     * selector thread: request body bytes, returns false when the peer overran the stream window
+     */
+    boolean onData(byte[] b, int off, int len, boolean endStream, int frameLength)
+    {
+        synchronized (requestBody) {
+            receiveWindow -= frameLength;
+            if (receiveWindow < 0) {
+                return false;
+            }
+            // padding is never read, acknowledge it with the next update
+            unacknowledged += frameLength - len;
+            if (len > 0) {
+                byte[] chunk = new byte[len];
+                System.arraycopy(b, off, chunk, 0, len);
+                received.add(chunk);
+            }
+            if (endStream) {
+                remoteEnded = true;
+            }
+            requestBody.notifyAll();
+        }
+        return true;
+    }
+
+    void onReset()
+    {
+        reset = true;
+        synchronized (requestBody) {
+            requestBody.notifyAll();
+        }
+    }
+
+    /**
+     * reset the stream, a write blocked on the flow control window fails with it
+     */
+    void abort()
+    {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        connection.resetStream(streamId, Http2Connection.INTERNAL_ERROR);
+    }
+
+    @Override
+    public Headers getRequestHeaders()
+    {
+        return requestHeaders;
+    }
+
+    @Override
+    public Headers getResponseHeaders()
+    {
+        return responseHeaders;
+    }
+
+    @Override
+    public URI getRequestURI()
+    {
+        return uri;
+    }
+
+    @Override
+    public String getRequestMethod()
+    {
+        return method;
+    }
+
+    @Override
+    public HttpContext getHttpContext()
+    {
+        return context;
+    }
+
+    @Override
+    public void close()
+    {
+        try {
+            if (!responseSent) {
+                abort();
+                return;
+            }
+            responseBody.close();
+        }
+        catch (IOException e) {
+            abort();
+        }
+    }
+
+    @Override
+    public InputStream getRequestBody()
+    {
+        return userRequestBody != null ? userRequestBody : requestBody;
+    }
+
+    @Override
+    public OutputStream getResponseBody()
+    {
+        return userResponseBody != null ? userResponseBody : responseBody;
+    }
+
+    @Override
+    public void sendResponseHeaders(int rCode, long responseLength)
+            throws IOException
+    {
+        if (responseSent) {
+            throw new IOException("headers already sent");
+        }
+        HttpUtils.checkHeaderValues(responseHeaders);
+        responseSent = true;
+        responseCode = rCode;
+        boolean noBody = rCode < 200 || rCode == 204 || rCode == 304;
+        long length;
+        if (noBody || "HEAD".equals(method)) {
+            if (noBody) {
+                responseHeaders.remove("Content-Length");
+            }
+            else if (responseLength > 0) {
+                responseHeaders.set("Content-Length", String.valueOf(responseLength));
+            }
+            length = 0;
+        }
+        else if (responseLength > 0) {
+            responseHeaders.set("Content-Length", String.valueOf(responseLength));
+            length = responseLength;
+        }
+        else if (responseLength == 0) {
+            // DATA frames until END_STREAM, no chunked encoding in http/2
+            length = Long.MAX_VALUE;
+        }
+        else {
+            responseHeaders.set("Content-Length", "0");
+            length = 0;
+        }
+        responseHeaders.set("Date", HttpUtils.formatDate(System.currentTimeMillis()));
+
+        List<String> fields = new ArrayList<>(2 + 2 * responseHeaders.size());
+        fields.add(":status");
+        fields.add(String.valueOf(rCode));
+        for (Map.Entry<String, List<String>> entry : responseHeaders.entrySet()) {
+            String name = entry.getKey().toLowerCase(Locale.ROOT);
+            // connection specific headers are not allowed in http/2
+            if (name.equals("connection") || name.equals("keep-alive") || name.equals("transfer-encoding") ||
+                    name.equals("upgrade") || name.equals("proxy-connection")) {
+                continue;
+            }
+            for (String value : entry.getValue()) {
+                fields.add(name);
+                fields.add(value);
+            }
+        }
+        responseBody.remaining = length;
+        connection.writeHeaders(this, fields, length == 0);
+        if (length == 0) {
+            responseBody.endSent = true;
+            responseBody.close();
+        }
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress()
+    {
+        return connection.getRemoteAddress();
+    }
+
+    @Override
+    public int getResponseCode()
+    {
+        return responseCode;
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress()
+    {
+        return connection.getLocalAddress();
+    }
+
+    @Override
+    public String getProtocol()
+    {
+        return "HTTP/2.0";
+    }
+
+    @Override
+    public Object getAttribute(String name)
+    {
+        return attributes.get(name);
+    }
+
+    @Override
+    public void setAttribute(String name, Object value)
+    {
+        attributes.put(name, value);
+    }
+
+    @Override
+    public void setStreams(InputStream i, OutputStream o)
+    {
+        if (i != null) {
+            userRequestBody = i;
+        }
+        if (o != null) {
+            userResponseBody = o;
+        }
+    }
+
+    @Override
+    public HttpPrincipal getPrincipal()
+    {
+        return null;
+    }
+
+    /**
+     * file regions as DATA frames without copying them to the heap: large ones from mapped windows, small ones
+     * read into a direct buffer, which is cheaper than mapping. Returns null if the body is not the raw stream
+     * (e.g. replaced by a filter).
+     */
+    FileTransport.Sink openFileSink(OutputStream body)
+    {
+        if (body != responseBody || !responseSent) {
+            return null;
+        }
+        return (file, position, count) -> {
+            ResponseBody out = responseBody;
+            if (count > out.remaining) {
+                throw new IOException("too many bytes to write to stream");
+            }
+            out.flushBuffer();
+            long end = Math.min(position + count, file.size());
+            long transferred = 0;
+            while (position + transferred < end) {
+                long left = end - position - transferred;
+                ByteBuffer data;
+                if (left > Http2Connection.MAX_DATA_SLICE) {
+                    MappedByteBuffer window = file.map(FileChannel.MapMode.READ_ONLY, position + transferred, Math.min(MAP_WINDOW_SIZE, left));
+                    data = window;
+                }
+                else {
+                    data = READ_BUFFER.get();
+                    data.clear();
+                    data.limit((int) left);
+                    while (data.hasRemaining()) {
+                        if (file.read(data, position + transferred + data.position()) < 0) {
+                            throw new EOFException("file truncated while sending");
+                        }
+                    }
+                    data.flip();
+                }
+                int n = data.remaining();
+                out.consume(n);
+                // the last bytes of a fixed length body end the stream, no empty frame needed
+                out.endSent = out.remaining == 0;
+                connection.writeData(this, data, out.endSent);
+                transferred += n;
+            }
+            return transferred;
+        };
+    }
+
+    private void finish()
+    {
+        if (!finished) {
+            finished = true;
+            connection.streamFinished(this);
+        }
+    }
+
+    private class RequestBody
+            extends InputStream
+    {
+        @Override
+        public int read()
+                throws IOException
+        {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len)
+                throws IOException
+        {
+            if (len == 0) {
+                return 0;
+            }
+            int n = 0;
+            synchronized (this) {
+                long deadline = System.currentTimeMillis() + NioHttpServer.IDLE_TIMEOUT_MILLIS;
+                while (received.isEmpty()) {
+                    if (reset) {
+                        throw new IOException("stream " + streamId + " reset before request body end");
+                    }
+                    if (remoteEnded) {
+                        return -1;
+                    }
+                    long wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0) {
+                        throw new IOException("request body of stream " + streamId + " timed out");
+                    }
+                    try {
+                        wait(wait);
+                    }
+                    catch (InterruptedException e) {
+                        throw new InterruptedIOException("interrupted reading the request body");
+                    }
+                }
+                while (n < len && !received.isEmpty()) {
+                    byte[] chunk = received.peek();
+                    int copy = Math.min(len - n, chunk.length - receivedOffset);
+                    System.arraycopy(chunk, receivedOffset, b, off + n, copy);
+                    n += copy;
+                    receivedOffset += copy;
+                    if (receivedOffset == chunk.length) {
+                        received.poll();
+                        receivedOffset = 0;
+                    }
+                }
+                unacknowledged += n;
+                if (unacknowledged >= Http2Connection.STREAM_WINDOW / 2 && !remoteEnded) {
+                    receiveWindow += unacknowledged;
+                    connection.windowUpdate(Http2Exchange.this, unacknowledged);
+                    unacknowledged = 0;
+                }
+            }
+            connection.consumed(n);
+            return n;
+        }
+
+        @Override
+        public int available()
+        {
+            synchronized (this) {
+                return received.isEmpty() ? 0 : received.peek().length - receivedOffset;
+            }
+        }
+    }
+
+    private class ResponseBody
+            extends OutputStream
+    {
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private int count;
+        private long remaining;
+        private boolean endSent;
+        private boolean closed;
+
+        private void check(int len)
+                throws IOException
+        {
+            if (!responseSent) {
+                throw new IOException("response headers not sent yet");
+            }
+            if (closed) {
+                throw new IOException("stream closed");
+            }
+            if (len > remaining) {
+                throw new IOException("too many bytes to write to stream");
+            }
+        }
+
+        private void consume(long len)
+        {
+            // Long.MAX_VALUE is a body without Content-Length
+            if (remaining != Long.MAX_VALUE) {
+                remaining -= len;
+            }
+        }
+
+        @Override
+        public void write(int b)
+                throws IOException
+        {
+            check(1);
+            if (count == buffer.length) {
+                flushBuffer();
+            }
+            buffer[count++] = (byte) b;
+            consume(1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len)
+                throws IOException
+        {
+            check(len);
+            consume(len);
+            if (len >= buffer.length) {
+                flushBuffer();
+                connection.writeData(Http2Exchange.this, ByteBuffer.wrap(b, off, len), false);
+                return;
+            }
+            if (count + len > buffer.length) {
+                flushBuffer();
+            }
+            System.arraycopy(b, off, buffer, count, len);
+            count += len;
+        }
+
+        private void flushBuffer()
+                throws IOException
+        {
+            if (count > 0) {
+                int len = count;
+                count = 0;
+                connection.writeData(Http2Exchange.this, ByteBuffer.wrap(buffer, 0, len), false);
+            }
+        }
+
+        @Override
+        public void flush()
+                throws IOException
+        {
+            if (responseSent && !closed) {
+                flushBuffer();
+            }
+        }
+
+        @Override
+        public void close()
+                throws IOException
+        {
+            if (!responseSent) {
+                Http2Exchange.this.close();
+                return;
+            }
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (remaining > 0 && remaining != Long.MAX_VALUE) {
+                abort();
+                throw new IOException("insufficient bytes written to stream");
+            }
+            if (!endSent) {
+                endSent = true;
+                int len = count;
+                count = 0;
+                connection.writeData(Http2Exchange.this, ByteBuffer.wrap(buffer, 0, len), true);
+            }
+            finish();
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.github.harbby;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A satisfiable byte range of a representation, both ends inclusive (RFC 7233).
+ */
+public class HttpRange
+{
+    private static final int MAX_RANGES = 64;
+
+    private final long start;
+    private final long end;
+
+    private HttpRange(long start, long end)
+    {
+        this.start = start;
+        this.end = end;
+    }
+
+    public long getStart()
+    {
+        return start;
+    }
+
+    public long getEnd()
+    {
+        return end;
+    }
+
+    public long length()
+    {
+        return end - start + 1;
+    }
+
+    public String toContentRange(long totalLength)
+    {
+        return "bytes " + start + "-" + end + "/" + totalLength;
+    }
+
+    /**
+     * return null when the header should be ignored (unknown unit or malformed),
+     * an empty list when no range is satisfiable, otherwise sorted and coalesced ranges.
+     */
+    public static List<HttpRange> parse(String header, long length)
+    {
+        if (header == null || !header.startsWith("bytes=")) {
+            return null;
+        }
+        String[] specs = header.substring("bytes=".length()).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+        List<HttpRange> ranges = new ArrayList<>(specs.length);
+        for (String spec : specs) {
+            spec = spec.trim();
+            int split = spec.indexOf('-');
+            if (split < 0) {
+                return null;
+            }
+            long start;
+            long end;
+            if (split == 0) {
+                // suffix-byte-range-spec: last N bytes
+                long suffix = parseDigits(spec.substring(1));
+                if (suffix < 0) {
+                    return null;
+                }
+                if (suffix == 0 || length == 0) {
+                    continue;
+                }
+                start = Math.max(0, length - suffix);
+                end = length - 1;
+            }
+            else {
+                start = parseDigits(spec.substring(0, split));
+                end = split == spec.length() - 1 ? Long.MAX_VALUE : parseDigits(spec.substring(split + 1));
+                if (start < 0 || end < start) {
+                    return null;
+                }
+                if (start >= length) {
+                    continue;
+                }
+                end = Math.min(end, length - 1);
+            }
+            ranges.add(new HttpRange(start, end));
+        }
+        return coalesce(ranges);
+    }
+
+    /**
+     * digits only, Long.parseLong would also take a sign. -1 when malformed or too large
+     */
+    private static long parseDigits(String value)
+    {
+        if (value.isEmpty()) {
+            return -1;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+        }
+        try {
+            return Long.parseLong(value);
+        }
+        catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static List<HttpRange> coalesce(List<HttpRange> ranges)
+    {
+        if (ranges.size() < 2) {
+            return ranges;
+        }
+        Collections.sort(ranges, (r1, r2) -> Long.compare(r1.start, r2.start));
+        List<HttpRange> merged = new ArrayList<>(ranges.size());
+        HttpRange last = ranges.get(0);
+        for (int i = 1; i < ranges.size(); i++) {
+            HttpRange range = ranges.get(i);
+            if (range.start <= last.end + 1) {
+                last = new HttpRange(last.start, Math.max(last.end, range.end));
+            }
+            else {
+                merged.add(last);
+                last = range;
+            }
+        }
+        merged.add(last);
+        return merged;
+    }
+}
@@ -0,0 +1,213 @@
+package com.github.harbby;
+
+import com.sun.net.httpserver.Headers;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class HttpUtils
+{
+    private HttpUtils() {}
+
+    public static String formatDate(long epochMillis)
+    {
+        return DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochMilli(epochMillis).atOffset(ZoneOffset.UTC));
+    }
+
+    /**
+     * return epoch millis, or -1 if the value is not a valid HTTP-date
+     */
+    public static long parseDate(String value)
+    {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Instant.from(DateTimeFormatter.RFC_1123_DATE_TIME.parse(value.trim())).toEpochMilli();
+        }
+        catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * If-Range only allows strong validators: an entity tag must match the strong current tag,
+     * an HTTP-date must exactly match Last-Modified (second precision).
+     */
+    public static boolean checkIfRange(String ifRange, String etag, long lastModified)
+    {
+        if (ifRange == null) {
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return !etag.startsWith("W/") && ifRange.equals(etag);
+        }
+        long date = parseDate(ifRange);
+        return date != -1 && date / 1000 == lastModified / 1000;
+    }
+
+    /**
+     * evaluate If-None-Match and If-Modified-Since of a GET request (RFC 7232 section 6),
+     * If-Modified-Since is ignored when If-None-Match is present.
+     */
+    public static boolean isNotModified(Headers requestHeaders, String etag, long lastModified)
+    {
+        String ifNoneMatch = requestHeaders.getFirst("If-None-Match");
+        if (ifNoneMatch != null) {
+            return matchesAny(ifNoneMatch, etag);
+        }
+        long ifModifiedSince = parseDate(requestHeaders.getFirst("If-Modified-Since"));
+        return ifModifiedSince != -1 && lastModified / 1000 <= ifModifiedSince / 1000;
+    }
+
+    private static boolean matchesAny(String ifNoneMatch, String etag)
+    {
+        String opaqueTag = stripWeak(etag);
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if ("*".equals(tag) || stripWeak(tag).equals(opaqueTag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String stripWeak(String tag)
+    {
+        return tag.startsWith("W/") ? tag.substring(2) : tag;
+    }
+
+    /**
+     * parse a raw query like "&upload_session=abc&chunk=3", a name without '=' maps to "".
+     */
+    public static Map<String, String> parseQuery(String rawQuery)
+    {
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        Map<String, String> params = new LinkedHashMap<>();
+        for (String pair : rawQuery.split("&")) {
+            if (pair.isEmpty()) {
+                continue;
+            }
+            int index = pair.indexOf('=');
+            String name = index == -1 ? pair : pair.substring(0, index);
+            String value = index == -1 ? "" : pair.substring(index + 1);
+            params.putIfAbsent(decode(name), decode(value));
+        }
+        return params;
+    }
+
+    private static String decode(String value)
+    {
+        try {
+            return URLDecoder.decode(value, "UTF-8");
+        }
+        catch (UnsupportedEncodingException | IllegalArgumentException e) {
+            return value;
+        }
+    }
+
+    /**
+     * quote and escape a string as a json string literal
+     */
+    public static String toJsonString(String value)
+    {
+        StringBuilder builder = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    builder.append("\\\"");
+                    break;
+                case '\\':
+                    builder.append("\\\\");
+                    break;
+                case '\n':
+                    builder.append("\\n");
+                    break;
+                case '\r':
+                    builder.append("\\r");
+                    break;
+                case '\t':
+                    builder.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        builder.append(String.format("\\u%04x", (int) c));
+                    }
+                    else {
+                        builder.append(c);
+                    }
+            }
+        }
+        return builder.append('"').toString();
+    }
+
+    /**
+     * the own engines write header values as latin-1 text. Like the JDK Headers, a CR or LF (a forged header
+     * or response split) is refused, and so is a char latin-1 would turn into '?'.
+     */
+    public static void checkHeaderValues(Headers headers)
+    {
+        for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+            for (String value : entry.getValue()) {
+                for (int i = 0; i < value.length(); i++) {
+                    char c = value.charAt(i);
+                    if (c == '\r' || c == '\n' || c > 0xFF) {
+                        throw new IllegalArgumentException("illegal character in header " + entry.getKey());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * escape &lt; &gt; &amp; and &quot; for html text and attribute values
+     */
+    public static String escapeHtml(String value)
+    {
+        StringBuilder builder = null;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            String escaped;
+            switch (c) {
+                case '<':
+                    escaped = "&lt;";
+                    break;
+                case '>':
+                    escaped = "&gt;";
+                    break;
+                case '&':
+                    escaped = "&amp;";
+                    break;
+                case '"':
+                    escaped = "&quot;";
+                    break;
+                default:
+                    escaped = null;
+            }
+            if (escaped != null && builder == null) {
+                builder = new StringBuilder(value.length() + 16).append(value, 0, i);
+            }
+            if (builder != null) {
+                if (escaped != null) {
+                    builder.append(escaped);
+                }
+                else {
+                    builder.append(c);
+                }
+            }
+        }
+        return builder == null ? value : builder.toString();
+    }
+}
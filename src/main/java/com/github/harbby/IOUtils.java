@@ -7,6 +7,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
@@ -39,12 +40,54 @@ public class IOUtils
             throws IOException
     {
         Objects.requireNonNull(out, "out");
-        long transferred = position;
-        long read;
-        while (transferred < count && (read = in.transferTo(transferred, count - transferred, out)) >= 0) {
+        long transferred = 0;
+        while (transferred < count) {
+            long read = in.transferTo(position + transferred, count - transferred, out);
+            if (read == 0 && position + transferred >= in.size()) {
+                break; // the file was truncated
+            }
+            transferred += read;
+        }
+        return transferred;
+    }
+
+    public static long transferTo(FileChannel in, long position, long count, OutputStream out)
+            throws IOException
+    {
+        Objects.requireNonNull(out, "out");
+        byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
+        ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+        long transferred = 0;
+        int read;
+        while (transferred < count) {
+            byteBuffer.clear();
+            byteBuffer.limit((int) Math.min(buffer.length, count - transferred));
+            if ((read = in.read(byteBuffer, position + transferred)) < 0) {
+                break;
+            }
+            out.write(buffer, 0, read);
             transferred += read;
         }
-        return transferred - position;
+        return transferred;
+    }
+
+    /**
+     * write the remaining bytes of a heap, direct or mapped buffer
+     */
+    public static void write(ByteBuffer buffer, OutputStream out)
+            throws IOException
+    {
+        if (buffer.hasArray()) {
+            out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            buffer.position(buffer.limit());
+            return;
+        }
+        byte[] chunk = new byte[Math.min(buffer.remaining(), 64 * 1024)];
+        while (buffer.hasRemaining()) {
+            int len = Math.min(chunk.length, buffer.remaining());
+            buffer.get(chunk, 0, len);
+            out.write(chunk, 0, len);
+        }
     }
 
     public static byte[] readAllBytes(InputStream in)
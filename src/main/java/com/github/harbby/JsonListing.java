@@ -0,0 +1,150 @@
+package com.github.harbby;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Machine readable listing: {@code ?&list=json|ndjson[&limit=N][&cursor=NAME]}.
+ * <p>
+ * A page holds the first limit names after the cursor in name order. It is selected in one DirectoryStream
+ * pass with a bounded heap, so memory is O(limit) for any directory size and pages stay consistent while
+ * entries are added or removed. Only the selected entries are stat'ed. The next cursor is in the
+ * X-Next-Cursor (percent-encoded) and Link headers and, for json, in the "next" field. limit=0 streams the whole directory in
+ * one pass in directory order without sorting.
+ */
+public class JsonListing
+{
+    private static final int DEFAULT_LIMIT = 1000;
+    private static final int MAX_LIMIT = 100_000;
+
+    private final StateDirectory stateDirectory;
+
+    public JsonListing(StateDirectory stateDirectory)
+    {
+        this.stateDirectory = stateDirectory;
+    }
+
+    public void send(HttpExchange t, File dir, Map<String, String> query)
+            throws IOException
+    {
+        String format = query.get("list");
+        boolean ndjson = "ndjson".equals(format);
+        int limit;
+        try {
+            limit = query.containsKey("limit") ? Integer.parseInt(query.get("limit")) : DEFAULT_LIMIT;
+        }
+        catch (NumberFormatException e) {
+            limit = -1;
+        }
+        if ((!ndjson && !"json".equals(format) && !format.isEmpty()) || limit < 0 || limit > MAX_LIMIT) {
+            t.sendResponseHeaders(400, -1);
+            t.getResponseBody().close();
+            return;
+        }
+        String cursor = query.get("cursor");
+        Path path = dir.toPath();
+
+        List<String> page = null;
+        String next = null;
+        if (limit > 0) {
+            page = selectPage(path, cursor, limit);
+            if (page.size() > limit) {
+                page.remove(limit);
+                next = page.get(limit - 1);
+                // encoded as in the query, a name may hold CR/LF or non latin-1 chars
+                String encoded = URLEncoder.encode(next, "UTF-8");
+                String link = t.getRequestURI().getRawPath() + "?&list=" + (ndjson ? "ndjson" : "json") + "&limit=" + limit + "&cursor=" + encoded;
+                t.getResponseHeaders().set("X-Next-Cursor", encoded);
+                t.getResponseHeaders().set("Link", "<" + link + ">; rel=\"next\"");
+            }
+        }
+        t.getResponseHeaders().set("Content-Type", ndjson ? "application/x-ndjson; charset=utf-8" : "application/json; charset=utf-8");
+        t.sendResponseHeaders(200, 0);
+        try (OutputStream out = new BufferedOutputStream(t.getResponseBody(), 64 * 1024)) {
+            if (!ndjson) {
+                out.write(("{\"path\":" + HttpUtils.toJsonString(t.getRequestURI().getPath()) + ",\"entries\":[").getBytes(StandardCharsets.UTF_8));
+            }
+            boolean first = true;
+            if (page != null) {
+                for (String name : page) {
+                    first = writeEntry(out, path.resolve(name), name, ndjson, first);
+                }
+            }
+            else {
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
+                    for (Path child : stream) {
+                        if (!stateDirectory.isRoot(child.toFile())) {
+                            first = writeEntry(out, child, child.getFileName().toString(), ndjson, first);
+                        }
+                    }
+                }
+            }
+            if (!ndjson) {
+                out.write(("],\"next\":" + (next == null ? "null" : HttpUtils.toJsonString(next)) + "}\n").getBytes(StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    /**
+     * the first limit + 1 names after cursor in name order, the extra one tells whether there is a next page
+     */
+    private List<String> selectPage(Path dir, String cursor, int limit)
+            throws IOException
+    {
+        PriorityQueue<String> heap = new PriorityQueue<>(limit + 2, Collections.reverseOrder());
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path child : stream) {
+                String name = child.getFileName().toString();
+                if ((cursor != null && name.compareTo(cursor) <= 0) || stateDirectory.isRoot(child.toFile())) {
+                    continue;
+                }
+                if (heap.size() <= limit) {
+                    heap.add(name);
+                }
+                else if (name.compareTo(heap.peek()) < 0) {
+                    heap.poll();
+                    heap.add(name);
+                }
+            }
+        }
+        List<String> page = new ArrayList<>(heap);
+        Collections.sort(page);
+        return page;
+    }
+
+    /**
+     * returns the new value of first, an entry removed since it was listed is skipped
+     */
+    private static boolean writeEntry(OutputStream out, Path path, String name, boolean ndjson, boolean first)
+            throws IOException
+    {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        }
+        catch (NoSuchFileException e) {
+            return first;
+        }
+        String type = attributes.isDirectory() ? "dir" : attributes.isRegularFile() ? "file" : "other";
+        String json = "{\"name\":" + HttpUtils.toJsonString(name) + ",\"type\":\"" + type + "\",\"size\":" + attributes.size() +
+                ",\"mtime\":" + attributes.lastModifiedTime().toMillis() + "}";
+        out.write(((ndjson ? "" : first ? "" : ",") + json + (ndjson ? "\n" : "")).getBytes(StandardCharsets.UTF_8));
+        return false;
+    }
+}
@@ -0,0 +1,317 @@
+package com.github.harbby;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Caches the rendered, sorted {@code <li>} fragment of a directory listing, bounded by total bytes with lru
+ * eviction. A cached fragment is checked against the directory mtime on every hit (one stat instead of one
+ * per entry). In watch mode a WatchService invalidates entries instead and hits skip the stat, that is only
+ * reliable on local filesystems: remote changes on NFS raise no events.
+ * <p>
+ * An entry can also hold one page built from its fragment, the gzipped listing html, under a key naming
+ * everything else the page depends on. It is dropped together with the fragment.
+ */
+public class ListingCache
+{
+    // mtime has coarse granularity on some filesystems, a listing rendered this close to the mtime is not trusted
+    private static final long MTIME_GRANULARITY_MILLIS = 2000;
+
+    private final long maxBytes;
+    private final StateDirectory stateDirectory;
+    private final WatchService watchService;
+    private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+    private final LongAdder pageHits = new LongAdder();
+
+    private static class Entry
+    {
+        private final byte[] fragment;
+        private final long lastModified;
+        private final boolean trusted;
+        private WatchKey watchKey;
+        private String pageKey;
+        private byte[] page;
+
+        private Entry(byte[] fragment, long lastModified, boolean trusted)
+        {
+            this.fragment = fragment;
+            this.lastModified = lastModified;
+            this.trusted = trusted;
+        }
+
+        private long size()
+        {
+            return fragment.length + (page == null ? 0 : page.length);
+        }
+    }
+
+    private static class Item
+    {
+        private final String name;
+        private final boolean directory;
+
+        private Item(String name, boolean directory)
+        {
+            this.name = name;
+            this.directory = directory;
+        }
+    }
+
+    public ListingCache(long maxBytes, boolean watch, StateDirectory stateDirectory)
+            throws IOException
+    {
+        this.maxBytes = maxBytes;
+        this.stateDirectory = stateDirectory;
+        if (watch && maxBytes > 0) {
+            this.watchService = FileSystems.getDefault().newWatchService();
+            Thread thread = new Thread(this::watchLoop, "listing-cache-watcher");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        else {
+            this.watchService = null;
+        }
+    }
+
+    /**
+     * the utf-8 {@code <li>} fragment of the directory, from cache when it is still valid
+     */
+    public byte[] get(File dir)
+            throws IOException
+    {
+        Path path = normalize(dir);
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(path);
+        }
+        if (entry != null && isValid(path, entry)) {
+            hits.increment();
+            return entry.fragment;
+        }
+        misses.increment();
+        // registered before listing, a change while rendering cancels the key and the entry is never a hit
+        WatchKey watchKey = watch(path);
+        long lastModified = Files.getLastModifiedTime(path).toMillis();
+        byte[] fragment = render(path);
+        Entry rendered = new Entry(fragment, lastModified, System.currentTimeMillis() - lastModified > MTIME_GRANULARITY_MILLIS);
+        if (maxBytes > 0 && fragment.length <= maxBytes && rendered.trusted) {
+            rendered.watchKey = watchKey;
+            put(path, rendered);
+        }
+        else if (watchKey != null) {
+            watchKey.cancel();
+        }
+        return fragment;
+    }
+
+    /**
+     * the page cached with the current listing of dir under key, null if there is none
+     */
+    public byte[] getPage(File dir, String key)
+            throws IOException
+    {
+        Path path = normalize(dir);
+        Entry entry;
+        byte[] page;
+        synchronized (this) {
+            entry = entries.get(path);
+            if (entry == null || !key.equals(entry.pageKey)) {
+                return null;
+            }
+            page = entry.page;
+        }
+        if (!isValid(path, entry)) {
+            return null;
+        }
+        pageHits.increment();
+        return page;
+    }
+
+    /**
+     * keep a page built from fragment, ignored unless fragment is still the cached listing of dir
+     */
+    public synchronized void putPage(File dir, byte[] fragment, String key, byte[] page)
+    {
+        Path path = normalize(dir);
+        Entry entry = entries.get(path);
+        if (entry == null || entry.fragment != fragment || !entry.trusted || fragment.length + page.length > maxBytes) {
+            return;
+        }
+        totalBytes -= entry.size();
+        entry.pageKey = key;
+        entry.page = page;
+        totalBytes += entry.size();
+        evict(path);
+    }
+
+    private static Path normalize(File dir)
+    {
+        return dir.toPath().toAbsolutePath().normalize();
+    }
+
+    private static boolean isValid(Path path, Entry entry)
+            throws IOException
+    {
+        if (!entry.trusted) {
+            return false;
+        }
+        if (entry.watchKey != null) {
+            return entry.watchKey.isValid();
+        }
+        return Files.getLastModifiedTime(path).toMillis() == entry.lastModified;
+    }
+
+    private byte[] render(Path dir)
+            throws IOException
+    {
+        List<Item> items = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path child : stream) {
+                File file = child.toFile();
+                if (stateDirectory.isRoot(file)) {
+                    continue;
+                }
+                // one stat per entry, the sort below only compares the captured flag
+                items.add(new Item(child.getFileName().toString(), Files.isDirectory(child)));
+            }
+        }
+        items.sort((i1, i2) -> {
+            int cmp = Boolean.compare(i2.directory, i1.directory);
+            return cmp == 0 ? i1.name.compareTo(i2.name) : cmp;
+        });
+        StringBuilder builder = new StringBuilder(items.size() * 64);
+        for (Item item : items) {
+            String encodeName = URLEncoder.encode(item.name, "UTF-8").replace("+", "%20");
+            String name = HttpUtils.escapeHtml(item.name);
+            if (item.directory) {
+                encodeName += "/";
+                name += "/";
+            }
+            builder.append("<li><a href=\"").append(encodeName).append("\">").append(name).append("</a></li>\n");
+        }
+        return builder.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * null without watch mode or when the directory cannot be watched, its entry then checks the mtime
+     */
+    private WatchKey watch(Path path)
+    {
+        if (watchService == null) {
+            return null;
+        }
+        try {
+            return path.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE);
+        }
+        catch (IOException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    private synchronized void put(Path path, Entry entry)
+    {
+        Entry previous = entries.put(path, entry);
+        if (previous != null) {
+            totalBytes -= previous.size();
+        }
+        totalBytes += entry.size();
+        evict(path);
+    }
+
+    private void evict(Path path)
+    {
+        Iterator<Map.Entry<Path, Entry>> iterator = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<Path, Entry> eldest = iterator.next();
+            iterator.remove();
+            totalBytes -= eldest.getValue().size();
+            if (eldest.getValue().watchKey != null && !eldest.getKey().equals(path)) {
+                eldest.getValue().watchKey.cancel();
+            }
+            evictions.increment();
+        }
+    }
+
+    private synchronized void invalidate(Path path)
+    {
+        Entry entry = entries.remove(path);
+        if (entry != null) {
+            totalBytes -= entry.size();
+            invalidations.increment();
+        }
+    }
+
+    private void watchLoop()
+    {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            }
+            catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            key.pollEvents();
+            // the next miss registers again, a directory nobody lists is not watched anymore
+            key.cancel();
+            invalidate((Path) key.watchable());
+        }
+    }
+
+    public long getHits()
+    {
+        return hits.sum();
+    }
+
+    public long getMisses()
+    {
+        return misses.sum();
+    }
+
+    public long getPageHits()
+    {
+        return pageHits.sum();
+    }
+
+    public long getEvictions()
+    {
+        return evictions.sum();
+    }
+
+    public long getInvalidations()
+    {
+        return invalidations.sum();
+    }
+
+    public synchronized long getBytes()
+    {
+        return totalBytes;
+    }
+
+    public synchronized int getSize()
+    {
+        return entries.size();
+    }
+}
@@ -3,42 +3,115 @@ package com.github.harbby;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
+/**
+ * Message board shown under every listing. Messages live in a fixed size ring indexed by their id, a writer
+ * fills the slot of the next id before it publishes that id, so readers never wait. Each message renders its escaped html and
+ * json once when posted. The history page fragment is rebuilt from those only when a message was added.
+ * <p>
+ * POST /?&mail posts a message, GET /?&mail&since=ID returns the newer messages as json in id order,
+ * with &wait=SECONDS it waits for the next message when there is none yet. GET /?&mail&stream is the
+ * Server-Sent Events stream, see {@link MailStream}.
+ */
 public class MailHandler
         implements HttpHandler
 {
-    private final BlockingQueue<Message> buffer = new LinkedBlockingQueue<>(256);
+    private static final int CAPACITY = 256;
+    private static final long MAX_WAIT_SECONDS = 60;
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+
+    private final AtomicReferenceArray<Message> ring = new AtomicReferenceArray<>(CAPACITY);
+    // ids continue across restarts as long as there are fewer than 1000 posts per second
+    private final long firstId = System.currentTimeMillis();
+    private final AtomicLong lastId = new AtomicLong(firstId);
+    private volatile long lastModified = System.currentTimeMillis();
+    private volatile RenderedHistory history = new RenderedHistory(firstId, new byte[0]);
+    private final MailStream stream;
 
     static class Message
     {
-        private final String message;
-        private final Date sendtime;
-        private final String hostname;
+        private final long id;
+        private final byte[] html;
+        private final String json;
+        private final byte[] event;
 
-        private Message(String message, Date sendtime, String hostname)
+        private Message(long id, String message, long sendTime, String hostname)
         {
-            this.message = message;
-            this.sendtime = sendtime;
-            this.hostname = hostname;
+            this.id = id;
+            String time = TIME_FORMAT.format(Instant.ofEpochMilli(sendTime));
+            this.html = ("<li>" + HttpUtils.escapeHtml(hostname) + " at " + time + "<pre>" + HttpUtils.escapeHtml(message) + "</pre></li><hr>\n")
+                    .getBytes(StandardCharsets.UTF_8);
+            this.json = "{\"id\":" + id + ",\"host\":" + HttpUtils.toJsonString(hostname) + ",\"time\":" + sendTime +
+                    ",\"message\":" + HttpUtils.toJsonString(message) + "}";
+            // the stream carries the page fragment too, so the page renders pushed messages like served ones
+            this.event = ("id: " + id + "\ndata: " + json.substring(0, json.length() - 1) + ",\"html\":" +
+                    HttpUtils.toJsonString(new String(html, StandardCharsets.UTF_8)) + "}\n\n").getBytes(StandardCharsets.UTF_8);
         }
+    }
+
+    private static class RenderedHistory
+    {
+        private final long version;
+        private final byte[] html;
 
-        public static Message of(String message, String hostname)
+        private RenderedHistory(long version, byte[] html)
         {
-            return new Message(message, new Date(), hostname);
+            this.version = version;
+            this.html = html;
         }
     }
 
+    public MailHandler(MailStream stream)
+    {
+        this.stream = stream;
+    }
+
     @Override
     public void handle(HttpExchange exchange)
             throws IOException
     {
+        if ("GET".equals(exchange.getRequestMethod())) {
+            Map<String, String> query = HttpUtils.parseQuery(exchange.getRequestURI().getRawQuery());
+            long sinceId;
+            long waitSeconds;
+            try {
+                String since = query.containsKey("stream") ? exchange.getRequestHeaders().getFirst("Last-Event-ID") : query.get("since");
+                sinceId = since == null || since.isEmpty() ? 0 : Long.parseLong(since.trim());
+                waitSeconds = query.containsKey("wait") ? Long.parseLong(query.get("wait")) : 0;
+            }
+            catch (NumberFormatException e) {
+                exchange.sendResponseHeaders(400, -1);
+                exchange.getResponseBody().close();
+                return;
+            }
+            if (query.containsKey("stream")) {
+                stream.subscribe(exchange, sinceId == 0 ? new byte[0] : renderEventsSince(sinceId));
+            }
+            else if (waitSeconds > 0 && lastId.get() <= sinceId) {
+                stream.longPoll(exchange, sinceId, Math.min(waitSeconds, MAX_WAIT_SECONDS) * 1000, this::renderSince, lastId::get);
+            }
+            else {
+                byte[] body = renderSince(sinceId);
+                exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+            return;
+        }
         if (!"POST".equals(exchange.getRequestMethod())) {
             // 返回405 Method Not Allowed，只接受POST请求
             exchange.sendResponseHeaders(405, -1);
@@ -48,13 +121,9 @@ public class MailHandler
         byte[] bytes = IOUtils.readAllBytes(exchange.getRequestBody());
         if (bytes.length > 0) {
             String str = new String(bytes, StandardCharsets.UTF_8);
-            Message message = Message.of(str, exchange.getRemoteAddress().getHostName());
-            while (!buffer.offer(message)) {
-                buffer.poll();
-            }
-            String history = getAllHistory();
+            post(str, exchange.getRemoteAddress().getHostName());
             try (OutputStream out = exchange.getResponseBody()) {
-                byte[] resBody = history.getBytes(StandardCharsets.UTF_8);
+                byte[] resBody = getHistoryHtml();
                 exchange.sendResponseHeaders(200, resBody.length);
                 out.write(resBody);
             }
@@ -65,14 +134,96 @@ public class MailHandler
         }
     }
 
-    String getAllHistory()
+    private synchronized void post(String message, String hostname)
+    {
+        long now = System.currentTimeMillis();
+        long id = lastId.get() + 1;
+        Message posted = new Message(id, message, now, hostname);
+        // the slot first, a reader that sees the new id (and tags a listing with it) also sees the message
+        ring.set(slot(id), posted);
+        lastId.set(id);
+        lastModified = now;
+        stream.publish(posted.event);
+    }
+
+    private byte[] renderSince(long sinceId)
+    {
+        long last = lastId.get();
+        // gap: messages after since were already overwritten, the client should reload the whole history
+        boolean gap = sinceId != 0 && sinceId < last - CAPACITY;
+        StringBuilder builder = new StringBuilder("{\"last\":").append(last).append(",\"gap\":").append(gap).append(",\"messages\":[");
+        List<Message> messages = snapshot(last);
+        boolean first = true;
+        for (int i = messages.size() - 1; i >= 0; i--) {
+            Message message = messages.get(i);
+            if (message.id > sinceId) {
+                builder.append(first ? "" : ",").append(message.json);
+                first = false;
+            }
+        }
+        return builder.append("]}\n").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private byte[] renderEventsSince(long sinceId)
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        List<Message> messages = snapshot(lastId.get());
+        for (int i = messages.size() - 1; i >= 0; i--) {
+            Message message = messages.get(i);
+            if (message.id > sinceId) {
+                out.write(message.event, 0, message.event.length);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * messages up to id last, newest first. A slot already reused by a newer id is skipped.
+     */
+    private List<Message> snapshot(long last)
+    {
+        List<Message> messages = new ArrayList<>();
+        for (long id = last; id > last - CAPACITY; id--) {
+            Message message = ring.get(slot(id));
+            if (message != null && message.id == id) {
+                messages.add(message);
+            }
+        }
+        return messages;
+    }
+
+    private static int slot(long id)
     {
-        StringBuilder builder = new StringBuilder();
-        SimpleDateFormat simpleDateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-        buffer.stream().sorted((m1, m2) -> m2.sendtime.compareTo(m1.sendtime)).forEach(message -> {
-            builder.append(String.format("<li>%s at %s<pre>%s</pre></li><hr>\n",
-                    message.hostname, simpleDateFormat.format(message.sendtime), message.message));
-        });
-        return builder.toString();
+        return (int) (id & (CAPACITY - 1));
+    }
+
+    long getHistoryVersion()
+    {
+        return lastId.get();
+    }
+
+    long getLastModified()
+    {
+        return lastModified;
+    }
+
+    /**
+     * the history fragment of the listing page, newest first
+     */
+    byte[] getHistoryHtml()
+    {
+        RenderedHistory rendered = history;
+        long last = lastId.get();
+        if (rendered.version == last) {
+            return rendered.html;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        List<Message> messages = snapshot(last);
+        for (Message message : messages) {
+            out.write(message.html, 0, message.html.length);
+        }
+        byte[] html = out.toByteArray();
+        history = new RenderedHistory(last, html);
+        return html;
     }
 }
@@ -0,0 +1,329 @@
+package com.github.harbby;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongFunction;
+import java.util.function.LongSupplier;
+
+/**
+ * Pushes new mail board messages to subscribers: Server-Sent Events ({@code GET /?&mail&stream}) and
+ * long-poll ({@code GET /?&mail&since=ID&wait=SECONDS}).
+ * <p>
+ * A subscriber holds no thread while it waits, the handler returns and leaves the exchange open. One fan-out
+ * thread hands each pre-rendered event to every subscriber's bounded queue, writer threads drain a queue only
+ * when it has events. A subscriber whose queue overflows is a slow consumer and is disconnected, so a stuck
+ * client never delays the others. Event streams get a comment heartbeat so dead connections are noticed.
+ * <p>
+ * A writer blocked on a client that stopped reading holds its thread. On {@link NioHttpServer} a dropped
+ * subscriber, or one whose write stalls longer than {@code STALL_MILLIS}, has its socket closed (its stream
+ * reset over HTTP/2), which frees the writer. com.sun.net.httpserver has no such hook, there the writer waits until tcp gives up. Writers are
+ * virtual threads on jdk 21+, platform threads otherwise, idle ones exit after a minute.
+ */
+public class MailStream
+{
+    private static final int QUEUE_CAPACITY = 64;
+    private static final long HEARTBEAT_SECONDS = 15;
+    private static final long STALL_MILLIS = 30_000;
+    private static final byte[] HEARTBEAT = ":\n\n".getBytes(StandardCharsets.UTF_8);
+
+    private final int maxSubscribers;
+    private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+    private final ExecutorService fanOut = Executors.newSingleThreadExecutor(daemon("mail-stream-fanout"));
+    private final ExecutorService writers;
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(daemon("mail-stream-timer"));
+    private final LongAdder dropped = new LongAdder();
+
+    public MailStream(int maxSubscribers)
+    {
+        this.maxSubscribers = maxSubscribers;
+        // a bounded pool would let a few stuck clients stall every other subscriber, so one writer per busy subscriber
+        ThreadFactory virtualThreadFactory = RequestExecutors.virtualThreadFactory();
+        this.writers = Executors.newCachedThreadPool(virtualThreadFactory != null ? virtualThreadFactory : daemon("mail-stream-writer"));
+        timer.scheduleWithFixedDelay(() -> publish(HEARTBEAT, true), HEARTBEAT_SECONDS, HEARTBEAT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private static ThreadFactory daemon(String name)
+    {
+        AtomicInteger threadId = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, name + "-" + threadId.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * called once per posted message with its rendered event
+     */
+    void publish(byte[] event)
+    {
+        publish(event, false);
+    }
+
+    private void publish(byte[] event, boolean heartbeat)
+    {
+        fanOut.execute(() -> {
+            long stalledSince = System.currentTimeMillis() - STALL_MILLIS;
+            for (Subscriber subscriber : subscribers) {
+                if (heartbeat && subscriber.isStalled(stalledSince)) {
+                    subscriber.drop();
+                }
+                else if (!heartbeat || subscriber instanceof EventStream) {
+                    subscriber.offer(event);
+                }
+            }
+        });
+    }
+
+    /**
+     * start an event stream, replay is the events after the Last-Event-ID of a reconnecting client
+     */
+    void subscribe(HttpExchange exchange, byte[] replay)
+            throws IOException
+    {
+        if (!admit(exchange)) {
+            return;
+        }
+        exchange.getResponseHeaders().set("Content-Type", "text/event-stream; charset=utf-8");
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        exchange.sendResponseHeaders(200, 0);
+        EventStream subscriber = new EventStream(exchange);
+        subscribers.add(subscriber);
+        subscriber.offer("retry: 3000\n\n".getBytes(StandardCharsets.UTF_8));
+        if (replay.length > 0) {
+            subscriber.offer(replay);
+        }
+    }
+
+    /**
+     * answer with render(sinceId) once a message arrives or with the current (empty) answer after timeout
+     */
+    void longPoll(HttpExchange exchange, long sinceId, long timeoutMillis, LongFunction<byte[]> render, LongSupplier lastId)
+            throws IOException
+    {
+        if (!admit(exchange)) {
+            return;
+        }
+        LongPoll subscriber = new LongPoll(exchange, sinceId, render);
+        subscribers.add(subscriber);
+        if (lastId.getAsLong() > sinceId) {
+            // a message was posted before the subscriber was visible to the fan-out
+            subscriber.offer(null);
+            return;
+        }
+        timer.schedule(() -> subscriber.offer(null), timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private boolean admit(HttpExchange exchange)
+            throws IOException
+    {
+        if (subscribers.size() < maxSubscribers) {
+            return true;
+        }
+        exchange.sendResponseHeaders(503, -1);
+        exchange.close();
+        return false;
+    }
+
+    public int getSubscriberCount()
+    {
+        return subscribers.size();
+    }
+
+    public long getDroppedCount()
+    {
+        return dropped.sum();
+    }
+
+    private abstract class Subscriber
+            implements Runnable
+    {
+        protected final HttpExchange exchange;
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private volatile long writingSince;
+
+        private Subscriber(HttpExchange exchange)
+        {
+            this.exchange = exchange;
+        }
+
+        abstract boolean enqueue(byte[] event);
+
+        /**
+         * write what is queued, returns false when the subscriber is done
+         */
+        abstract boolean drain()
+                throws IOException;
+
+        abstract boolean isEmpty();
+
+        final void offer(byte[] event)
+        {
+            if (closed.get()) {
+                return;
+            }
+            if (!enqueue(event)) {
+                // slow consumer, its writer is still busy with older events
+                drop();
+                return;
+            }
+            if (scheduled.compareAndSet(false, true)) {
+                writers.execute(this);
+            }
+        }
+
+        final boolean isStalled(long stalledSince)
+        {
+            long since = writingSince;
+            return since != 0 && since < stalledSince;
+        }
+
+        final void drop()
+        {
+            if (closed.getAndSet(true)) {
+                return;
+            }
+            dropped.increment();
+            subscribers.remove(this);
+            if (exchange instanceof NioHttpExchange) {
+                ((NioHttpExchange) exchange).abort();
+            }
+            else if (exchange instanceof Http2Exchange) {
+                ((Http2Exchange) exchange).abort();
+            }
+            else if (scheduled.compareAndSet(false, true)) {
+                // no writer is running, let one close the exchange
+                writers.execute(this);
+            }
+        }
+
+        @Override
+        public final void run()
+        {
+            boolean open;
+            do {
+                try {
+                    writingSince = System.currentTimeMillis();
+                    open = !closed.get() && drain();
+                }
+                catch (IOException | RuntimeException e) {
+                    open = false;
+                }
+                finally {
+                    writingSince = 0;
+                }
+                if (!open) {
+                    close();
+                    return;
+                }
+                scheduled.set(false);
+            }
+            // an offer between drain and clearing the flag did not schedule us
+            while ((closed.get() || !isEmpty()) && scheduled.compareAndSet(false, true));
+        }
+
+        private void close()
+        {
+            closed.set(true);
+            subscribers.remove(this);
+            try {
+                exchange.close();
+            }
+            catch (RuntimeException ignored) {
+            }
+        }
+    }
+
+    private class EventStream
+            extends Subscriber
+    {
+        private final Queue<byte[]> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+
+        private EventStream(HttpExchange exchange)
+        {
+            super(exchange);
+        }
+
+        @Override
+        boolean enqueue(byte[] event)
+        {
+            return queue.offer(event);
+        }
+
+        @Override
+        boolean isEmpty()
+        {
+            return queue.isEmpty();
+        }
+
+        @Override
+        boolean drain()
+                throws IOException
+        {
+            OutputStream out = exchange.getResponseBody();
+            byte[] event;
+            while ((event = queue.poll()) != null) {
+                out.write(event);
+            }
+            out.flush();
+            return true;
+        }
+    }
+
+    private class LongPoll
+            extends Subscriber
+    {
+        private final long sinceId;
+        private final LongFunction<byte[]> render;
+        private volatile boolean woken;
+
+        private LongPoll(HttpExchange exchange, long sinceId, LongFunction<byte[]> render)
+        {
+            super(exchange);
+            this.sinceId = sinceId;
+            this.render = render;
+        }
+
+        @Override
+        boolean enqueue(byte[] event)
+        {
+            woken = true;
+            return true;
+        }
+
+        @Override
+        boolean isEmpty()
+        {
+            return !woken;
+        }
+
+        @Override
+        boolean drain()
+                throws IOException
+        {
+            byte[] body = render.apply(sinceId);
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+            return false;
+        }
+    }
+}
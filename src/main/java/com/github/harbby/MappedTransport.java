@@ -0,0 +1,53 @@
+package com.github.harbby;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Copies from a memory mapped window straight into the response stream in large chunks.
+ * This avoids a read syscall per 8 KB and works on any response stream, e.g. the TLS one of HttpsServer.
+ */
+public class MappedTransport
+        implements FileTransport
+{
+    private static final long WINDOW_SIZE = 16 * 1024 * 1024;
+    private static final int CHUNK_SIZE = 256 * 1024;
+    private static final ThreadLocal<byte[]> CHUNK = ThreadLocal.withInitial(() -> new byte[CHUNK_SIZE]);
+
+    @Override
+    public TransferMode getMode()
+    {
+        return TransferMode.MAPPED;
+    }
+
+    @Override
+    public Sink open(HttpExchange exchange, OutputStream body)
+    {
+        if (exchange instanceof Http2Exchange) {
+            // DATA frames straight from the mapped window, no chunk copy
+            Sink sink = ((Http2Exchange) exchange).openFileSink(body);
+            if (sink != null) {
+                return sink;
+            }
+        }
+        return (file, position, count) -> {
+            byte[] chunk = CHUNK.get();
+            long end = Math.min(position + count, file.size());
+            long transferred = 0;
+            while (position + transferred < end) {
+                long windowSize = Math.min(WINDOW_SIZE, end - position - transferred);
+                MappedByteBuffer window = file.map(FileChannel.MapMode.READ_ONLY, position + transferred, windowSize);
+                while (window.hasRemaining()) {
+                    int len = Math.min(chunk.length, window.remaining());
+                    window.get(chunk, 0, len);
+                    body.write(chunk, 0, len);
+                }
+                transferred += windowSize;
+            }
+            return transferred;
+        };
+    }
+}
@@ -0,0 +1,251 @@
+package com.github.harbby;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.regex.Pattern;
+
+/**
+ * Request metrics in the Prometheus text format, served by {@link #handle(HttpExchange)}.
+ * <p>
+ * Recording an exchange costs a map lookup and a few LongAdder increments: the latency histogram of its route
+ * (the access log action), the bytes of its path group and the active exchange gauge. Histogram buckets are log
+ * linear like HdrHistogram with two sub buckets per power of two, from 16 microseconds to 64 seconds, so any
+ * quantile is within 50% of the true value. Counters of the caches, the transports and the executor are read
+ * when scraped, they cost nothing per request.
+ */
+public class Metrics
+        implements HttpHandler
+{
+    // routes are access log actions, constants of the handlers; anything else or too many is counted as OTHER
+    private static final Pattern ROUTE = Pattern.compile("[A-Z][A-Z0-9_]{0,63}");
+    private static final int MAX_ROUTES = 256;
+
+    private final ConcurrentMap<String, LatencyHistogram> routes = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> bytes = new TreeMap<>();
+    private final LongAdder active = new LongAdder();
+    private final List<Sample> samples = new ArrayList<>();
+
+    private static class Sample
+    {
+        private final String name;
+        private final String type;
+        private final String help;
+        private final String labels;
+        private final LongSupplier value;
+
+        private Sample(String name, String type, String help, String labels, LongSupplier value)
+        {
+            this.name = name;
+            this.type = type;
+            this.help = help;
+            this.labels = labels;
+            this.value = value;
+        }
+    }
+
+    public Metrics()
+    {
+        for (String path : new String[] {"file", "zip", "listing", "upload", "other"}) {
+            bytes.put(path, new LongAdder());
+        }
+    }
+
+    /**
+     * a counter read at scrape time, labels like {@code mode="SENDFILE"} or null
+     */
+    public Metrics counter(String name, String help, String labels, LongSupplier value)
+    {
+        samples.add(new Sample(name, "counter", help, labels, value));
+        return this;
+    }
+
+    /**
+     * a gauge read at scrape time, labels like {@code mode="SENDFILE"} or null
+     */
+    public Metrics gauge(String name, String help, String labels, LongSupplier value)
+    {
+        samples.add(new Sample(name, "gauge", help, labels, value));
+        return this;
+    }
+
+    public void exchangeStarted()
+    {
+        active.increment();
+    }
+
+    /**
+     * responseBytes is -1 when unknown, requestBytes is counted for uploads
+     */
+    public void exchangeFinished(String action, long responseBytes, long requestBytes, long durationNanos)
+    {
+        active.decrement();
+        String route = action == null ? "OTHER" : action;
+        LatencyHistogram histogram = routes.get(route);
+        if (histogram == null) {
+            if (routes.size() >= MAX_ROUTES || !ROUTE.matcher(route).matches()) {
+                route = "OTHER";
+            }
+            histogram = routes.computeIfAbsent(route, key -> new LatencyHistogram());
+        }
+        histogram.record(durationNanos);
+        String path = pathOf(route);
+        long transferred = "upload".equals(path) ? requestBytes : responseBytes;
+        if (transferred > 0) {
+            bytes.get(path).add(transferred);
+        }
+    }
+
+    private static String pathOf(String route)
+    {
+        if (route.startsWith("DOWNLOAD_FILE")) {
+            return "file";
+        }
+        if (route.startsWith("DOWNLOAD_DIR")) {
+            return "zip";
+        }
+        if (route.startsWith("LIST_DIR")) {
+            return "listing";
+        }
+        if (route.startsWith("UPLOAD")) {
+            return "upload";
+        }
+        return "other";
+    }
+
+    @Override
+    public void handle(HttpExchange exchange)
+            throws IOException
+    {
+        if (!"GET".equals(exchange.getRequestMethod())) {
+            exchange.sendResponseHeaders(405, -1);
+            exchange.close();
+            return;
+        }
+        byte[] body = render().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    String render()
+    {
+        StringBuilder out = new StringBuilder(16 * 1024);
+        header(out, "sfs_request_duration_seconds", "histogram", "exchange duration by route, from request to handler return");
+        for (Map.Entry<String, LatencyHistogram> route : new TreeMap<>(routes).entrySet()) {
+            route.getValue().render(out, "sfs_request_duration_seconds", "route=\"" + escapeLabel(route.getKey()) + "\"");
+        }
+        header(out, "sfs_transferred_bytes_total", "counter", "body bytes sent for file, zip and listing responses, received for uploads");
+        for (Map.Entry<String, LongAdder> path : bytes.entrySet()) {
+            out.append("sfs_transferred_bytes_total{path=\"").append(path.getKey()).append("\"} ").append(path.getValue().sum()).append('\n');
+        }
+        header(out, "sfs_active_exchanges", "gauge", "exchanges being handled");
+        out.append("sfs_active_exchanges ").append(active.sum()).append('\n');
+        String previous = null;
+        for (Sample sample : samples) {
+            if (!sample.name.equals(previous)) {
+                header(out, sample.name, sample.type, sample.help);
+                previous = sample.name;
+            }
+            out.append(sample.name);
+            if (sample.labels != null) {
+                out.append('{').append(sample.labels).append('}');
+            }
+            out.append(' ').append(sample.value.getAsLong()).append('\n');
+        }
+        return out.toString();
+    }
+
+    /**
+     * a label value of the text format: backslash, double quote and line feed escaped
+     */
+    static String escapeLabel(String value)
+    {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help)
+    {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    /**
+     * bucket 0 holds everything below 16us, bucket i >= 1 covers [2^e, 1.5 * 2^e) or [1.5 * 2^e, 2^(e+1))
+     * microseconds with e = (i - 1) / 2 + 4, the last bucket everything from 64s on.
+     */
+    static class LatencyHistogram
+    {
+        private static final int MIN_EXPONENT = 4;
+        private static final int MAX_EXPONENT = 25;
+        private static final int BUCKETS = (MAX_EXPONENT - MIN_EXPONENT + 1) * 2 + 2;
+
+        private final LongAdder[] counts = new LongAdder[BUCKETS];
+        private final LongAdder sumNanos = new LongAdder();
+
+        LatencyHistogram()
+        {
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = new LongAdder();
+            }
+        }
+
+        void record(long nanos)
+        {
+            counts[index(nanos / 1000)].increment();
+            sumNanos.add(nanos);
+        }
+
+        static int index(long micros)
+        {
+            if (micros < 1L << MIN_EXPONENT) {
+                return 0;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(micros);
+            if (exponent > MAX_EXPONENT) {
+                return BUCKETS - 1;
+            }
+            int half = (int) (micros >>> (exponent - 1)) & 1;
+            return (exponent - MIN_EXPONENT) * 2 + half + 1;
+        }
+
+        /**
+         * exclusive upper bound of a bucket in microseconds
+         */
+        static long upperBound(int index)
+        {
+            if (index == 0) {
+                return 1L << MIN_EXPONENT;
+            }
+            int exponent = (index - 1) / 2 + MIN_EXPONENT;
+            return (3L + (index - 1) % 2) << (exponent - 1);
+        }
+
+        void render(StringBuilder out, String name, String labels)
+        {
+            long cumulative = 0;
+            for (int i = 0; i < BUCKETS - 1; i++) {
+                cumulative += counts[i].sum();
+                out.append(name).append("_bucket{").append(labels).append(",le=\"").append(upperBound(i) / 1e6).append("\"} ")
+                        .append(cumulative).append('\n');
+            }
+            cumulative += counts[BUCKETS - 1].sum();
+            out.append(name).append("_bucket{").append(labels).append(",le=\"+Inf\"} ").append(cumulative).append('\n');
+            out.append(name).append("_sum{").append(labels).append("} ").append(sumNanos.sum() / 1e9).append('\n');
+            out.append(name).append("_count{").append(labels).append("} ").append(cumulative).append('\n');
+        }
+    }
+}
@@ -0,0 +1,524 @@
+package com.github.harbby;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.Headers;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Connection state of {@link NioHttpServer}. It is owned by the selector thread while waiting for a
+ * request head, and by exactly one worker while an exchange runs.
+ */
+class NioConnection
+{
+    private static final int MAX_HEAD_SIZE = 64 * 1024;
+    private static final int WRITE_BUFFER_SIZE = 8192;
+    private static final int DIRECT_READ_THRESHOLD = 8192;
+
+    private final NioHttpServer server;
+    private final SocketChannel channel;
+    // captured at accept, a closed channel no longer knows its addresses when the access log asks
+    private final InetSocketAddress remoteAddress;
+    private final InetSocketAddress localAddress;
+    private byte[] readBuffer = new byte[8192];
+    private int readStart;
+    private int readEnd;
+    private final byte[] writeBuffer = new byte[WRITE_BUFFER_SIZE];
+    private int writeEnd;
+    private volatile long lastActive = System.currentTimeMillis();
+    private volatile boolean closed;
+    private RequestHead pendingHead;
+    private boolean firstHead = true;
+    private boolean http2Preface;
+
+    static class RequestHead
+    {
+        final String method;
+        final URI uri;
+        final String protocol;
+        final Headers headers;
+
+        private RequestHead(String method, URI uri, String protocol, Headers headers)
+        {
+            this.method = method;
+            this.uri = uri;
+            this.protocol = protocol;
+            this.headers = headers;
+        }
+    }
+
+    static class ProtocolException
+            extends IOException
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final int code;
+
+        ProtocolException(int code, String message)
+        {
+            super(message);
+            this.code = code;
+        }
+    }
+
+    NioConnection(NioHttpServer server, SocketChannel channel)
+    {
+        this.server = server;
+        this.channel = channel;
+        this.remoteAddress = address(channel, true);
+        this.localAddress = address(channel, false);
+    }
+
+    private static InetSocketAddress address(SocketChannel channel, boolean remote)
+    {
+        try {
+            return (InetSocketAddress) (remote ? channel.getRemoteAddress() : channel.getLocalAddress());
+        }
+        catch (IOException e) {
+            return null;
+        }
+    }
+
+    SocketChannel getChannel()
+    {
+        return channel;
+    }
+
+    InetSocketAddress getRemoteAddress()
+    {
+        return remoteAddress;
+    }
+
+    InetSocketAddress getLocalAddress()
+    {
+        return localAddress;
+    }
+
+    long getLastActive()
+    {
+        return lastActive;
+    }
+
+    /**
+     * selector thread: read what is available without blocking, returns true when a whole head is buffered
+     */
+    boolean readHead()
+    {
+        try {
+            ensureReadSpace();
+            int n = channel.read(ByteBuffer.wrap(readBuffer, readEnd, readBuffer.length - readEnd));
+            if (n < 0) {
+                close();
+                return false;
+            }
+            readEnd += n;
+            lastActive = System.currentTimeMillis();
+            if (firstHead && server.isHttp2Enabled() && startsWithHttp2Preface()) {
+                http2Preface = readEnd - readStart >= Http2Connection.PREFACE.length;
+                return false;
+            }
+            pendingHead = parseHead();
+            if (pendingHead != null) {
+                firstHead = false;
+            }
+            return pendingHead != null;
+        }
+        catch (ProtocolException e) {
+            sendError(e.code);
+        }
+        catch (IOException e) {
+            close();
+        }
+        return false;
+    }
+
+    /**
+     * a partial preface waits for more bytes instead of failing as a bad request line
+     */
+    private boolean startsWithHttp2Preface()
+    {
+        int length = Math.min(readEnd - readStart, Http2Connection.PREFACE.length);
+        for (int i = 0; i < length; i++) {
+            if (readBuffer[readStart + i] != Http2Connection.PREFACE[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    boolean hasHttp2Preface()
+    {
+        return http2Preface;
+    }
+
+    /**
+     * the bytes read past the last request head, they belong to the protocol the connection switches to
+     */
+    ByteBuffer takeBuffered()
+    {
+        ByteBuffer buffered = ByteBuffer.wrap(readBuffer, readStart, readEnd - readStart);
+        readBuffer = new byte[0];
+        readStart = 0;
+        readEnd = 0;
+        return buffered;
+    }
+
+    void dispatchBufferedHead()
+    {
+        RequestHead head = pendingHead;
+        pendingHead = null;
+        try {
+            channel.configureBlocking(true);
+        }
+        catch (IOException e) {
+            close();
+            return;
+        }
+        server.dispatch(this, head);
+    }
+
+    void runExchange(RequestHead head)
+    {
+        NioHttpContext context = server.findContext(head.uri.getPath());
+        NioHttpExchange exchange = null;
+        try {
+            exchange = new NioHttpExchange(this, head, context);
+            if (context == null || context.getHandler() == null) {
+                exchange.sendResponseHeaders(404, -1);
+                exchange.close();
+                return;
+            }
+            if ("100-continue".equalsIgnoreCase(head.headers.getFirst("Expect")) && "HTTP/1.1".equals(head.protocol)) {
+                write("HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+                flush();
+            }
+            byte[] http2Settings = upgradeSettings(head);
+            if (http2Settings != null) {
+                upgradeToHttp2(head, http2Settings);
+                return;
+            }
+            new Filter.Chain(context.getFilters(), context.getHandler()).doFilter(exchange);
+        }
+        catch (Throwable e) {
+            if (!(e instanceof IOException)) {
+                e.printStackTrace();
+            }
+            if (exchange == null || !exchange.isResponseSent()) {
+                // a malformed request body (bad chunk size) is the client's fault
+                sendError(e instanceof ProtocolException ? ((ProtocolException) e).code : 500);
+            }
+            else {
+                close();
+            }
+        }
+    }
+
+    /**
+     * the decoded HTTP2-Settings of an Upgrade: h2c request we can switch, null to answer in HTTP/1.1. Requests
+     * with a body are not upgraded, the body would have to be read before the 101.
+     */
+    private byte[] upgradeSettings(RequestHead head)
+    {
+        String upgrade = head.headers.getFirst("Upgrade");
+        List<String> settings = head.headers.get("HTTP2-Settings");
+        String contentLength = head.headers.getFirst("Content-Length");
+        if (!server.isHttp2Enabled() || upgrade == null || settings == null || settings.size() != 1 || !"HTTP/1.1".equals(head.protocol) ||
+                head.headers.containsKey("Transfer-Encoding") || (contentLength != null && !contentLength.trim().equals("0"))) {
+            return null;
+        }
+        boolean h2c = false;
+        for (String protocol : upgrade.split(",")) {
+            h2c |= protocol.trim().toLowerCase(Locale.ROOT).equals("h2c");
+        }
+        if (!h2c) {
+            return null;
+        }
+        try {
+            byte[] decoded = Base64.getUrlDecoder().decode(settings.get(0).trim().replace("=", ""));
+            return decoded.length % 6 == 0 ? decoded : null;
+        }
+        catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * worker thread: answer 101, then the request continues as stream 1 of an HTTP/2 connection on this thread
+     */
+    private void upgradeToHttp2(RequestHead head, byte[] settings)
+            throws IOException
+    {
+        write("HTTP/1.1 101 Switching Protocols\r\nConnection: Upgrade\r\nUpgrade: h2c\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+        flush();
+        Http2Connection http2 = new Http2Connection(server, this, takeBuffered());
+        Http2Exchange stream;
+        try {
+            channel.configureBlocking(false);
+            stream = http2.upgrade(settings, head);
+        }
+        catch (IOException e) {
+            http2.close();
+            return;
+        }
+        server.resume(http2);
+        http2.runExchange(stream);
+    }
+
+    /**
+     * worker thread: the response is complete, keep the connection for the next request if possible
+     */
+    void finishExchange(NioHttpExchange exchange, boolean keepAlive)
+    {
+        try {
+            flush();
+            if (keepAlive && exchange.drainRequestBody()) {
+                lastActive = System.currentTimeMillis();
+                RequestHead next = parseHead();
+                if (next != null) {
+                    // pipelined request already buffered, stay in blocking mode
+                    server.dispatch(this, next);
+                }
+                else {
+                    server.resume(this);
+                }
+                return;
+            }
+        }
+        catch (ProtocolException e) {
+            sendError(e.code);
+            return;
+        }
+        catch (IOException ignored) {
+        }
+        close();
+    }
+
+    private RequestHead parseHead()
+            throws ProtocolException
+    {
+        // tolerate empty lines between pipelined requests
+        while (readStart < readEnd && (readBuffer[readStart] == '\r' || readBuffer[readStart] == '\n')) {
+            readStart++;
+        }
+        int end = -1;
+        for (int i = readStart; i + 3 < readEnd; i++) {
+            if (readBuffer[i] == '\r' && readBuffer[i + 1] == '\n' && readBuffer[i + 2] == '\r' && readBuffer[i + 3] == '\n') {
+                end = i;
+                break;
+            }
+        }
+        if (end < 0) {
+            if (readEnd - readStart >= MAX_HEAD_SIZE) {
+                throw new ProtocolException(431, "request head too large");
+            }
+            return null;
+        }
+        String text = new String(readBuffer, readStart, end - readStart, StandardCharsets.ISO_8859_1);
+        readStart = end + 4;
+        String[] lines = text.split("\r\n");
+        String[] requestLine = lines[0].split(" ");
+        if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/1.")) {
+            throw new ProtocolException(400, "bad request line " + lines[0]);
+        }
+        URI uri;
+        try {
+            uri = new URI(requestLine[1]);
+        }
+        catch (URISyntaxException e) {
+            throw new ProtocolException(400, e.getMessage());
+        }
+        Headers headers = new Headers();
+        for (int i = 1; i < lines.length; i++) {
+            String line = lines[i];
+            int split = line.indexOf(':');
+            if (split <= 0 || line.charAt(0) == ' ' || line.charAt(0) == '\t') {
+                throw new ProtocolException(400, "bad header line " + line);
+            }
+            headers.add(line.substring(0, split).trim(), line.substring(split + 1).trim());
+        }
+        checkContentLength(headers.get("Content-Length"));
+        return new RequestHead(requestLine[0], uri, requestLine[2], headers);
+    }
+
+    /**
+     * every Content-Length must be the same non-negative number, anything else makes the body length unknown
+     */
+    private static void checkContentLength(List<String> values)
+            throws ProtocolException
+    {
+        if (values == null) {
+            return;
+        }
+        long length = -1;
+        for (String value : values) {
+            long parsed;
+            try {
+                parsed = Long.parseLong(value.trim());
+            }
+            catch (NumberFormatException e) {
+                parsed = -1;
+            }
+            if (parsed < 0 || (length != -1 && parsed != length)) {
+                throw new ProtocolException(400, "bad Content-Length " + values);
+            }
+            length = parsed;
+        }
+    }
+
+    private void ensureReadSpace()
+    {
+        if (readStart == readEnd) {
+            readStart = 0;
+            readEnd = 0;
+        }
+        if (readEnd == readBuffer.length) {
+            if (readStart > 0) {
+                System.arraycopy(readBuffer, readStart, readBuffer, 0, readEnd - readStart);
+                readEnd -= readStart;
+                readStart = 0;
+            }
+            else {
+                byte[] newBuffer = new byte[Math.min(readBuffer.length * 2, MAX_HEAD_SIZE + WRITE_BUFFER_SIZE)];
+                System.arraycopy(readBuffer, 0, newBuffer, 0, readEnd);
+                readBuffer = newBuffer;
+            }
+        }
+    }
+
+    /**
+     * worker thread, blocking: request body bytes, buffered ones first
+     */
+    int readBody(byte[] b, int off, int len)
+            throws IOException
+    {
+        if (len == 0) {
+            return 0;
+        }
+        if (readStart == readEnd) {
+            if (len >= DIRECT_READ_THRESHOLD) {
+                return channel.read(ByteBuffer.wrap(b, off, len));
+            }
+            if (!fill()) {
+                return -1;
+            }
+        }
+        int n = Math.min(len, readEnd - readStart);
+        System.arraycopy(readBuffer, readStart, b, off, n);
+        readStart += n;
+        return n;
+    }
+
+    int readBodyByte()
+            throws IOException
+    {
+        if (readStart == readEnd && !fill()) {
+            return -1;
+        }
+        return readBuffer[readStart++] & 0xFF;
+    }
+
+    private boolean fill()
+            throws IOException
+    {
+        ensureReadSpace();
+        int n;
+        do {
+            n = channel.read(ByteBuffer.wrap(readBuffer, readEnd, readBuffer.length - readEnd));
+        }
+        while (n == 0);
+        if (n < 0) {
+            return false;
+        }
+        readEnd += n;
+        return true;
+    }
+
+    synchronized void write(byte[] b, int off, int len)
+            throws IOException
+    {
+        if (len >= WRITE_BUFFER_SIZE) {
+            flush();
+            writeFully(ByteBuffer.wrap(b, off, len));
+            return;
+        }
+        if (writeEnd + len > WRITE_BUFFER_SIZE) {
+            flush();
+        }
+        System.arraycopy(b, off, writeBuffer, writeEnd, len);
+        writeEnd += len;
+    }
+
+    void write(byte[] b)
+            throws IOException
+    {
+        write(b, 0, b.length);
+    }
+
+    synchronized void flush()
+            throws IOException
+    {
+        if (writeEnd > 0) {
+            int len = writeEnd;
+            writeEnd = 0;
+            writeFully(ByteBuffer.wrap(writeBuffer, 0, len));
+        }
+    }
+
+    synchronized long transferFrom(FileChannel file, long position, long count)
+            throws IOException
+    {
+        flush();
+        return IOUtils.transferTo(file, position, count, channel);
+    }
+
+    private void writeFully(ByteBuffer buffer)
+            throws IOException
+    {
+        if (closed) {
+            throw new EOFException("connection closed");
+        }
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * best effort error response, then close. used before the exchange has sent its headers
+     */
+    void sendError(int code)
+    {
+        try {
+            byte[] bytes = ("HTTP/1.1 " + code + " " + NioHttpExchange.reasonPhrase(code) + "\r\n" +
+                    "Content-Length: 0\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+            synchronized (this) {
+                writeEnd = 0;
+                channel.write(ByteBuffer.wrap(bytes));
+            }
+        }
+        catch (IOException ignored) {
+        }
+        close();
+    }
+
+    void close()
+    {
+        closed = true;
+        server.unregister(this);
+        try {
+            channel.close();
+        }
+        catch (IOException ignored) {
+        }
+    }
+}
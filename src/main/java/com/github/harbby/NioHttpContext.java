@@ -0,0 +1,77 @@
+package com.github.harbby;
+
+import com.sun.net.httpserver.Authenticator;
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+public class NioHttpContext
+        extends HttpContext
+{
+    private final NioHttpServer server;
+    private final String path;
+    private final Map<String, Object> attributes = new ConcurrentHashMap<>();
+    private final List<Filter> filters = new CopyOnWriteArrayList<>();
+    private volatile HttpHandler handler;
+
+    NioHttpContext(NioHttpServer server, String path, HttpHandler handler)
+    {
+        this.server = server;
+        this.path = path;
+        this.handler = handler;
+    }
+
+    @Override
+    public HttpHandler getHandler()
+    {
+        return handler;
+    }
+
+    @Override
+    public void setHandler(HttpHandler handler)
+    {
+        this.handler = handler;
+    }
+
+    @Override
+    public String getPath()
+    {
+        return path;
+    }
+
+    @Override
+    public HttpServer getServer()
+    {
+        return server;
+    }
+
+    @Override
+    public Map<String, Object> getAttributes()
+    {
+        return attributes;
+    }
+
+    @Override
+    public List<Filter> getFilters()
+    {
+        return filters;
+    }
+
+    @Override
+    public Authenticator setAuthenticator(Authenticator auth)
+    {
+        throw new UnsupportedOperationException("authenticator is not supported by the nio engine, use a filter");
+    }
+
+    @Override
+    public Authenticator getAuthenticator()
+    {
+        return null;
+    }
+}
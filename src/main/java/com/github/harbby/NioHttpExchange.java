@@ -0,0 +1,676 @@
+package com.github.harbby;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class NioHttpExchange
+        extends HttpExchange
+{
+    private static final int MAX_DRAIN_BYTES = 64 * 1024;
+
+    private final NioConnection connection;
+    private final NioConnection.RequestHead head;
+    private final HttpContext context;
+    private final Headers responseHeaders = new Headers();
+    private final Map<String, Object> attributes = new HashMap<>();
+    private final InputStream requestBody;
+    private final ResponseBody responseBody = new ResponseBody();
+    private InputStream userRequestBody;
+    private OutputStream userResponseBody;
+    private boolean keepAlive;
+    private boolean responseSent;
+    private boolean finished;
+    private int responseCode = -1;
+
+    NioHttpExchange(NioConnection connection, NioConnection.RequestHead head, HttpContext context)
+    {
+        this.connection = connection;
+        this.head = head;
+        this.context = context;
+        String connectionHeader = head.headers.getFirst("Connection");
+        this.keepAlive = "HTTP/1.1".equals(head.protocol) ? !"close".equalsIgnoreCase(connectionHeader) :
+                "keep-alive".equalsIgnoreCase(connectionHeader);
+        String transferEncoding = head.headers.getFirst("Transfer-Encoding");
+        String contentLength = head.headers.getFirst("Content-Length");
+        if (transferEncoding != null && transferEncoding.toLowerCase().endsWith("chunked")) {
+            this.requestBody = new ChunkedInput();
+        }
+        else if (contentLength != null) {
+            // validated by the head parser
+            this.requestBody = new FixedLengthInput(Long.parseLong(contentLength.trim()));
+        }
+        else {
+            this.requestBody = new FixedLengthInput(0);
+        }
+    }
+
+    boolean isResponseSent()
+    {
+        return responseSent;
+    }
+
+    @Override
+    public Headers getRequestHeaders()
+    {
+        return head.headers;
+    }
+
+    @Override
+    public Headers getResponseHeaders()
+    {
+        return responseHeaders;
+    }
+
+    @Override
+    public URI getRequestURI()
+    {
+        return head.uri;
+    }
+
+    @Override
+    public String getRequestMethod()
+    {
+        return head.method;
+    }
+
+    @Override
+    public HttpContext getHttpContext()
+    {
+        return context;
+    }
+
+    @Override
+    public void close()
+    {
+        try {
+            if (!responseSent) {
+                keepAlive = false;
+                connection.close();
+                return;
+            }
+            responseBody.close();
+        }
+        catch (IOException e) {
+            connection.close();
+        }
+    }
+
+    /**
+     * close the socket right away, a write blocked on a client that stopped reading fails with it
+     */
+    void abort()
+    {
+        keepAlive = false;
+        connection.close();
+    }
+
+    @Override
+    public InputStream getRequestBody()
+    {
+        return userRequestBody != null ? userRequestBody : requestBody;
+    }
+
+    @Override
+    public OutputStream getResponseBody()
+    {
+        return userResponseBody != null ? userResponseBody : responseBody;
+    }
+
+    @Override
+    public void sendResponseHeaders(int rCode, long responseLength)
+            throws IOException
+    {
+        if (responseSent) {
+            throw new IOException("headers already sent");
+        }
+        HttpUtils.checkHeaderValues(responseHeaders);
+        responseSent = true;
+        responseCode = rCode;
+        boolean noBody = rCode < 200 || rCode == 204 || rCode == 304;
+        OutputStream target;
+        if (noBody || "HEAD".equals(head.method)) {
+            if (noBody) {
+                responseHeaders.remove("Content-Length");
+            }
+            else if (responseLength > 0) {
+                responseHeaders.set("Content-Length", String.valueOf(responseLength));
+            }
+            target = new FixedLengthOutput(0);
+        }
+        else if (responseLength > 0) {
+            responseHeaders.set("Content-Length", String.valueOf(responseLength));
+            target = new FixedLengthOutput(responseLength);
+        }
+        else if (responseLength == 0) {
+            if ("HTTP/1.1".equals(head.protocol)) {
+                responseHeaders.set("Transfer-Encoding", "chunked");
+                target = new ChunkedOutput();
+            }
+            else {
+                // http/1.0 has no chunked encoding, the body ends when the connection closes
+                keepAlive = false;
+                target = new FixedLengthOutput(-1);
+            }
+        }
+        else {
+            responseHeaders.set("Content-Length", "0");
+            target = new FixedLengthOutput(0);
+        }
+        if ("close".equalsIgnoreCase(responseHeaders.getFirst("Connection"))) {
+            keepAlive = false;
+        }
+        if (!keepAlive) {
+            responseHeaders.set("Connection", "close");
+        }
+        responseHeaders.set("Date", HttpUtils.formatDate(System.currentTimeMillis()));
+
+        StringBuilder builder = new StringBuilder(256);
+        builder.append("HTTP/1.1 ").append(rCode).append(' ').append(reasonPhrase(rCode)).append("\r\n");
+        for (Map.Entry<String, List<String>> entry : responseHeaders.entrySet()) {
+            for (String value : entry.getValue()) {
+                builder.append(entry.getKey()).append(": ").append(value).append("\r\n");
+            }
+        }
+        builder.append("\r\n");
+        connection.write(builder.toString().getBytes(StandardCharsets.ISO_8859_1));
+        responseBody.target = target;
+        if (target instanceof FixedLengthOutput && ((FixedLengthOutput) target).remaining == 0) {
+            target.close();
+        }
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress()
+    {
+        return connection.getRemoteAddress();
+    }
+
+    @Override
+    public int getResponseCode()
+    {
+        return responseCode;
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress()
+    {
+        return connection.getLocalAddress();
+    }
+
+    @Override
+    public String getProtocol()
+    {
+        return head.protocol;
+    }
+
+    @Override
+    public Object getAttribute(String name)
+    {
+        return attributes.get(name);
+    }
+
+    @Override
+    public void setAttribute(String name, Object value)
+    {
+        attributes.put(name, value);
+    }
+
+    @Override
+    public void setStreams(InputStream i, OutputStream o)
+    {
+        if (i != null) {
+            userRequestBody = i;
+        }
+        if (o != null) {
+            userResponseBody = o;
+        }
+    }
+
+    @Override
+    public HttpPrincipal getPrincipal()
+    {
+        return null;
+    }
+
+    /**
+     * zero copy for the response body of this exchange, returns null if the body is not the raw fixed length
+     * or chunked stream (e.g. replaced by a filter)
+     */
+    FileTransport.Sink openSendfile(OutputStream body)
+    {
+        if (body != responseBody) {
+            return null;
+        }
+        OutputStream target = responseBody.target;
+        if (target instanceof FixedLengthOutput) {
+            FixedLengthOutput fixedLengthOutput = (FixedLengthOutput) target;
+            return (file, position, count) -> {
+                if (!fixedLengthOutput.closeDelimited && count > fixedLengthOutput.remaining) {
+                    throw new IOException("too many bytes to write to stream");
+                }
+                long transferred = connection.transferFrom(file, position, count);
+                if (!fixedLengthOutput.closeDelimited) {
+                    fixedLengthOutput.remaining -= transferred;
+                }
+                return transferred;
+            };
+        }
+        else if (target instanceof ChunkedOutput) {
+            ChunkedOutput chunkedOutput = (ChunkedOutput) target;
+            return (file, position, count) -> {
+                if (count == 0) {
+                    return 0;
+                }
+                chunkedOutput.flush();
+                connection.write((Long.toHexString(count) + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+                long transferred = connection.transferFrom(file, position, count);
+                if (transferred != count) {
+                    throw new IOException("file truncated while sending chunk");
+                }
+                connection.write(new byte[] {'\r', '\n'});
+                return transferred;
+            };
+        }
+        return null;
+    }
+
+    /**
+     * returns true when the request body is consumed and the connection can carry the next request
+     */
+    boolean drainRequestBody()
+            throws IOException
+    {
+        byte[] buffer = new byte[4096];
+        long drained = 0;
+        while (drained <= MAX_DRAIN_BYTES) {
+            int n;
+            try {
+                n = requestBody.read(buffer, 0, buffer.length);
+            }
+            catch (NioConnection.ProtocolException e) {
+                // the response is already out, a malformed rest of the body only closes the connection
+                return false;
+            }
+            if (n < 0) {
+                return true;
+            }
+            drained += n;
+        }
+        return false;
+    }
+
+    private void finish()
+    {
+        if (!finished) {
+            finished = true;
+            connection.finishExchange(this, keepAlive);
+        }
+    }
+
+    static String reasonPhrase(int code)
+    {
+        switch (code) {
+            case 100:
+                return "Continue";
+            case 101:
+                return "Switching Protocols";
+            case 200:
+                return "OK";
+            case 201:
+                return "Created";
+            case 202:
+                return "Accepted";
+            case 204:
+                return "No Content";
+            case 206:
+                return "Partial Content";
+            case 301:
+                return "Moved Permanently";
+            case 302:
+                return "Found";
+            case 304:
+                return "Not Modified";
+            case 400:
+                return "Bad Request";
+            case 403:
+                return "Forbidden";
+            case 404:
+                return "Not Found";
+            case 405:
+                return "Method Not Allowed";
+            case 409:
+                return "Conflict";
+            case 411:
+                return "Length Required";
+            case 413:
+                return "Payload Too Large";
+            case 416:
+                return "Range Not Satisfiable";
+            case 429:
+                return "Too Many Requests";
+            case 431:
+                return "Request Header Fields Too Large";
+            case 500:
+                return "Internal Server Error";
+            case 503:
+                return "Service Unavailable";
+            default:
+                return "";
+        }
+    }
+
+    private class ResponseBody
+            extends OutputStream
+    {
+        private OutputStream target;
+
+        private OutputStream target()
+                throws IOException
+        {
+            if (target == null) {
+                throw new IOException("response headers not sent yet");
+            }
+            return target;
+        }
+
+        @Override
+        public void write(int b)
+                throws IOException
+        {
+            target().write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len)
+                throws IOException
+        {
+            target().write(b, off, len);
+        }
+
+        @Override
+        public void flush()
+                throws IOException
+        {
+            target().flush();
+        }
+
+        @Override
+        public void close()
+                throws IOException
+        {
+            if (target == null) {
+                NioHttpExchange.this.close();
+                return;
+            }
+            target.close();
+        }
+    }
+
+    private class FixedLengthOutput
+            extends OutputStream
+    {
+        private final boolean closeDelimited;
+        private long remaining;
+        private boolean closed;
+
+        /**
+         * length -1 is a body that ends when the connection closes
+         */
+        private FixedLengthOutput(long length)
+        {
+            this.closeDelimited = length == -1;
+            this.remaining = closeDelimited ? Long.MAX_VALUE : length;
+        }
+
+        @Override
+        public void write(int b)
+                throws IOException
+        {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len)
+                throws IOException
+        {
+            if (closed) {
+                throw new IOException("stream closed");
+            }
+            if (!closeDelimited && len > remaining) {
+                throw new IOException("too many bytes to write to stream");
+            }
+            connection.write(b, off, len);
+            if (!closeDelimited) {
+                remaining -= len;
+            }
+        }
+
+        @Override
+        public void flush()
+                throws IOException
+        {
+            connection.flush();
+        }
+
+        @Override
+        public void close()
+                throws IOException
+        {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (!closeDelimited && remaining > 0) {
+                connection.close();
+                throw new IOException("insufficient bytes written to stream");
+            }
+            finish();
+        }
+    }
+
+    private class ChunkedOutput
+            extends OutputStream
+    {
+        private final byte[] buffer = new byte[8192];
+        private int count;
+        private boolean closed;
+
+        @Override
+        public void write(int b)
+                throws IOException
+        {
+            if (count == buffer.length) {
+                flush();
+            }
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len)
+                throws IOException
+        {
+            if (closed) {
+                throw new IOException("stream closed");
+            }
+            if (len >= buffer.length) {
+                flush();
+                writeChunk(b, off, len);
+                return;
+            }
+            if (count + len > buffer.length) {
+                flush();
+            }
+            System.arraycopy(b, off, buffer, count, len);
+            count += len;
+        }
+
+        private void writeChunk(byte[] b, int off, int len)
+                throws IOException
+        {
+            if (len > 0) {
+                connection.write((Integer.toHexString(len) + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+                connection.write(b, off, len);
+                connection.write(new byte[] {'\r', '\n'});
+            }
+        }
+
+        @Override
+        public void flush()
+                throws IOException
+        {
+            writeChunk(buffer, 0, count);
+            count = 0;
+            connection.flush();
+        }
+
+        @Override
+        public void close()
+                throws IOException
+        {
+            if (closed) {
+                return;
+            }
+            flush();
+            closed = true;
+            connection.write("0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+            finish();
+        }
+    }
+
+    private class FixedLengthInput
+            extends InputStream
+    {
+        private long remaining;
+
+        private FixedLengthInput(long length)
+        {
+            this.remaining = length;
+        }
+
+        @Override
+        public int read()
+                throws IOException
+        {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len)
+                throws IOException
+        {
+            if (remaining == 0) {
+                return -1;
+            }
+            int n = connection.readBody(b, off, (int) Math.min(len, remaining));
+            if (n < 0) {
+                throw new IOException("connection closed before request body end");
+            }
+            remaining -= n;
+            return n;
+        }
+
+        @Override
+        public int available()
+        {
+            return 0;
+        }
+    }
+
+    private class ChunkedInput
+            extends InputStream
+    {
+        private long chunkRemaining;
+        private boolean eof;
+
+        @Override
+        public int read()
+                throws IOException
+        {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len)
+                throws IOException
+        {
+            if (eof) {
+                return -1;
+            }
+            if (chunkRemaining == 0) {
+                String line = readLine();
+                int extension = line.indexOf(';');
+                chunkRemaining = parseChunkSize((extension < 0 ? line : line.substring(0, extension)).trim());
+                if (chunkRemaining == 0) {
+                    // skip trailers
+                    while (!readLine().isEmpty()) {
+                        // ignore
+                    }
+                    eof = true;
+                    return -1;
+                }
+            }
+            int n = connection.readBody(b, off, (int) Math.min(len, chunkRemaining));
+            if (n < 0) {
+                throw new IOException("connection closed before request body end");
+            }
+            chunkRemaining -= n;
+            if (chunkRemaining == 0) {
+                readLine();
+            }
+            return n;
+        }
+
+        /**
+         * hex digits only, Long.parseLong would also take a sign. 15 digits keep any size below Long.MAX_VALUE.
+         */
+        private long parseChunkSize(String value)
+                throws NioConnection.ProtocolException
+        {
+            if (value.isEmpty() || value.length() > 15) {
+                throw new NioConnection.ProtocolException(400, "bad chunk size " + value);
+            }
+            long size = 0;
+            for (int i = 0; i < value.length(); i++) {
+                int digit = Character.digit(value.charAt(i), 16);
+                if (digit < 0) {
+                    throw new NioConnection.ProtocolException(400, "bad chunk size " + value);
+                }
+                size = size << 4 | digit;
+            }
+            return size;
+        }
+
+        private String readLine()
+                throws IOException
+        {
+            StringBuilder builder = new StringBuilder();
+            int c;
+            while ((c = connection.readBodyByte()) != '\n') {
+                if (c < 0) {
+                    throw new IOException("connection closed before request body end");
+                }
+                if (c != '\r') {
+                    builder.append((char) c);
+                }
+                if (builder.length() > 4096) {
+                    throw new IOException("chunk line too long");
+                }
+            }
+            return builder.toString();
+        }
+    }
+}
@@ -0,0 +1,408 @@
+package com.github.harbby;
+
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * A selector based HTTP/1.1 engine serving the same HttpHandler as com.sun.net.httpserver.
+ * <p>
+ * One selector thread accepts connections and reads request heads without blocking, so idle keep-alive
+ * connections and slow clients do not hold a worker. Once a head is complete the connection leaves the
+ * selector, runs its exchange on the executor in blocking mode and comes back when the response is closed.
+ * Pipelined requests already buffered are dispatched right away. File bodies reach the socket with
+ * FileChannel.transferTo through {@link NioHttpExchange#openSendfile}, no reflection involved.
+ * <p>
+ * Cleartext HTTP/2 is served on the same port (see {@link Http2Connection}), a connection starting with the
+ * HTTP/2 preface or an HTTP/1.1 request with Upgrade: h2c switches protocols, sfs.http2=false turns it off.
+ */
+public class NioHttpServer
+        extends HttpServer
+{
+    static final long IDLE_TIMEOUT_MILLIS = Long.getLong("sfs.nio.idleTimeoutMillis", 30_000);
+    private static final boolean HTTP2 = !"false".equals(System.getProperty("sfs.http2"));
+
+    private final List<NioHttpContext> contexts = new CopyOnWriteArrayList<>();
+    private final Queue<NioConnection> resumeQueue = new ConcurrentLinkedQueue<>();
+    private final Queue<Http2Connection> http2ResumeQueue = new ConcurrentLinkedQueue<>();
+    private final Set<NioConnection> connections = ConcurrentHashMap.newKeySet();
+    private ServerSocketChannel serverChannel;
+    private Selector selector;
+    private Executor executor;
+    private ExecutorService defaultExecutor;
+    private Thread selectorThread;
+    private volatile boolean running;
+
+    private final LongAdder http2Connections = new LongAdder();
+    private final AtomicInteger openHttp2Connections = new AtomicInteger();
+    private final LongAdder http2Streams = new LongAdder();
+
+    public static NioHttpServer create(InetSocketAddress address, int backlog)
+            throws IOException
+    {
+        NioHttpServer server = new NioHttpServer();
+        server.bind(address, backlog);
+        return server;
+    }
+
+    @Override
+    public void bind(InetSocketAddress address, int backlog)
+            throws IOException
+    {
+        if (serverChannel != null) {
+            throw new IllegalStateException("server already bound");
+        }
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        channel.socket().setReuseAddress(true);
+        // a burst of thousands of connects overflows the jdk default backlog of 50
+        channel.bind(address, backlog > 0 ? backlog : 1024);
+        channel.configureBlocking(false);
+        this.serverChannel = channel;
+    }
+
+    @Override
+    public synchronized void start()
+    {
+        if (serverChannel == null || running) {
+            throw new IllegalStateException("server not bound or already started");
+        }
+        if (executor == null) {
+            AtomicInteger threadId = new AtomicInteger();
+            defaultExecutor = Executors.newCachedThreadPool(r -> {
+                Thread thread = new Thread(r, "nio-http-worker-" + threadId.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            });
+            executor = defaultExecutor;
+        }
+        try {
+            selector = Selector.open();
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        }
+        catch (IOException e) {
+            throw new IllegalStateException("open selector failed", e);
+        }
+        running = true;
+        selectorThread = new Thread(this::loop, "nio-http-selector");
+        selectorThread.start();
+    }
+
+    @Override
+    public void setExecutor(Executor executor)
+    {
+        if (running) {
+            throw new IllegalStateException("server already started");
+        }
+        this.executor = executor;
+    }
+
+    @Override
+    public Executor getExecutor()
+    {
+        return executor;
+    }
+
+    @Override
+    public void stop(int delay)
+    {
+        running = false;
+        if (selector != null) {
+            selector.wakeup();
+        }
+        try {
+            if (selectorThread != null) {
+                selectorThread.join(TimeUnit.SECONDS.toMillis(Math.max(delay, 0)) + 1);
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        closeQuietly(serverChannel);
+        for (NioConnection connection : connections) {
+            connection.close();
+        }
+        if (defaultExecutor != null) {
+            defaultExecutor.shutdownNow();
+        }
+    }
+
+    @Override
+    public HttpContext createContext(String path, HttpHandler handler)
+    {
+        requireNonNull(path, "path is null");
+        if (!path.startsWith("/")) {
+            throw new IllegalArgumentException("path must start with /");
+        }
+        for (NioHttpContext context : contexts) {
+            if (context.getPath().equals(path)) {
+                throw new IllegalArgumentException("cannot add context to list");
+            }
+        }
+        NioHttpContext context = new NioHttpContext(this, path, handler);
+        contexts.add(context);
+        return context;
+    }
+
+    @Override
+    public HttpContext createContext(String path)
+    {
+        return createContext(path, null);
+    }
+
+    @Override
+    public void removeContext(String path)
+            throws IllegalArgumentException
+    {
+        if (!contexts.removeIf(context -> context.getPath().equals(path))) {
+            throw new IllegalArgumentException("cannot remove element from list");
+        }
+    }
+
+    @Override
+    public void removeContext(HttpContext context)
+            throws IllegalArgumentException
+    {
+        if (!contexts.remove(context)) {
+            throw new IllegalArgumentException("cannot remove element from list");
+        }
+    }
+
+    @Override
+    public InetSocketAddress getAddress()
+    {
+        try {
+            return (InetSocketAddress) serverChannel.getLocalAddress();
+        }
+        catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * longest prefix match, same as com.sun.net.httpserver
+     */
+    NioHttpContext findContext(String path)
+    {
+        NioHttpContext found = null;
+        for (NioHttpContext context : contexts) {
+            if (path.startsWith(context.getPath()) && (found == null || context.getPath().length() > found.getPath().length())) {
+                found = context;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * hand a connection with a complete request head to the executor, the channel must be in blocking mode
+     */
+    void dispatch(NioConnection connection, NioConnection.RequestHead head)
+    {
+        try {
+            executor.execute(() -> connection.runExchange(head));
+        }
+        catch (RejectedExecutionException e) {
+            connection.sendError(503);
+        }
+    }
+
+    /**
+     * called by a worker when the connection waits for its next request
+     */
+    void resume(NioConnection connection)
+    {
+        resumeQueue.add(connection);
+        selector.wakeup();
+    }
+
+    /**
+     * an upgraded HTTP/2 connection, the channel is non-blocking and waits for its frames
+     */
+    void resume(Http2Connection connection)
+    {
+        http2ResumeQueue.add(connection);
+        selector.wakeup();
+    }
+
+    void unregister(NioConnection connection)
+    {
+        connections.remove(connection);
+    }
+
+    boolean isHttp2Enabled()
+    {
+        return HTTP2;
+    }
+
+    void http2ConnectionOpened()
+    {
+        http2Connections.increment();
+        openHttp2Connections.incrementAndGet();
+    }
+
+    void http2ConnectionClosed()
+    {
+        openHttp2Connections.decrementAndGet();
+    }
+
+    void http2StreamOpened()
+    {
+        http2Streams.increment();
+    }
+
+    public long getHttp2ConnectionCount()
+    {
+        return http2Connections.sum();
+    }
+
+    public int getOpenHttp2ConnectionCount()
+    {
+        return openHttp2Connections.get();
+    }
+
+    public long getHttp2StreamCount()
+    {
+        return http2Streams.sum();
+    }
+
+    private void loop()
+    {
+        List<NioConnection> ready = new ArrayList<>();
+        long lastIdleCheck = System.currentTimeMillis();
+        while (running) {
+            try {
+                selector.select(1000);
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+                continue;
+            }
+            NioConnection resumed;
+            while ((resumed = resumeQueue.poll()) != null) {
+                try {
+                    resumed.getChannel().configureBlocking(false);
+                    resumed.getChannel().register(selector, SelectionKey.OP_READ, resumed);
+                }
+                catch (IOException | RuntimeException e) {
+                    resumed.close();
+                }
+            }
+            Http2Connection upgraded;
+            while ((upgraded = http2ResumeQueue.poll()) != null) {
+                try {
+                    upgraded.getChannel().register(selector, SelectionKey.OP_READ, upgraded);
+                    upgraded.onRegistered();
+                }
+                catch (IOException | RuntimeException e) {
+                    upgraded.close();
+                }
+            }
+            Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+            while (iterator.hasNext()) {
+                SelectionKey key = iterator.next();
+                iterator.remove();
+                if (!key.isValid()) {
+                    continue;
+                }
+                if (key.isAcceptable()) {
+                    accept();
+                }
+                else if (key.attachment() instanceof Http2Connection) {
+                    ((Http2Connection) key.attachment()).onReadable();
+                }
+                else if (key.isReadable()) {
+                    NioConnection connection = (NioConnection) key.attachment();
+                    if (connection.readHead()) {
+                        key.cancel();
+                        ready.add(connection);
+                    }
+                    else if (connection.hasHttp2Preface()) {
+                        // prior knowledge, the connection stays registered and switches protocols in place
+                        Http2Connection http2 = new Http2Connection(this, connection, connection.takeBuffered());
+                        key.attach(http2);
+                        http2.start();
+                    }
+                }
+            }
+            if (!ready.isEmpty()) {
+                try {
+                    // deregister the cancelled keys, a registered channel cannot switch to blocking mode
+                    selector.selectNow();
+                }
+                catch (IOException e) {
+                    e.printStackTrace();
+                }
+                for (NioConnection connection : ready) {
+                    connection.dispatchBufferedHead();
+                }
+                ready.clear();
+            }
+            long now = System.currentTimeMillis();
+            if (now - lastIdleCheck >= 1000) {
+                lastIdleCheck = now;
+                for (SelectionKey key : selector.keys()) {
+                    Object attachment = key.attachment();
+                    if (attachment instanceof NioConnection && now - ((NioConnection) attachment).getLastActive() > IDLE_TIMEOUT_MILLIS) {
+                        key.cancel();
+                        ((NioConnection) attachment).close();
+                    }
+                    else if (attachment instanceof Http2Connection && ((Http2Connection) attachment).isIdle(now)) {
+                        ((Http2Connection) attachment).goAway(Http2Connection.NO_ERROR, "idle");
+                    }
+                }
+            }
+        }
+        closeQuietly(selector);
+    }
+
+    private void accept()
+    {
+        try {
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                NioConnection connection = new NioConnection(this, channel);
+                connections.add(connection);
+                channel.register(selector, SelectionKey.OP_READ, connection);
+            }
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void closeQuietly(AutoCloseable closeable)
+    {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            }
+            catch (Exception ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.github.harbby;
+
+import java.util.concurrent.Executor;
+
+/**
+ * The executor running exchanges, with the numbers an operator needs to see saturation.
+ */
+public interface RequestExecutor
+        extends Executor
+{
+    String getMode();
+
+    int getActiveCount();
+
+    int getQueueDepth();
+
+    long getRejectedCount();
+
+    long getCompletedCount();
+}
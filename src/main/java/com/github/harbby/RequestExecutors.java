@@ -0,0 +1,235 @@
+package com.github.harbby;
+
+import java.lang.reflect.Method;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+public class RequestExecutors
+{
+    private RequestExecutors() {}
+
+    /**
+     * the fixed pool of platform threads, one blocked thread per in flight exchange
+     */
+    public static RequestExecutor fixed(int parallelism)
+    {
+        AtomicInteger threadId = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(parallelism, parallelism, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), r -> new Thread(r, "sfs-worker-" + threadId.getAndIncrement()));
+        return new RequestExecutor()
+        {
+            @Override
+            public void execute(Runnable command)
+            {
+                pool.execute(command);
+            }
+
+            @Override
+            public String getMode()
+            {
+                return "fixed";
+            }
+
+            @Override
+            public int getActiveCount()
+            {
+                return pool.getActiveCount();
+            }
+
+            @Override
+            public int getQueueDepth()
+            {
+                return pool.getQueue().size();
+            }
+
+            @Override
+            public long getRejectedCount()
+            {
+                return 0;
+            }
+
+            @Override
+            public long getCompletedCount()
+            {
+                return pool.getCompletedTaskCount();
+            }
+        };
+    }
+
+    /**
+     * one virtual thread per exchange when the runtime has them (jdk 21+), platform threads otherwise.
+     * Admission is bounded by maxConcurrent running and maxQueue waiting exchanges, beyond that tasks are rejected.
+     */
+    public static RequestExecutor virtual(int maxConcurrent, int maxQueue, int platformFallbackConcurrent)
+    {
+        ThreadFactory virtualThreadFactory = virtualThreadFactory();
+        if (virtualThreadFactory != null) {
+            return new AdmissionExecutor("virtual", virtualThreadFactory, maxConcurrent, maxQueue);
+        }
+        System.out.println("virtual threads are not available on java " + System.getProperty("java.version") +
+                ", fall back to at most " + platformFallbackConcurrent + " platform threads");
+        AtomicInteger threadId = new AtomicInteger();
+        ThreadFactory platformThreadFactory = r -> {
+            Thread thread = new Thread(r, "sfs-worker-" + threadId.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+        return new AdmissionExecutor("platform", platformThreadFactory, Math.min(maxConcurrent, platformFallbackConcurrent), maxQueue);
+    }
+
+    /**
+     * Thread.ofVirtual().name("sfs-virtual-", 0).factory() by reflection, the build still targets java 8
+     */
+    static ThreadFactory virtualThreadFactory()
+    {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "sfs-virtual-", 0L);
+            Method factory = builderClass.getMethod("factory");
+            ThreadFactory threadFactory = (ThreadFactory) factory.invoke(builder);
+            // preview builds (19, 20) throw here unless --enable-preview
+            threadFactory.newThread(() -> {});
+            return threadFactory;
+        }
+        catch (Exception | LinkageError e) {
+            return null;
+        }
+    }
+
+    private static class AdmissionExecutor
+            implements RequestExecutor
+    {
+        private final String mode;
+        private final ThreadFactory threadFactory;
+        private final int maxConcurrent;
+        private final int maxQueue;
+        private final AtomicInteger active = new AtomicInteger();
+        private final AtomicInteger queued = new AtomicInteger();
+        private final Queue<Runnable> pending = new ConcurrentLinkedQueue<>();
+        private final LongAdder rejected = new LongAdder();
+        private final LongAdder completed = new LongAdder();
+
+        private AdmissionExecutor(String mode, ThreadFactory threadFactory, int maxConcurrent, int maxQueue)
+        {
+            this.mode = mode;
+            this.threadFactory = threadFactory;
+            this.maxConcurrent = maxConcurrent;
+            this.maxQueue = maxQueue;
+        }
+
+        @Override
+        public void execute(Runnable command)
+        {
+            if (tryAcquire()) {
+                start(command);
+                return;
+            }
+            if (queued.incrementAndGet() > maxQueue) {
+                queued.decrementAndGet();
+                rejected.increment();
+                throw new RejectedExecutionException("too many exchanges, active " + active.get() + " queued " + maxQueue);
+            }
+            pending.add(command);
+            // a running thread may have finished between tryAcquire and add
+            drain();
+        }
+
+        private boolean tryAcquire()
+        {
+            int current;
+            do {
+                current = active.get();
+                if (current >= maxConcurrent) {
+                    return false;
+                }
+            }
+            while (!active.compareAndSet(current, current + 1));
+            return true;
+        }
+
+        private Runnable poll()
+        {
+            Runnable task = pending.poll();
+            if (task != null) {
+                queued.decrementAndGet();
+            }
+            return task;
+        }
+
+        private void drain()
+        {
+            while (!pending.isEmpty() && tryAcquire()) {
+                Runnable task = poll();
+                if (task == null) {
+                    active.decrementAndGet();
+                    return;
+                }
+                start(task);
+            }
+        }
+
+        private void start(Runnable first)
+        {
+            try {
+                threadFactory.newThread(() -> {
+                    Runnable task = first;
+                    while (task != null) {
+                        try {
+                            task.run();
+                        }
+                        catch (Throwable e) {
+                            e.printStackTrace();
+                        }
+                        completed.increment();
+                        task = poll();
+                    }
+                    active.decrementAndGet();
+                    drain();
+                }).start();
+            }
+            catch (OutOfMemoryError | RuntimeException e) {
+                active.decrementAndGet();
+                rejected.increment();
+                throw new RejectedExecutionException("start thread failed", e);
+            }
+        }
+
+        @Override
+        public String getMode()
+        {
+            return mode;
+        }
+
+        @Override
+        public int getActiveCount()
+        {
+            return active.get();
+        }
+
+        @Override
+        public int getQueueDepth()
+        {
+            return queued.get();
+        }
+
+        @Override
+        public long getRejectedCount()
+        {
+            return rejected.sum();
+        }
+
+        @Override
+        public long getCompletedCount()
+        {
+            return completed.sum();
+        }
+    }
+}
@@ -0,0 +1,462 @@
+package com.github.harbby;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+/**
+ * Resumable upload in numbered chunks, every call is addressed to the target directory:
+ * <pre>
+ * POST   /dir/?&upload_session&name=a.bin&size=N[&chunk_size=M]   create, 201 with the session status
+ * PUT    /dir/?&upload_session=ID&chunk=I                         body is chunk I, any order, in parallel
+ * GET    /dir/?&upload_session=ID                                 received byte ranges and missing chunks
+ * POST   /dir/?&upload_session=ID&commit                          move the file to /dir/__upload__/a.bin
+ * DELETE /dir/?&upload_session=ID                                 abort
+ * </pre>
+ * Chunks are written at their offset of the data file with positional FileChannel writes,
+ * so parallel PUTs never contend. A chunk is marked as received in a one byte per chunk file only after
+ * its body was complete. Sessions live in the state directory and are reloaded on demand after a restart,
+ * a session without a write for sessionTtlMillis is deleted.
+ */
+public class ResumableUploadHandler
+        implements HttpHandler
+{
+    private static final long DEFAULT_CHUNK_SIZE = 8 * 1024 * 1024;
+    private static final long MIN_CHUNK_SIZE = 64 * 1024;
+    private static final long MAX_CHUNK_SIZE = 1024 * 1024 * 1024;
+    private static final long MAX_CHUNKS = 1 << 20;
+    private static final Pattern SESSION_ID = Pattern.compile("[0-9a-f]{32}");
+
+    private final StateDirectory stateDirectory;
+    private final ConcurrentMap<String, Session> sessions = new ConcurrentHashMap<>();
+    private final long sessionTtlMillis;
+    private volatile long lastSweep;
+
+    public ResumableUploadHandler(StateDirectory stateDirectory, long sessionTtlMillis)
+    {
+        this.stateDirectory = stateDirectory;
+        this.sessionTtlMillis = sessionTtlMillis;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange)
+            throws IOException
+    {
+        Map<String, String> query = HttpUtils.parseQuery(exchange.getRequestURI().getRawQuery());
+        String id = query.get("upload_session");
+        String method = exchange.getRequestMethod();
+        try {
+            if (id == null || id.isEmpty()) {
+                if ("POST".equals(method)) {
+                    create(exchange, query);
+                }
+                else {
+                    sendText(exchange, 405, "create an upload session with POST");
+                }
+                return;
+            }
+            Session session = SESSION_ID.matcher(id).matches() ? getSession(id) : null;
+            if (session == null) {
+                sendText(exchange, 404, "upload session not found");
+                return;
+            }
+            switch (method) {
+                case "GET":
+                    sendStatus(exchange, 200, session);
+                    return;
+                case "PUT":
+                    writeChunk(exchange, session, Integer.parseInt(require(query, "chunk")));
+                    return;
+                case "POST":
+                    if (query.containsKey("commit")) {
+                        commit(exchange, session);
+                    }
+                    else {
+                        sendText(exchange, 400, "unknown upload session action");
+                    }
+                    return;
+                case "DELETE":
+                    abort(session);
+                    exchange.sendResponseHeaders(204, -1);
+                    exchange.getResponseBody().close();
+                    return;
+                default:
+                    sendText(exchange, 405, "method not allowed");
+            }
+        }
+        catch (IllegalArgumentException e) {
+            sendText(exchange, 400, e.getMessage());
+        }
+        catch (UploadSink.InsufficientStorageException e) {
+            System.out.println(e.getMessage());
+            sendText(exchange, 507, "insufficient storage");
+        }
+    }
+
+    private void create(HttpExchange exchange, Map<String, String> query)
+            throws IOException
+    {
+        File savePath = new File(".", exchange.getRequestURI().getPath());
+        if (!savePath.isDirectory()) {
+            sendText(exchange, 404, "upload dir not found");
+            return;
+        }
+        String name = require(query, "name");
+        if (name.isEmpty() || name.equals(".") || name.equals("..") || name.indexOf('/') != -1 || name.indexOf('\\') != -1) {
+            throw new IllegalArgumentException("bad file name " + name);
+        }
+        long size = Long.parseLong(require(query, "size"));
+        long chunkSize = query.containsKey("chunk_size") ? Long.parseLong(query.get("chunk_size")) : DEFAULT_CHUNK_SIZE;
+        if (size < 0 || chunkSize < MIN_CHUNK_SIZE || chunkSize > MAX_CHUNK_SIZE || (size + chunkSize - 1) / chunkSize > MAX_CHUNKS) {
+            throw new IllegalArgumentException("bad size " + size + " or chunk_size " + chunkSize);
+        }
+        sweep();
+
+        String id = Long.toHexString(ThreadLocalRandom.current().nextLong() | Long.MIN_VALUE) +
+                Long.toHexString(ThreadLocalRandom.current().nextLong() | Long.MIN_VALUE);
+        File sessionDir = new File(stateDirectory.resolve("uploads"), id);
+        if (!StateDirectory.mkdirs(sessionDir.getParentFile()) || !sessionDir.mkdir()) {
+            throw new IOException("create upload session dir " + sessionDir + " failed");
+        }
+        Properties properties = new Properties();
+        properties.setProperty("path", exchange.getRequestURI().getPath());
+        properties.setProperty("name", name);
+        properties.setProperty("size", String.valueOf(size));
+        properties.setProperty("chunkSize", String.valueOf(chunkSize));
+        try {
+            if (sessionDir.getUsableSpace() < size) {
+                throw new UploadSink.InsufficientStorageException("upload needs " + size + " bytes but " + sessionDir + " has " + sessionDir.getUsableSpace());
+            }
+            try (OutputStream out = new FileOutputStream(new File(sessionDir, "session.properties"))) {
+                properties.store(out, "resumable upload session");
+            }
+            Session session = Session.load(id, sessionDir);
+            sessions.put(id, session);
+            System.out.printf("create upload session %s for %s [size=%s] [chunks=%s]\n", id, name, size, session.chunkCount);
+            exchange.getResponseHeaders().set("Location", exchange.getRequestURI().getRawPath() + "?&upload_session=" + id);
+            sendStatus(exchange, 201, session);
+        }
+        catch (IOException | RuntimeException e) {
+            deleteSessionDir(sessionDir);
+            throw e;
+        }
+    }
+
+    private void writeChunk(HttpExchange exchange, Session session, int index)
+            throws IOException
+    {
+        if (index < 0 || index >= session.chunkCount) {
+            throw new IllegalArgumentException("chunk " + index + " out of range [0, " + session.chunkCount + ")");
+        }
+        long offset = index * session.chunkSize;
+        long expected = Math.min(session.chunkSize, session.size - offset);
+        session.lock.readLock().lock();
+        try {
+            if (session.closed) {
+                sendText(exchange, 409, "upload session already finished");
+                return;
+            }
+            long written = 0;
+            byte[] bytes = new byte[(int) Math.min(expected, 256 * 1024)];
+            InputStream in = exchange.getRequestBody();
+            while (written < expected) {
+                int n = in.read(bytes, 0, (int) Math.min(bytes.length, expected - written));
+                if (n < 0) {
+                    break;
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, n);
+                while (buffer.hasRemaining()) {
+                    written += session.data.write(buffer, offset + written);
+                }
+            }
+            if (written != expected || in.read() != -1) {
+                throw new IllegalArgumentException("chunk " + index + " must be exactly " + expected + " bytes");
+            }
+            session.markReceived(index);
+        }
+        finally {
+            session.lock.readLock().unlock();
+        }
+        exchange.sendResponseHeaders(204, -1);
+        exchange.getResponseBody().close();
+    }
+
+    private void commit(HttpExchange exchange, Session session)
+            throws IOException
+    {
+        File saveFile;
+        session.lock.writeLock().lock();
+        try {
+            if (session.closed) {
+                sendText(exchange, 409, "upload session already finished");
+                return;
+            }
+            int missing = session.chunkCount - session.getReceivedCount();
+            if (missing > 0) {
+                sendStatus(exchange, 409, session);
+                return;
+            }
+            File uploadDir = new File(new File(".", session.path), "__upload__");
+            if (!uploadDir.exists()) {
+                uploadDir.mkdir();
+            }
+            saveFile = new File(uploadDir, session.name);
+            session.data.force(true);
+            session.close();
+            File dataFile = new File(session.dir, "data");
+            try {
+                Files.move(dataFile.toPath(), saveFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }
+            catch (AtomicMoveNotSupportedException e) {
+                Files.move(dataFile.toPath(), saveFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            sessions.remove(session.id);
+            deleteSessionDir(session.dir);
+        }
+        finally {
+            session.lock.writeLock().unlock();
+        }
+        System.out.printf("upload file %s [size=%s] to %s by session %s\n", session.name, session.size, saveFile, session.id);
+        sendText(exchange, 201, "File upload successful!");
+    }
+
+    private void abort(Session session)
+            throws IOException
+    {
+        session.lock.writeLock().lock();
+        try {
+            if (!session.closed) {
+                session.close();
+                sessions.remove(session.id);
+                deleteSessionDir(session.dir);
+            }
+        }
+        finally {
+            session.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * delete sessions whose files were not written for sessionTtlMillis, at most once an hour
+     */
+    private void sweep()
+            throws IOException
+    {
+        long now = System.currentTimeMillis();
+        if (now - lastSweep < Math.min(sessionTtlMillis, 60 * 60 * 1000)) {
+            return;
+        }
+        lastSweep = now;
+        File[] sessionDirs = new File(stateDirectory.getRoot(), "uploads").listFiles();
+        for (File sessionDir : sessionDirs == null ? new File[0] : sessionDirs) {
+            long lastWrite = sessionDir.lastModified();
+            File[] files = sessionDir.listFiles();
+            for (File file : files == null ? new File[0] : files) {
+                lastWrite = Math.max(lastWrite, file.lastModified());
+            }
+            if (now - lastWrite <= sessionTtlMillis) {
+                continue;
+            }
+            Session session = SESSION_ID.matcher(sessionDir.getName()).matches() ? getSession(sessionDir.getName()) : null;
+            if (session != null) {
+                abort(session);
+            }
+            else {
+                deleteSessionDir(sessionDir);
+            }
+            System.out.println("expired upload session " + sessionDir.getName());
+        }
+    }
+
+    private Session getSession(String id)
+            throws IOException
+    {
+        Session session = sessions.get(id);
+        if (session != null) {
+            return session;
+        }
+        File sessionDir = new File(new File(stateDirectory.getRoot(), "uploads"), id);
+        if (!new File(sessionDir, "session.properties").isFile()) {
+            return null;
+        }
+        // the server restarted since the session was created
+        Session loaded = Session.load(id, sessionDir);
+        session = sessions.putIfAbsent(id, loaded);
+        if (session != null) {
+            loaded.close();
+            return session;
+        }
+        return loaded;
+    }
+
+    private static void sendStatus(HttpExchange exchange, int status, Session session)
+            throws IOException
+    {
+        StringBuilder received = new StringBuilder();
+        StringBuilder missing = new StringBuilder();
+        BitSet bits = session.snapshot();
+        for (int start = bits.nextSetBit(0); start >= 0 && start < session.chunkCount; ) {
+            int end = bits.nextClearBit(start);
+            received.append(received.length() == 0 ? "" : ",")
+                    .append('[').append(start * session.chunkSize).append(',')
+                    .append(Math.min(end * session.chunkSize, session.size) - 1).append(']');
+            start = bits.nextSetBit(end);
+        }
+        for (int i = bits.nextClearBit(0); i < session.chunkCount; i = bits.nextClearBit(i + 1)) {
+            missing.append(missing.length() == 0 ? "" : ",").append(i);
+        }
+        String json = "{\"id\":\"" + session.id + "\",\"name\":" + HttpUtils.toJsonString(session.name) +
+                ",\"size\":" + session.size + ",\"chunkSize\":" + session.chunkSize + ",\"chunks\":" + session.chunkCount +
+                ",\"received\":[" + received + "],\"missing\":[" + missing + "]}\n";
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+
+    private static void sendText(HttpExchange exchange, int status, String text)
+            throws IOException
+    {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+
+    private static String require(Map<String, String> query, String name)
+    {
+        String value = query.get(name);
+        if (value == null) {
+            throw new IllegalArgumentException("missing query parameter " + name);
+        }
+        return value;
+    }
+
+    private static void deleteSessionDir(File sessionDir)
+    {
+        File[] files = sessionDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        if (!sessionDir.delete()) {
+            System.out.println("delete upload session dir " + sessionDir + " failed");
+        }
+    }
+
+    private static class Session
+    {
+        private final String id;
+        private final File dir;
+        private final String path;
+        private final String name;
+        private final long size;
+        private final long chunkSize;
+        private final int chunkCount;
+        private final FileChannel data;
+        private final FileChannel marks;
+        private final BitSet received;
+        private final ReadWriteLock lock = new ReentrantReadWriteLock();
+        private boolean closed;
+
+        private Session(String id, File dir, Properties properties, FileChannel data, FileChannel marks, BitSet received)
+        {
+            this.id = id;
+            this.dir = dir;
+            this.path = properties.getProperty("path");
+            this.name = properties.getProperty("name");
+            this.size = Long.parseLong(properties.getProperty("size"));
+            this.chunkSize = Long.parseLong(properties.getProperty("chunkSize"));
+            this.chunkCount = (int) ((size + chunkSize - 1) / chunkSize);
+            this.data = data;
+            this.marks = marks;
+            this.received = received;
+        }
+
+        private static Session load(String id, File dir)
+                throws IOException
+        {
+            Properties properties = new Properties();
+            try (InputStream in = new FileInputStream(new File(dir, "session.properties"))) {
+                properties.load(in);
+            }
+            FileChannel data = new RandomAccessFile(new File(dir, "data"), "rw").getChannel();
+            FileChannel marks = new RandomAccessFile(new File(dir, "chunks"), "rw").getChannel();
+            BitSet received = new BitSet();
+            ByteBuffer buffer = ByteBuffer.allocate((int) marks.size());
+            while (buffer.hasRemaining() && marks.read(buffer) >= 0) {
+                // chunks file is one byte per chunk, small enough to read at once
+            }
+            for (int i = 0; i < buffer.position(); i++) {
+                if (buffer.get(i) != 0) {
+                    received.set(i);
+                }
+            }
+            return new Session(id, dir, properties, data, marks, received);
+        }
+
+        private void markReceived(int index)
+                throws IOException
+        {
+            ByteBuffer mark = ByteBuffer.wrap(new byte[] {1});
+            while (mark.hasRemaining()) {
+                marks.write(mark, index);
+            }
+            synchronized (received) {
+                received.set(index);
+            }
+        }
+
+        private int getReceivedCount()
+        {
+            synchronized (received) {
+                return received.cardinality();
+            }
+        }
+
+        private BitSet snapshot()
+        {
+            synchronized (received) {
+                return (BitSet) received.clone();
+            }
+        }
+
+        private void close()
+                throws IOException
+        {
+            closed = true;
+            try {
+                data.close();
+            }
+            finally {
+                marks.close();
+            }
+        }
+    }
+}
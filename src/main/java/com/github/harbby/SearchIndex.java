@@ -0,0 +1,1225 @@
+package com.github.harbby;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+import java.util.stream.IntStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * In memory index of the names under the served root for {@code ?&search=PATTERN}: a case insensitive substring
+ * of the file or directory name, or a glob with * and ? matching the whole name.
+ * <p>
+ * Nodes are laid out breadth first with the children of a directory contiguous and sorted, names live in one
+ * char pool and a suffix array over the lower cased pool finds every name containing a literal in O(m log n).
+ * The tree is built at startup by a fork-join walk, then a WatchService on every directory keeps it current:
+ * created names are appended behind the suffix array and scanned linearly, deleted ones are tombstones. Once
+ * either outgrows a quarter of the tree it is rebuilt and a deflated snapshot is written to the state directory.
+ * After a restart the snapshot is loaded and only directories whose mtime changed are listed again, one stat
+ * per directory instead of one per inode. The index costs about 150 bytes per name.
+ */
+public class SearchIndex
+{
+    private static final int DEFAULT_LIMIT = 1000;
+    private static final int MAX_LIMIT = 100_000;
+    private static final int SNAPSHOT_MAGIC = 0x53465349;
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final long MTIME_GRANULARITY_MILLIS = 2000;
+    private static final int MIN_COMPACTION = 100_000;
+
+    private final Path root;
+    private final StateDirectory stateDirectory;
+    private final File snapshotFile;
+    private final ForkJoinPool walkPool;
+    private final WatchService watchService;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    // null until built or loaded, replaced by a compaction, otherwise changed under the write lock. Only the
+    // search-index thread changes it, that thread reads it without the lock.
+    private volatile Tree tree;
+    private boolean dirty;
+
+    private final LongAdder searches = new LongAdder();
+    private final LongAdder events = new LongAdder();
+    private final AtomicLong unwatched = new AtomicLong();
+
+    public static class Match
+    {
+        private final String path;
+        private final boolean directory;
+
+        private Match(String path, boolean directory)
+        {
+            this.path = path;
+            this.directory = directory;
+        }
+
+        public String getPath()
+        {
+            return path;
+        }
+
+        public boolean isDirectory()
+        {
+            return directory;
+        }
+    }
+
+    /**
+     * root null disables search, parallelism is the number of directories listed at once by the walk
+     */
+    public SearchIndex(File root, StateDirectory stateDirectory, int parallelism)
+            throws IOException
+    {
+        this.stateDirectory = stateDirectory;
+        if (root == null) {
+            this.root = null;
+            this.snapshotFile = null;
+            this.walkPool = null;
+            this.watchService = null;
+            return;
+        }
+        this.root = root.toPath().toAbsolutePath().normalize();
+        this.snapshotFile = new File(stateDirectory.resolve("search"), "names.snapshot");
+        this.walkPool = new ForkJoinPool(parallelism);
+        this.watchService = FileSystems.getDefault().newWatchService();
+        Thread thread = new Thread(this::run, "search-index");
+        thread.setDaemon(true);
+        thread.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::saveIfDirty, "search-index-shutdown"));
+    }
+
+    public boolean isEnabled()
+    {
+        return root != null;
+    }
+
+    public boolean isReady()
+    {
+        return tree != null;
+    }
+
+    /**
+     * {@code ?&search=PATTERN[&limit=N][&list=ndjson]} below dir, json by default. While the index is being built
+     * the answer is 503 with Retry-After.
+     */
+    public void send(HttpExchange t, Map<String, String> query)
+            throws IOException
+    {
+        String pattern = query.get("search");
+        boolean ndjson = "ndjson".equals(query.get("list"));
+        int limit;
+        try {
+            limit = query.containsKey("limit") ? Integer.parseInt(query.get("limit")) : DEFAULT_LIMIT;
+        }
+        catch (NumberFormatException e) {
+            limit = -1;
+        }
+        if (pattern.isEmpty() || limit < 1 || limit > MAX_LIMIT) {
+            t.sendResponseHeaders(400, -1);
+            t.getResponseBody().close();
+            return;
+        }
+        String requestPath = t.getRequestURI().getPath();
+        List<String> dir = new ArrayList<>();
+        for (String name : requestPath.split("/")) {
+            if (!name.isEmpty() && !name.equals(".")) {
+                dir.add(name);
+            }
+        }
+        List<Match> matches = search(dir, pattern, limit);
+        if (matches == null) {
+            t.getResponseHeaders().set("Retry-After", "5");
+            t.sendResponseHeaders(503, -1);
+            t.getResponseBody().close();
+            return;
+        }
+        boolean truncated = matches.size() > limit;
+        if (truncated) {
+            matches.remove(limit);
+        }
+        t.getResponseHeaders().set("Content-Type", ndjson ? "application/x-ndjson; charset=utf-8" : "application/json; charset=utf-8");
+        t.sendResponseHeaders(200, 0);
+        try (OutputStream out = new BufferedOutputStream(t.getResponseBody(), 64 * 1024)) {
+            if (!ndjson) {
+                out.write(("{\"path\":" + HttpUtils.toJsonString(requestPath) + ",\"search\":" + HttpUtils.toJsonString(pattern) +
+                        ",\"entries\":[").getBytes(StandardCharsets.UTF_8));
+            }
+            boolean first = true;
+            for (Match match : matches) {
+                String json = "{\"path\":" + HttpUtils.toJsonString("/" + match.getPath() + (match.isDirectory() ? "/" : "")) +
+                        ",\"type\":\"" + (match.isDirectory() ? "dir" : "file") + "\"}";
+                out.write(((ndjson ? "" : first ? "" : ",") + json + (ndjson ? "\n" : "")).getBytes(StandardCharsets.UTF_8));
+                first = false;
+            }
+            if (!ndjson) {
+                out.write(("],\"truncated\":" + truncated + "}\n").getBytes(StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    /**
+     * matches below dir (path components relative to the root) in breadth first order, at most limit + 1 of
+     * them so the caller sees truncation, a truncated answer is not necessarily the first ones in that order.
+     * Null while the index is being built.
+     */
+    public List<Match> search(List<String> dir, String pattern, int limit)
+    {
+        searches.increment();
+        lock.readLock().lock();
+        try {
+            Tree current = tree;
+            if (current == null) {
+                return null;
+            }
+            return current.search(dir, pattern, limit);
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long getSearchCount()
+    {
+        return searches.sum();
+    }
+
+    public long getEventCount()
+    {
+        return events.sum();
+    }
+
+    public long getUnwatchedCount()
+    {
+        return unwatched.get();
+    }
+
+    public int getSize()
+    {
+        Tree current = tree;
+        return current == null ? 0 : current.count - current.removedCount;
+    }
+
+    private void run()
+    {
+        try {
+            long start = System.nanoTime();
+            Tree loaded = loadSnapshot();
+            if (loaded != null) {
+                tree = loaded;
+                validate(loaded);
+                System.out.printf("search index loaded %s names from %s in %sms%n", getSize(), snapshotFile,
+                        (System.nanoTime() - start) / 1_000_000);
+            }
+            else {
+                WalkedDir walked = walkPool.invoke(new WalkTask(root, "", true));
+                Tree built = Tree.build(walked);
+                built.index();
+                tree = built;
+                System.out.printf("search index built %s names in %sms%n", getSize(), (System.nanoTime() - start) / 1_000_000);
+                save(built);
+            }
+            if (unwatched.get() > 0) {
+                System.out.println("search index cannot watch " + unwatched.get() + " directories, raise fs.inotify.max_user_watches");
+            }
+            watchLoop();
+        }
+        catch (RuntimeException e) {
+            System.out.println("search index failed: " + e);
+            e.printStackTrace();
+        }
+    }
+
+    private void watchLoop()
+    {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            }
+            catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            Path dir = (Path) key.watchable();
+            List<WatchEvent<?>> pending = key.pollEvents();
+            key.reset();
+            int id = tree.resolve(root.relativize(dir));
+            if (id >= 0) {
+                apply(id, dir, pending);
+            }
+            compactIfNeeded();
+        }
+    }
+
+    /**
+     * stats and walks run without the lock, each change to the tree takes the write lock on its own
+     */
+    private void apply(int id, Path dir, List<WatchEvent<?>> pending)
+    {
+        for (WatchEvent<?> event : pending) {
+            events.increment();
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                resync(id, dir);
+                return;
+            }
+            String name = event.context().toString();
+            int child = tree.child(id, name);
+            if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                if (child >= 0) {
+                    remove(child);
+                }
+                continue;
+            }
+            Path path = dir.resolve(name);
+            BasicFileAttributes attributes = stat(path);
+            if (attributes == null || (child >= 0 && tree.dirs.get(child) == attributes.isDirectory())) {
+                continue;
+            }
+            if (child >= 0) {
+                remove(child);
+            }
+            insert(id, path, name, attributes);
+        }
+    }
+
+    /**
+     * list dir again and apply the difference to the index
+     */
+    private void resync(int id, Path dir)
+    {
+        BasicFileAttributes dirAttributes = stat(dir);
+        if (dirAttributes == null || !dirAttributes.isDirectory()) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            tree.mtime[id] = dirAttributes.lastModifiedTime().toMillis();
+            dirty = true;
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+        Map<String, Integer> indexed = new HashMap<>();
+        for (int child : tree.children(id)) {
+            indexed.put(tree.name(child), child);
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                Integer child = indexed.remove(name);
+                BasicFileAttributes attributes = stat(path);
+                if (attributes == null || stateDirectory.isRoot(path.toFile()) ||
+                        (child != null && tree.dirs.get(child) == attributes.isDirectory())) {
+                    continue;
+                }
+                if (child != null) {
+                    remove(child);
+                }
+                insert(id, path, name, attributes);
+            }
+        }
+        catch (IOException e) {
+            return;
+        }
+        for (int gone : indexed.values()) {
+            remove(gone);
+        }
+    }
+
+    private void remove(int id)
+    {
+        lock.writeLock().lock();
+        try {
+            tree.remove(id);
+            dirty = true;
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void insert(int parent, Path path, String name, BasicFileAttributes attributes)
+    {
+        WalkedDir walked;
+        if (!attributes.isDirectory()) {
+            walked = null;
+        }
+        else if (stateDirectory.isRoot(path.toFile())) {
+            return;
+        }
+        else {
+            // the walk of a new subtree can take long, searches go on meanwhile, only the splice is locked
+            walked = walkPool.invoke(new WalkTask(path, name, false));
+        }
+        lock.writeLock().lock();
+        try {
+            if (walked == null) {
+                tree.add(parent, name, false, 0);
+            }
+            else {
+                insert(parent, walked);
+            }
+            dirty = true;
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void insert(int parent, WalkedDir walked)
+    {
+        int id = tree.add(parent, walked.name, true, walked.mtime);
+        for (String file : walked.files) {
+            tree.add(id, file, false, 0);
+        }
+        for (WalkedDir dir : walked.dirs) {
+            insert(id, dir);
+        }
+    }
+
+    private void compactIfNeeded()
+    {
+        Tree current = tree;
+        int threshold = Math.max(MIN_COMPACTION, current.baseCount / 4);
+        if (current.addedCount < threshold && current.removedCount < threshold) {
+            return;
+        }
+        // only this thread changes the tree, searches keep reading the current one meanwhile
+        Tree compacted = current.compact();
+        compacted.index();
+        lock.writeLock().lock();
+        try {
+            tree = compacted;
+            dirty = false;
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+        save(compacted);
+    }
+
+    private void saveIfDirty()
+    {
+        lock.readLock().lock();
+        try {
+            if (tree != null && dirty) {
+                save(tree.compact());
+            }
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static BasicFileAttributes stat(Path path)
+    {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        }
+        catch (IOException e) {
+            return null;
+        }
+    }
+
+    private void watch(Path dir)
+    {
+        try {
+            dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE);
+        }
+        catch (IOException e) {
+            unwatched.incrementAndGet();
+        }
+    }
+
+    /**
+     * after loading a snapshot: watch every directory and list again the ones changed since it was written
+     */
+    private void validate(Tree loaded)
+    {
+        long changedBefore = loaded.savedAt - MTIME_GRANULARITY_MILLIS;
+        Queue<Integer> changed = new ConcurrentLinkedQueue<>();
+        try {
+            walkPool.submit(() -> IntStream.range(0, loaded.count).parallel().filter(loaded.dirs::get).forEach(id -> {
+                Path dir = root.resolve(loaded.relativePath(id));
+                watch(dir);
+                BasicFileAttributes attributes = stat(dir);
+                if (attributes == null || attributes.lastModifiedTime().toMillis() != loaded.mtime[id] ||
+                        attributes.lastModifiedTime().toMillis() >= changedBefore) {
+                    changed.add(id);
+                }
+            })).get();
+        }
+        catch (InterruptedException | ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+        for (int id : changed) {
+            if (tree.alive(id)) {
+                resync(id, root.resolve(tree.relativePath(id)));
+            }
+        }
+        compactIfNeeded();
+    }
+
+    private Tree loadSnapshot()
+    {
+        if (!snapshotFile.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new InflaterInputStream(Files.newInputStream(snapshotFile.toPath())), 256 * 1024))) {
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION || !in.readUTF().equals(root.toString())) {
+                return null;
+            }
+            Tree loaded = Tree.read(in);
+            loaded.index();
+            return loaded;
+        }
+        catch (IOException | RuntimeException e) {
+            System.out.println("search index snapshot " + snapshotFile + " is unusable, rebuilding: " + e);
+            return null;
+        }
+    }
+
+    private void save(Tree compacted)
+    {
+        if (!StateDirectory.mkdirs(snapshotFile.getParentFile())) {
+            System.out.println("write search index snapshot " + snapshotFile + " failed, its directory can't be created");
+            return;
+        }
+        File temp = new File(snapshotFile.getPath() + ".writing");
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new DeflaterOutputStream(Files.newOutputStream(temp.toPath()), deflater, 64 * 1024), 256 * 1024))) {
+                out.writeInt(SNAPSHOT_MAGIC);
+                out.writeInt(SNAPSHOT_VERSION);
+                out.writeUTF(root.toString());
+                compacted.write(out);
+            }
+            Files.move(temp.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e) {
+            System.out.println("write search index snapshot " + snapshotFile + " failed: " + e);
+        }
+        finally {
+            deflater.end();
+        }
+    }
+
+    private static class WalkedDir
+    {
+        private final String name;
+        private final long mtime;
+        private final List<String> files = new ArrayList<>();
+        private final List<WalkedDir> dirs = new ArrayList<>();
+
+        private WalkedDir(String name, long mtime)
+        {
+            this.name = name;
+            this.mtime = mtime;
+        }
+    }
+
+    /**
+     * lists one directory and forks a task per sub directory, the directory is watched before it is listed
+     */
+    @SuppressWarnings("serial")
+    private class WalkTask
+            extends RecursiveTask<WalkedDir>
+    {
+        private final Path dir;
+        private final String name;
+        private final boolean root;
+
+        private WalkTask(Path dir, String name, boolean root)
+        {
+            this.dir = dir;
+            this.name = name;
+            this.root = root;
+        }
+
+        @Override
+        protected WalkedDir compute()
+        {
+            watch(dir);
+            BasicFileAttributes dirAttributes = stat(dir);
+            WalkedDir walked = new WalkedDir(root ? "" : name, dirAttributes == null ? 0 : dirAttributes.lastModifiedTime().toMillis());
+            List<WalkTask> tasks = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                for (Path child : stream) {
+                    BasicFileAttributes attributes = stat(child);
+                    if (attributes == null) {
+                        continue;
+                    }
+                    String childName = child.getFileName().toString();
+                    if (!attributes.isDirectory()) {
+                        walked.files.add(childName);
+                    }
+                    else if (!stateDirectory.isRoot(child.toFile())) {
+                        WalkTask task = new WalkTask(child, childName, false);
+                        task.fork();
+                        tasks.add(task);
+                    }
+                }
+            }
+            catch (IOException e) {
+                // unreadable directory, indexed without children
+            }
+            for (WalkTask task : tasks) {
+                walked.dirs.add(task.join());
+            }
+            return walked;
+        }
+    }
+
+    /**
+     * Node ids below baseCount are breadth first with contiguous sorted children and covered by the suffix array,
+     * ids from baseCount on were added by events.
+     */
+    private static class Tree
+    {
+        private int count;
+        private int[] parent;
+        private int[] nameOffset;
+        private int[] nameLength;
+        private long[] mtime;
+        private int[] firstChild;
+        private int[] childCount;
+        private final BitSet dirs = new BitSet();
+        private final BitSet removed = new BitSet();
+        // names separated by '\0', folded is the lower case copy the suffix array sorts
+        private char[] names;
+        private char[] folded;
+        private int textLength;
+
+        private int baseCount;
+        private int baseTextLength;
+        private int[] suffixes = new int[0];
+        private final Map<Integer, Map<String, Integer>> added = new HashMap<>();
+        private int addedCount;
+        private int removedCount;
+        private long savedAt;
+
+        private Tree(int capacity, int textCapacity)
+        {
+            capacity = Math.max(capacity, 16);
+            parent = new int[capacity];
+            nameOffset = new int[capacity];
+            nameLength = new int[capacity];
+            mtime = new long[capacity];
+            firstChild = new int[capacity];
+            childCount = new int[capacity];
+            names = new char[Math.max(textCapacity, 256)];
+            folded = new char[names.length];
+        }
+
+        private int append(int parentId, String name, boolean dir, long modified)
+        {
+            if (count == parent.length) {
+                int capacity = count * 2;
+                parent = Arrays.copyOf(parent, capacity);
+                nameOffset = Arrays.copyOf(nameOffset, capacity);
+                nameLength = Arrays.copyOf(nameLength, capacity);
+                mtime = Arrays.copyOf(mtime, capacity);
+                firstChild = Arrays.copyOf(firstChild, capacity);
+                childCount = Arrays.copyOf(childCount, capacity);
+            }
+            if (textLength + name.length() + 1 > names.length) {
+                int capacity = Math.max(names.length * 2, textLength + name.length() + 1);
+                names = Arrays.copyOf(names, capacity);
+                folded = Arrays.copyOf(folded, capacity);
+            }
+            int id = count++;
+            parent[id] = parentId;
+            nameOffset[id] = textLength;
+            nameLength[id] = name.length();
+            mtime[id] = modified;
+            dirs.set(id, dir);
+            for (int i = 0; i < name.length(); i++) {
+                char c = name.charAt(i);
+                names[textLength + i] = c;
+                // a nul never occurs in file names, it terminates every suffix
+                folded[textLength + i] = Character.toLowerCase(c);
+            }
+            textLength += name.length();
+            names[textLength] = 0;
+            folded[textLength] = 0;
+            textLength++;
+            return id;
+        }
+
+        private int add(int parentId, String name, boolean dir, long modified)
+        {
+            int id = append(parentId, name, dir, modified);
+            added.computeIfAbsent(parentId, key -> new HashMap<>()).put(name, id);
+            addedCount++;
+            return id;
+        }
+
+        /**
+         * removes id and everything below it, the events of a deleted directory tree are not all delivered
+         */
+        private void remove(int id)
+        {
+            if (removed.get(id)) {
+                return;
+            }
+            if (dirs.get(id)) {
+                for (int child : children(id)) {
+                    remove(child);
+                }
+                added.remove(id);
+            }
+            removed.set(id);
+            removedCount++;
+            if (id >= baseCount) {
+                Map<String, Integer> siblings = added.get(parent[id]);
+                if (siblings != null) {
+                    siblings.remove(name(id), id);
+                }
+            }
+        }
+
+        private String name(int id)
+        {
+            return new String(names, nameOffset[id], nameLength[id]);
+        }
+
+        /**
+         * live child of dir with that name, or -1
+         */
+        private int child(int dir, String name)
+        {
+            Map<String, Integer> siblings = added.get(dir);
+            Integer child = siblings == null ? null : siblings.get(name);
+            if (child != null) {
+                return child;
+            }
+            if (dir >= baseCount) {
+                return -1;
+            }
+            int low = firstChild[dir];
+            int high = low + childCount[dir] - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int compare = compareName(mid, name);
+                if (compare < 0) {
+                    low = mid + 1;
+                }
+                else if (compare > 0) {
+                    high = mid - 1;
+                }
+                else {
+                    return removed.get(mid) ? -1 : mid;
+                }
+            }
+            return -1;
+        }
+
+        private int compareName(int id, String name)
+        {
+            int offset = nameOffset[id];
+            int length = Math.min(nameLength[id], name.length());
+            for (int i = 0; i < length; i++) {
+                char c = names[offset + i];
+                if (c != name.charAt(i)) {
+                    return c - name.charAt(i);
+                }
+            }
+            return nameLength[id] - name.length();
+        }
+
+        private List<Integer> children(int dir)
+        {
+            List<Integer> children = new ArrayList<>();
+            if (dir < baseCount) {
+                for (int id = firstChild[dir]; id < firstChild[dir] + childCount[dir]; id++) {
+                    if (!removed.get(id)) {
+                        children.add(id);
+                    }
+                }
+            }
+            Map<String, Integer> siblings = added.get(dir);
+            if (siblings != null) {
+                children.addAll(siblings.values());
+            }
+            return children;
+        }
+
+        private boolean alive(int id)
+        {
+            for (; id > 0; id = parent[id]) {
+                if (removed.get(id)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private int resolve(Path relative)
+        {
+            int id = 0;
+            for (Path part : relative) {
+                String name = part.toString();
+                if (name.isEmpty()) {
+                    continue;
+                }
+                id = child(id, name);
+                if (id < 0) {
+                    return -1;
+                }
+            }
+            return id;
+        }
+
+        private String relativePath(int id)
+        {
+            List<String> parts = new ArrayList<>();
+            for (; id > 0; id = parent[id]) {
+                parts.add(name(id));
+            }
+            Collections.reverse(parts);
+            return String.join("/", parts);
+        }
+
+        private List<Match> search(List<String> dir, String pattern, int limit)
+        {
+            int scope = 0;
+            for (String name : dir) {
+                scope = child(scope, name);
+                if (scope < 0) {
+                    return Collections.emptyList();
+                }
+            }
+            boolean glob = pattern.indexOf('*') != -1 || pattern.indexOf('?') != -1;
+            Pattern regex = glob ? globPattern(pattern) : null;
+            String literal = glob ? longestLiteral(pattern) : pattern;
+            char[] needle = new char[literal.length()];
+            for (int i = 0; i < needle.length; i++) {
+                needle[i] = Character.toLowerCase(literal.charAt(i));
+            }
+
+            // walked lazily under the read lock, stops at limit + 1 matches in scope instead of collecting the
+            // whole suffix array range first. A name holding the literal twice shows up twice in the range.
+            List<Integer> found = new ArrayList<>();
+            Set<Integer> seen = new HashSet<>();
+            if (needle.length == 0) {
+                for (int id = 1; id < count && found.size() <= limit; id++) {
+                    if (matches(id, scope, regex)) {
+                        found.add(id);
+                    }
+                }
+            }
+            else {
+                for (int i = lowerBound(needle), end = upperBound(needle); i < end && found.size() <= limit; i++) {
+                    int id = nodeAt(suffixes[i]);
+                    if (matches(id, scope, regex) && seen.add(id)) {
+                        found.add(id);
+                    }
+                }
+                for (int id = baseCount; id < count && found.size() <= limit; id++) {
+                    if (contains(id, needle) && matches(id, scope, regex)) {
+                        found.add(id);
+                    }
+                }
+            }
+            Collections.sort(found);
+            List<Match> matches = new ArrayList<>(found.size());
+            for (int id : found) {
+                matches.add(new Match(relativePath(id), dirs.get(id)));
+            }
+            return matches;
+        }
+
+        private boolean matches(int id, int scope, Pattern regex)
+        {
+            return id != scope && (regex == null || regex.matcher(name(id)).matches()) && within(id, scope);
+        }
+
+        /**
+         * id and all its ancestors are live and one of them is scope
+         */
+        private boolean within(int id, int scope)
+        {
+            boolean inScope = scope == 0;
+            for (; id > 0; id = parent[id]) {
+                if (removed.get(id)) {
+                    return false;
+                }
+                inScope |= parent[id] == scope;
+            }
+            return inScope;
+        }
+
+        private boolean contains(int id, char[] needle)
+        {
+            int offset = nameOffset[id];
+            int last = offset + nameLength[id] - needle.length;
+            for (int start = offset; start <= last; start++) {
+                int i = 0;
+                while (i < needle.length && folded[start + i] == needle[i]) {
+                    i++;
+                }
+                if (i == needle.length) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static Pattern globPattern(String glob)
+        {
+            StringBuilder regex = new StringBuilder();
+            StringBuilder literal = new StringBuilder();
+            for (char c : glob.toCharArray()) {
+                if (c == '*' || c == '?') {
+                    if (literal.length() > 0) {
+                        regex.append(Pattern.quote(literal.toString()));
+                        literal.setLength(0);
+                    }
+                    regex.append(c == '*' ? ".*" : ".");
+                }
+                else {
+                    literal.append(c);
+                }
+            }
+            if (literal.length() > 0) {
+                regex.append(Pattern.quote(literal.toString()));
+            }
+            return Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE | Pattern.DOTALL);
+        }
+
+        private static String longestLiteral(String glob)
+        {
+            String longest = "";
+            for (String part : glob.split("[*?]")) {
+                if (part.length() > longest.length()) {
+                    longest = part;
+                }
+            }
+            return longest;
+        }
+
+        /**
+         * compares the suffix at position with needle, 0 when the suffix starts with needle
+         */
+        private int comparePrefix(int position, char[] needle)
+        {
+            for (int i = 0; i < needle.length; i++) {
+                char c = folded[position + i];
+                if (c != needle[i]) {
+                    return c - needle[i];
+                }
+            }
+            return 0;
+        }
+
+        private int lowerBound(char[] needle)
+        {
+            int low = 0;
+            int high = suffixes.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (comparePrefix(suffixes[mid], needle) < 0) {
+                    low = mid + 1;
+                }
+                else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        private int upperBound(char[] needle)
+        {
+            int low = 0;
+            int high = suffixes.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (comparePrefix(suffixes[mid], needle) <= 0) {
+                    low = mid + 1;
+                }
+                else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * the base node whose name contains the text position
+         */
+        private int nodeAt(int position)
+        {
+            int low = 0;
+            int high = baseCount - 1;
+            while (low < high) {
+                int mid = (low + high + 1) >>> 1;
+                if (nameOffset[mid] <= position) {
+                    low = mid;
+                }
+                else {
+                    high = mid - 1;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * make every node part of the base and sort the suffixes of all names. The first two chars and the
+         * position are packed into one long for a parallel primitive sort, suffixes sharing both are sorted by the
+         * next two the same way, in parallel per group.
+         */
+        private void index()
+        {
+            baseCount = count;
+            baseTextLength = textLength;
+            int n = 0;
+            for (int i = 0; i < baseTextLength; i++) {
+                if (folded[i] != 0) {
+                    n++;
+                }
+            }
+            long[] keys = new long[n];
+            for (int i = 0, k = 0; i < baseTextLength; i++) {
+                if (folded[i] != 0) {
+                    keys[k++] = ((long) folded[i] << 47) | ((long) folded[i + 1] << 31) | i;
+                }
+            }
+            Arrays.parallelSort(keys);
+            int[] sorted = new int[n];
+            List<int[]> groups = new ArrayList<>();
+            for (int start = 0; start < n; ) {
+                long prefix = keys[start] >>> 31;
+                int end = start + 1;
+                while (end < n && keys[end] >>> 31 == prefix) {
+                    end++;
+                }
+                if (end - start > 1 && (prefix & 0xFFFF) != 0) {
+                    groups.add(new int[] {start, end});
+                }
+                start = end;
+            }
+            for (int i = 0; i < n; i++) {
+                sorted[i] = (int) (keys[i] & 0x7FFFFFFF);
+            }
+            groups.parallelStream().forEach(group -> sortGroup(sorted, group[0], group[1], 2));
+            suffixes = sorted;
+        }
+
+        /**
+         * sorts suffixes sharing their first depth chars by the next two, then each run sharing those as well
+         */
+        private void sortGroup(int[] sorted, int from, int to, int depth)
+        {
+            if (to - from <= 16) {
+                insertionSort(sorted, from, to, depth);
+                return;
+            }
+            long[] keys = new long[to - from];
+            for (int i = from; i < to; i++) {
+                int position = sorted[i] + depth;
+                long first = folded[position];
+                long second = first == 0 ? 0 : folded[position + 1];
+                keys[i - from] = (first << 47) | (second << 31) | sorted[i];
+            }
+            Arrays.sort(keys);
+            for (int i = from; i < to; i++) {
+                sorted[i] = (int) (keys[i - from] & 0x7FFFFFFF);
+            }
+            for (int start = 0; start < keys.length; ) {
+                long prefix = keys[start] >>> 31;
+                int end = start + 1;
+                while (end < keys.length && keys[end] >>> 31 == prefix) {
+                    end++;
+                }
+                if (end - start > 1 && (prefix & 0xFFFF) != 0) {
+                    sortGroup(sorted, from + start, from + end, depth + 2);
+                }
+                start = end;
+            }
+        }
+
+        private void insertionSort(int[] sorted, int from, int to, int depth)
+        {
+            for (int i = from + 1; i < to; i++) {
+                int suffix = sorted[i];
+                int j = i - 1;
+                while (j >= from && compareSuffix(sorted[j] + depth, suffix + depth) > 0) {
+                    sorted[j + 1] = sorted[j];
+                    j--;
+                }
+                sorted[j + 1] = suffix;
+            }
+        }
+
+        private int compareSuffix(int a, int b)
+        {
+            for (int i = 0; ; i++) {
+                char x = folded[a + i];
+                char y = folded[b + i];
+                if (x != y || x == 0) {
+                    return x - y;
+                }
+            }
+        }
+
+        private static Tree build(WalkedDir root)
+        {
+            Tree built = new Tree(1024, 16 * 1024);
+            built.append(-1, "", true, root.mtime);
+            Queue<WalkedDir> queue = new ArrayDeque<>();
+            queue.add(root);
+            for (int id = 0; id < built.count; id++) {
+                if (!built.dirs.get(id)) {
+                    continue;
+                }
+                WalkedDir dir = queue.remove();
+                List<Object> children = new ArrayList<>(dir.files);
+                children.addAll(dir.dirs);
+                children.sort((a, b) -> childName(a).compareTo(childName(b)));
+                built.firstChild[id] = built.count;
+                built.childCount[id] = children.size();
+                for (Object child : children) {
+                    if (child instanceof WalkedDir) {
+                        built.append(id, ((WalkedDir) child).name, true, ((WalkedDir) child).mtime);
+                        queue.add((WalkedDir) child);
+                    }
+                    else {
+                        built.append(id, (String) child, false, 0);
+                    }
+                }
+            }
+            return built;
+        }
+
+        private static String childName(Object child)
+        {
+            return child instanceof WalkedDir ? ((WalkedDir) child).name : (String) child;
+        }
+
+        /**
+         * the live nodes in a new breadth first layout, without suffix array
+         */
+        private Tree compact()
+        {
+            Tree compacted = new Tree(count - removedCount, textLength);
+            compacted.append(-1, "", true, mtime[0]);
+            Queue<Integer> queue = new ArrayDeque<>();
+            queue.add(0);
+            for (int id = 0; id < compacted.count; id++) {
+                if (!compacted.dirs.get(id)) {
+                    continue;
+                }
+                List<Integer> children = children(queue.remove());
+                List<String> childNames = new ArrayList<>(children.size());
+                for (int child : children) {
+                    childNames.add(name(child));
+                }
+                Integer[] order = new Integer[children.size()];
+                for (int i = 0; i < order.length; i++) {
+                    order[i] = i;
+                }
+                Arrays.sort(order, (a, b) -> childNames.get(a).compareTo(childNames.get(b)));
+                compacted.firstChild[id] = compacted.count;
+                compacted.childCount[id] = order.length;
+                for (int index : order) {
+                    int child = children.get(index);
+                    compacted.append(id, childNames.get(index), dirs.get(child), mtime[child]);
+                    if (dirs.get(child)) {
+                        queue.add(child);
+                    }
+                }
+            }
+            return compacted;
+        }
+
+        /**
+         * a compacted tree: every node in breadth first order, directories with their mtime and child count
+         */
+        private void write(DataOutputStream out)
+                throws IOException
+        {
+            out.writeLong(System.currentTimeMillis());
+            out.writeInt(count);
+            for (int id = 0; id < count; id++) {
+                out.writeUTF(name(id));
+                out.writeBoolean(dirs.get(id));
+                if (dirs.get(id)) {
+                    out.writeLong(mtime[id]);
+                    out.writeInt(childCount[id]);
+                }
+            }
+        }
+
+        private static Tree read(DataInputStream in)
+                throws IOException
+        {
+            long savedAt = in.readLong();
+            int count = in.readInt();
+            Tree loaded = new Tree(count, count * 16);
+            loaded.savedAt = savedAt;
+            int nextChild = 1;
+            for (int id = 0; id < count; id++) {
+                String name = in.readUTF();
+                boolean dir = in.readBoolean();
+                loaded.append(-1, name, dir, dir ? in.readLong() : 0);
+                if (dir) {
+                    loaded.firstChild[id] = nextChild;
+                    loaded.childCount[id] = in.readInt();
+                    nextChild += loaded.childCount[id];
+                }
+            }
+            if (nextChild != count) {
+                throw new IOException("corrupt snapshot, " + count + " nodes but " + nextChild + " with parents");
+            }
+            for (int id = 0; id < count; id++) {
+                if (loaded.dirs.get(id)) {
+                    for (int child = loaded.firstChild[id]; child < loaded.firstChild[id] + loaded.childCount[id]; child++) {
+                        loaded.parent[child] = id;
+                    }
+                }
+            }
+            return loaded;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.github.harbby;
+
+import com.sun.net.httpserver.HttpExchange;
+import sun.misc.Unsafe;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Zero copy with FileChannel.transferTo. {@link NioHttpServer} hands out its socket directly.
+ * <p>
+ * For com.sun.net.httpserver the jdk does not expose the socket of an exchange, so the
+ * plain socket channel is located through PlaceholderOutputStream -> FixedLengthOutputStream -> Request$WriteStream.
+ * The layout is probed once at startup and the class of every hop is checked per exchange, chunked or
+ * https responses and unknown jdk layouts are refused instead of read blindly, the next transport takes over.
+ */
+public class SendfileTransport
+        implements FileTransport
+{
+    private static final Unsafe unsafe = IOUtils.getUnsafe();
+
+    private final Class<?> placeholderClass;
+    private final Class<?> fixedLengthClass;
+    private final Class<?> writeStreamClass;
+    private final long wrappedFieldOffset;
+    private final long outFieldOffset;
+    private final long remainingFieldOffset;
+    private final long channelFieldOffset;
+    private final String probeError;
+
+    public SendfileTransport()
+    {
+        Class<?> placeholderClass0 = null;
+        Class<?> fixedLengthClass0 = null;
+        Class<?> writeStreamClass0 = null;
+        long wrappedFieldOffset0 = -1;
+        long outFieldOffset0 = -1;
+        long remainingFieldOffset0 = -1;
+        long channelFieldOffset0 = -1;
+        String probeError0 = null;
+        try {
+            placeholderClass0 = Class.forName("sun.net.httpserver.PlaceholderOutputStream");
+            fixedLengthClass0 = Class.forName("sun.net.httpserver.FixedLengthOutputStream");
+            writeStreamClass0 = Class.forName("sun.net.httpserver.Request$WriteStream");
+            wrappedFieldOffset0 = unsafe.objectFieldOffset(placeholderClass0.getDeclaredField("wrapped"));
+            outFieldOffset0 = unsafe.objectFieldOffset(FilterOutputStream.class.getDeclaredField("out"));
+            remainingFieldOffset0 = unsafe.objectFieldOffset(fixedLengthClass0.getDeclaredField("remaining"));
+            channelFieldOffset0 = unsafe.objectFieldOffset(writeStreamClass0.getDeclaredField("channel"));
+            if (fixedLengthClass0.getDeclaredField("remaining").getType() != long.class ||
+                    writeStreamClass0.getDeclaredField("channel").getType() != SocketChannel.class) {
+                probeError0 = "unexpected field types of sun.net.httpserver";
+            }
+        }
+        catch (ClassNotFoundException | NoSuchFieldException | RuntimeException e) {
+            probeError0 = e.toString();
+        }
+        this.placeholderClass = placeholderClass0;
+        this.fixedLengthClass = fixedLengthClass0;
+        this.writeStreamClass = writeStreamClass0;
+        this.wrappedFieldOffset = wrappedFieldOffset0;
+        this.outFieldOffset = outFieldOffset0;
+        this.remainingFieldOffset = remainingFieldOffset0;
+        this.channelFieldOffset = channelFieldOffset0;
+        this.probeError = probeError0;
+    }
+
+    /**
+     * returns null if the com.sun.net.httpserver layout is supported
+     */
+    public String getProbeError()
+    {
+        return probeError;
+    }
+
+    @Override
+    public TransferMode getMode()
+    {
+        return TransferMode.SENDFILE;
+    }
+
+    @Override
+    public Sink open(HttpExchange exchange, OutputStream body)
+    {
+        if (exchange instanceof NioHttpExchange) {
+            return ((NioHttpExchange) exchange).openSendfile(body);
+        }
+        if (probeError != null || body.getClass() != placeholderClass) {
+            return null;
+        }
+        Object fixedLengthStream = unsafe.getObject(body, wrappedFieldOffset);
+        if (fixedLengthStream == null || fixedLengthStream.getClass() != fixedLengthClass) {
+            return null;
+        }
+        Object writeStream = unsafe.getObject(fixedLengthStream, outFieldOffset);
+        if (writeStream == null || writeStream.getClass() != writeStreamClass) {
+            return null;
+        }
+        Object field = unsafe.getObject(writeStream, channelFieldOffset);
+        if (!(field instanceof SocketChannel) || !((SocketChannel) field).isBlocking()) {
+            return null;
+        }
+        SocketChannel channel = (SocketChannel) field;
+        return (file, position, count) -> {
+            long remaining = unsafe.getLongVolatile(fixedLengthStream, remainingFieldOffset);
+            if (count > remaining) {
+                throw new IOException("too many bytes to write to stream");
+            }
+            long transferred = IOUtils.transferTo(file, position, count, channel);
+            // keep Content-Length accounting of the jdk stream right, so close() keeps the connection alive
+            unsafe.putLongVolatile(fixedLengthStream, remainingFieldOffset, remaining - transferred);
+            return transferred;
+        };
+    }
+}
@@ -2,6 +2,7 @@ package com.github.harbby;
 
 import com.sun.net.httpserver.HttpServer;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.Inet4Address;
@@ -10,7 +11,11 @@ import java.net.InetSocketAddress;
 import java.net.NetworkInterface;
 import java.nio.charset.StandardCharsets;
 import java.util.Enumeration;
-import java.util.concurrent.Executors;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
 
 import static java.util.Objects.requireNonNull;
 
@@ -37,17 +42,225 @@ public class SimpleServer
         String template = loadResourceTemplate();
         String notFoundError = loadFileNotFoundTemplate();
         InetSocketAddress address = new InetSocketAddress(port);
-        HttpServer server = HttpServer.create(address, 0);
-        MailHandler mailHandler = new MailHandler();
-        FileUploadHandler fileUploadHandler = new FileUploadHandler();
+        // -Dsfs.engine=nio selects the selector based engine, default is com.sun.net.httpserver.
+        // the nio engine also speaks cleartext HTTP/2 (prior knowledge or Upgrade: h2c) unless -Dsfs.http2=false
+        HttpServer server = "nio".equals(System.getProperty("sfs.engine")) ?
+                NioHttpServer.create(address, 0) : HttpServer.create(address, 0);
+        // pushed mail board messages, at most sfs.mail.maxSubscribers open streams and long polls
+        MailStream mailStream = new MailStream(Integer.getInteger("sfs.mail.maxSubscribers", 10_000));
+        MailHandler mailHandler = new MailHandler(mailStream);
+        // -Dsfs.etag=content uses a sha-256 of the file body instead of size and mtime
+        EntityTags entityTags = new EntityTags("content".equals(System.getProperty("sfs.etag")));
+        // preference order of file body transports, stream is always the last resort
+        FileTransports fileTransports = FileTransports.create(System.getProperty("sfs.transport", "sendfile,mapped,stream"));
+        System.out.println("file transport modes " + fileTransports.getModes());
 
-        server.createContext("/", new FileDownloadHandler(template, notFoundError, mailHandler, fileUploadHandler));
-        server.setExecutor(Executors.newFixedThreadPool(parallelism)); // creates a default executor
+        // server state (upload sessions, caches) lives in a hidden directory, never listed or served
+        StateDirectory stateDirectory = new StateDirectory(new File(System.getProperty("sfs.state.dir", ".sfs")));
+        // an upload session not written to for sfs.upload.sessionTtlHours is deleted
+        ResumableUploadHandler resumableUploadHandler = new ResumableUploadHandler(stateDirectory,
+                TimeUnit.HOURS.toMillis(Long.getLong("sfs.upload.sessionTtlHours", 24)));
+        // built directory zips are kept up to sfs.archiveCache.maxBytes, 0 disables the cache, so does a state
+        // directory that can't be written
+        ArchiveCache archiveCache = new ArchiveCache(stateDirectory.resolve("archives"),
+                Long.getLong("sfs.archiveCache.maxBytes", 1024L * 1024 * 1024));
+        // rendered listings up to sfs.listingCache.maxBytes, -Dsfs.listingCache.watch=true trades the mtime check
+        // of every hit for WatchService events (local filesystems only)
+        ListingCache listingCache = new ListingCache(Long.getLong("sfs.listingCache.maxBytes", 64L * 1024 * 1024),
+                Boolean.getBoolean("sfs.listingCache.watch"), stateDirectory);
+        // up to date name.zst / name.gz siblings are served as encodings of compressible files, other compressible
+        // files of at least sfs.gzip.minBytes are gzipped while streaming, -1 disables that
+        ContentEncoding contentEncoding = new ContentEncoding(!"false".equals(System.getProperty("sfs.precompressed")),
+                Long.getLong("sfs.gzip.minBytes", 1024), Integer.getInteger("sfs.gzip.level", Deflater.DEFAULT_COMPRESSION));
+
+        // popular files up to sfs.hotCache.maxDirectFile are kept in direct buffers (sfs.hotCache.maxBytes in total),
+        // larger ones up to sfs.hotCache.maxMappedFile are mapped (sfs.hotCache.maxMappedBytes), a hit is revalidated
+        // with one stat once sfs.hotCache.revalidateMillis have passed
+        HotFileCache hotFileCache = new HotFileCache(Long.getLong("sfs.hotCache.maxBytes", 64L * 1024 * 1024),
+                Long.getLong("sfs.hotCache.maxMappedBytes", 512L * 1024 * 1024), Long.getLong("sfs.hotCache.maxDirectFile", 256L * 1024),
+                Long.getLong("sfs.hotCache.maxMappedFile", 64L * 1024 * 1024), Long.getLong("sfs.hotCache.revalidateMillis", 1000), entityTags);
+
+        // bytes per second of all downloads (sfs.bandwidth.global), of one client address (sfs.bandwidth.perIp) and
+        // of file or zip downloads (sfs.bandwidth.file, sfs.bandwidth.zip), 0 is unlimited. A bucket lets
+        // sfs.bandwidth.burstMillis through at once, -Dsfs.bandwidth.fairShare=true splits it evenly between transfers
+        Map<String, Long> routeRates = new HashMap<>();
+        routeRates.put("file", Long.getLong("sfs.bandwidth.file", 0));
+        routeRates.put("zip", Long.getLong("sfs.bandwidth.zip", 0));
+        Bandwidth bandwidth = new Bandwidth(Long.getLong("sfs.bandwidth.global", 0), Long.getLong("sfs.bandwidth.perIp", 0), routeRates,
+                Long.getLong("sfs.bandwidth.burstMillis", 100), Boolean.getBoolean("sfs.bandwidth.fairShare"));
+
+        // ?&checksum=sha256|md5|crc32c|crc32 digests, persisted in the state directory and computed by sfs.checksum.threads,
+        // a request waits sfs.checksum.waitMillis for a digest being computed before it gets 202 and Retry-After
+        DigestIndex digestIndex = new DigestIndex(stateDirectory.resolve("digests"), Integer.getInteger("sfs.checksum.threads", 2),
+                Integer.getInteger("sfs.checksum.maxQueue", 256), Long.getLong("sfs.checksum.waitMillis", 1000));
+
+        // -Dsfs.dedup=true stores every distinct upload once in the state directory, uploads are hard links to it
+        BlobStore blobStore = new BlobStore(Boolean.getBoolean("sfs.dedup") ? stateDirectory.resolve("blobs") : null, digestIndex);
+        FileUploadHandler fileUploadHandler = new FileUploadHandler(blobStore);
+
+        // -Dsfs.search=true indexes every name below the served directory for ?&search=, walked by sfs.search.threads
+        // at the first start, later starts load the snapshot from the state directory and list changed directories only
+        SearchIndex searchIndex = new SearchIndex(Boolean.getBoolean("sfs.search") ? new File(".") : null, stateDirectory,
+                Integer.getInteger("sfs.search.threads", Math.max(4, Runtime.getRuntime().availableProcessors())));
+
+        Metrics metrics = new Metrics();
+        AccessLog accessLog = createAccessLog(stateDirectory, metrics);
+        RequestExecutor executor = createExecutor(parallelism);
+
+        ZipArchiver zipArchiver = createZipArchiver(digestIndex);
+        // a selection POSTed to a directory with ?&archive=zip|tar comes back as one archive of known length, its
+        // manifest stays resumable by GET for sfs.batch.ttlHours, -Dsfs.batch=false disables it
+        BatchArchive batchArchive = new BatchArchive(!"false".equals(System.getProperty("sfs.batch")) ? stateDirectory.resolve("batches") : null,
+                stateDirectory, zipArchiver, fileTransports, accessLog, Integer.getInteger("sfs.batch.maxPaths", 10_000),
+                TimeUnit.HOURS.toMillis(Long.getLong("sfs.batch.ttlHours", 24)));
+
+        FileDownloadHandler fileHandler = new FileDownloadHandler(template, notFoundError, mailHandler, fileUploadHandler, entityTags, fileTransports,
+                stateDirectory, resumableUploadHandler, zipArchiver, archiveCache, listingCache, contentEncoding, hotFileCache, accessLog, bandwidth, digestIndex,
+                searchIndex, batchArchive);
+        server.createContext("/", fileHandler);
+        // prometheus text metrics at sfs.metrics.path, an empty path disables the endpoint
+        String metricsPath = System.getProperty("sfs.metrics.path", "/metrics");
+        if (!metricsPath.isEmpty()) {
+            registerMetrics(metrics, server, executor, fileTransports, archiveCache, listingCache, contentEncoding, hotFileCache, mailStream, accessLog, bandwidth, digestIndex, blobStore, searchIndex,
+                    batchArchive);
+            // a context matches by prefix, every other path below the metrics path is a served file
+            server.createContext(metricsPath, exchange -> (exchange.getRequestURI().getPath().equals(metricsPath) ? metrics : fileHandler).handle(exchange));
+            System.out.println("metrics at " + metricsPath);
+        }
+        server.setExecutor(executor);
         String hostName = address.getHostName();
         System.out.printf("Serving HTTP on %s port %s (http://%s:%s/) ...%n", hostName, port, hostName, port);
         server.start();
     }
 
+    /**
+     * json lines written by a background thread to sfs.accessLog (default access.log in the state directory,
+     * "-" for the console), rotated at sfs.accessLog.maxBytes keeping sfs.accessLog.maxFiles old files.
+     * At most sfs.accessLog.bufferSize entries wait for the writer, beyond that entries are dropped and counted.
+     * The default log goes to the console when the state directory can't be written.
+     */
+    private static AccessLog createAccessLog(StateDirectory stateDirectory, Metrics metrics)
+            throws IOException
+    {
+        String path = System.getProperty("sfs.accessLog");
+        File file = "-".equals(path) ? null : path != null ? new File(path) : new File(stateDirectory.resolve("logs"), "access.log");
+        int bufferSize = Integer.getInteger("sfs.accessLog.bufferSize", 8192);
+        long maxBytes = Long.getLong("sfs.accessLog.maxBytes", 64L * 1024 * 1024);
+        int maxFiles = Integer.getInteger("sfs.accessLog.maxFiles", 5);
+        if (file != null && path == null) {
+            try {
+                AccessLog accessLog = new AccessLog(file, bufferSize, maxBytes, maxFiles, metrics);
+                System.out.println("access log at " + file);
+                return accessLog;
+            }
+            catch (IOException e) {
+                System.out.println("open access log " + file + " failed, logging to the console: " + e.getMessage());
+                file = null;
+            }
+        }
+        System.out.println("access log " + (file == null ? "on the console" : "at " + file));
+        return new AccessLog(file, bufferSize, maxBytes, maxFiles, metrics);
+    }
+
+    private static void registerMetrics(Metrics metrics, HttpServer server, RequestExecutor executor, FileTransports fileTransports, ArchiveCache archiveCache,
+            ListingCache listingCache, ContentEncoding contentEncoding, HotFileCache hotFileCache, MailStream mailStream, AccessLog accessLog, Bandwidth bandwidth,
+            DigestIndex digestIndex, BlobStore blobStore, SearchIndex searchIndex, BatchArchive batchArchive)
+    {
+        metrics.gauge("sfs_executor_active", "exchanges running on the request executor", null, executor::getActiveCount)
+                .gauge("sfs_executor_queue_depth", "exchanges waiting for the request executor", null, executor::getQueueDepth)
+                .counter("sfs_executor_rejected_total", "exchanges rejected by the request executor", null, executor::getRejectedCount)
+                .counter("sfs_executor_completed_total", "exchanges completed by the request executor", null, executor::getCompletedCount);
+        // sendfile is the zero copy transport, mapped and stream are the fallbacks
+        for (TransferMode mode : TransferMode.values()) {
+            metrics.counter("sfs_file_transfers_total", "file bodies sent by transport mode", "mode=\"" + mode + "\"",
+                    () -> fileTransports.getTransferCount(mode));
+        }
+        for (TransferMode mode : TransferMode.values()) {
+            metrics.counter("sfs_file_transfer_bytes_total", "file body bytes sent by transport mode", "mode=\"" + mode + "\"",
+                    () -> fileTransports.getTransferBytes(mode));
+        }
+        metrics.counter("sfs_hot_cache_hits_total", "hot file cache hits", null, hotFileCache::getHits)
+                .counter("sfs_hot_cache_misses_total", "hot file cache misses", null, hotFileCache::getMisses)
+                .counter("sfs_hot_cache_rejections_total", "files not admitted to the hot file cache", null, hotFileCache::getRejections)
+                .counter("sfs_hot_cache_evictions_total", "hot file cache evictions", null, hotFileCache::getEvictions)
+                .counter("sfs_hot_cache_invalidations_total", "hot file cache entries of modified files", null, hotFileCache::getInvalidations)
+                .gauge("sfs_hot_cache_bytes", "bytes held by the hot file cache", "kind=\"direct\"", hotFileCache::getDirectBytes)
+                .gauge("sfs_hot_cache_bytes", "bytes held by the hot file cache", "kind=\"mapped\"", hotFileCache::getMappedBytes)
+                .gauge("sfs_hot_cache_entries", "files in the hot file cache", null, hotFileCache::getSize)
+                .counter("sfs_listing_cache_hits_total", "listing cache hits", null, listingCache::getHits)
+                .counter("sfs_listing_cache_misses_total", "listing cache misses", null, listingCache::getMisses)
+                .counter("sfs_listing_cache_page_hits_total", "gzipped listing pages served from the cache", null, listingCache::getPageHits)
+                .counter("sfs_listing_cache_evictions_total", "listing cache evictions", null, listingCache::getEvictions)
+                .counter("sfs_listing_cache_invalidations_total", "listing cache entries of modified directories", null, listingCache::getInvalidations)
+                .counter("sfs_archive_cache_hits_total", "directory zips served from the archive cache", null, archiveCache::getHits)
+                .counter("sfs_archive_cache_misses_total", "directory zips built", null, archiveCache::getMisses)
+                .counter("sfs_archive_cache_evictions_total", "archive cache evictions", null, archiveCache::getEvictions)
+                .gauge("sfs_archive_cache_bytes", "bytes held by the archive cache", null, archiveCache::getBytes)
+                .counter("sfs_content_encoded_total", "responses sent with a content coding", "source=\"precompressed\"", contentEncoding::getPrecompressedCount)
+                .counter("sfs_content_encoded_total", "responses sent with a content coding", "source=\"gzip\"", contentEncoding::getGzipCount)
+                .gauge("sfs_mail_subscribers", "open mail streams and long polls", null, mailStream::getSubscriberCount)
+                .counter("sfs_mail_dropped_subscribers_total", "mail subscribers dropped as slow or stalled", null, mailStream::getDroppedCount)
+                .counter("sfs_access_log_written_total", "access log entries written", null, accessLog::getWrittenCount)
+                .counter("sfs_access_log_dropped_total", "access log entries dropped on a full buffer", null, accessLog::getDroppedCount)
+                .counter("sfs_bandwidth_paced_bytes_total", "response bytes sent through the bandwidth limits", null, bandwidth::getPacedBytes)
+                .counter("sfs_bandwidth_wait_milliseconds_total", "time transfers waited for the bandwidth limits", null, bandwidth::getWaitMillis)
+                .gauge("sfs_bandwidth_clients", "client addresses with a limited transfer in progress", null, bandwidth::getClientCount)
+                .counter("sfs_digest_index_hits_total", "checksums answered from the digest index", null, digestIndex::getHits)
+                .counter("sfs_digests_computed_total", "file digests computed", null, digestIndex::getComputedCount)
+                .counter("sfs_digest_computed_bytes_total", "file bytes hashed", null, digestIndex::getComputedBytes)
+                .gauge("sfs_digest_queue_depth", "files waiting to be hashed", null, digestIndex::getQueueDepth)
+                .gauge("sfs_digest_index_entries", "digests in the digest index", null, digestIndex::getSize)
+                .counter("sfs_upload_blobs_stored_total", "distinct upload bodies added to the blob store", null, blobStore::getStoredCount)
+                .counter("sfs_uploads_deduplicated_total", "uploads linked to stored content", null, blobStore::getDeduplicatedCount)
+                .counter("sfs_upload_deduplicated_bytes_total", "disk bytes not written thanks to deduplication", null, blobStore::getSavedBytes)
+                .counter("sfs_searches_total", "name searches", null, searchIndex::getSearchCount)
+                .counter("sfs_search_index_events_total", "watch events applied to the search index", null, searchIndex::getEventCount)
+                .gauge("sfs_search_index_entries", "names in the search index", null, searchIndex::getSize)
+                .gauge("sfs_search_unwatched_directories", "directories the search index cannot watch", null, searchIndex::getUnwatchedCount)
+                .counter("sfs_batch_archives_total", "selections posted for a batch archive", null, batchArchive::getArchiveCount)
+                .counter("sfs_batch_resumed_total", "batch archives resumed with a range", null, batchArchive::getResumedCount);
+        if (server instanceof NioHttpServer) {
+            NioHttpServer nioServer = (NioHttpServer) server;
+            metrics.counter("sfs_http2_connections_total", "connections switched to HTTP/2", null, nioServer::getHttp2ConnectionCount)
+                    .gauge("sfs_http2_open_connections", "open HTTP/2 connections", null, nioServer::getOpenHttp2ConnectionCount)
+                    .counter("sfs_http2_streams_total", "HTTP/2 request streams", null, nioServer::getHttp2StreamCount);
+        }
+    }
+
+    /**
+     * directory zip defaults, a request can override method and level with query parameters. Entries compressed
+     * into memory ahead of the writer hold at most sfs.zip.maxTotalBufferedBytes across all requests.
+     */
+    private static ZipArchiver createZipArchiver(DigestIndex digestIndex)
+    {
+        ZipArchiver.Method method = ZipArchiver.Method.valueOf(System.getProperty("sfs.zip.method", "auto").toUpperCase(Locale.ROOT));
+        return new ZipArchiver(Integer.getInteger("sfs.zip.parallelism", Runtime.getRuntime().availableProcessors()),
+                method,
+                Integer.getInteger("sfs.zip.level", Deflater.DEFAULT_COMPRESSION),
+                Integer.getInteger("sfs.zip.maxBufferedEntry", 16 * 1024 * 1024),
+                Long.getLong("sfs.zip.maxLookAheadBytes", 128 * 1024 * 1024),
+                Long.getLong("sfs.zip.maxTotalBufferedBytes", 256 * 1024 * 1024),
+                digestIndex);
+    }
+
+    /**
+     * -Dsfs.executor=virtual runs each exchange on a virtual thread, admission is bounded by
+     * sfs.executor.maxConcurrent running and sfs.executor.maxQueue waiting exchanges.
+     */
+    private static RequestExecutor createExecutor(int parallelism)
+    {
+        RequestExecutor executor;
+        if ("virtual".equals(System.getProperty("sfs.executor"))) {
+            executor = RequestExecutors.virtual(Integer.getInteger("sfs.executor.maxConcurrent", 10_000),
+                    Integer.getInteger("sfs.executor.maxQueue", 10_000), parallelism);
+        }
+        else {
+            executor = RequestExecutors.fixed(parallelism);
+        }
+        System.out.println("request executor mode " + executor.getMode());
+        return executor;
+    }
+
     private static String loadFileNotFoundTemplate()
             throws IOException
     {
@@ -0,0 +1,91 @@
+package com.github.harbby;
+
+import java.io.File;
+import java.io.IOException;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * The hidden directory holding server state (upload sessions, caches, indexes). It is never listed,
+ * archived or served, requests for paths inside it get a 404.
+ */
+public class StateDirectory
+{
+    private final File root;
+    private final String canonicalRoot;
+    // the root as a request path like "/.sfs", null when it is outside the served directory
+    private final String requestPath;
+
+    public StateDirectory(File root)
+            throws IOException
+    {
+        this.root = requireNonNull(root, "root is null").getAbsoluteFile();
+        this.canonicalRoot = this.root.getCanonicalPath();
+        String served = new File(".").getCanonicalPath();
+        this.requestPath = canonicalRoot.startsWith(served + File.separator) ?
+                canonicalRoot.substring(served.length()).replace(File.separatorChar, '/') : null;
+    }
+
+    public File getRoot()
+    {
+        return root;
+    }
+
+    /**
+     * the named sub directory, nothing is created until it is first written, see {@link #mkdirs(File)}
+     */
+    public File resolve(String name)
+    {
+        return new File(root, name);
+    }
+
+    /**
+     * create a sub directory before its first write, false when it can't be, e.g. the served tree is read only
+     */
+    public static boolean mkdirs(File dir)
+    {
+        return dir.isDirectory() || dir.mkdirs() || dir.isDirectory();
+    }
+
+    /**
+     * whether a decoded request path names the root or something below it, without touching the filesystem.
+     * A path reaching the root through a symlink is only caught by {@link #contains(File)}.
+     */
+    public boolean containsRequestPath(String path)
+    {
+        if (requestPath == null) {
+            return false;
+        }
+        StringBuilder normalized = new StringBuilder();
+        for (String segment : path.split("/")) {
+            if (segment.isEmpty() || segment.equals(".")) {
+                continue;
+            }
+            if (segment.equals("..")) {
+                normalized.setLength(Math.max(0, normalized.lastIndexOf("/")));
+                continue;
+            }
+            normalized.append('/').append(segment);
+        }
+        return normalized.toString().equals(requestPath) || normalized.toString().startsWith(requestPath + "/");
+    }
+
+    public boolean contains(File file)
+    {
+        try {
+            String path = file.getCanonicalPath();
+            return path.equals(canonicalRoot) || path.startsWith(canonicalRoot + File.separator);
+        }
+        catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * cheap check for directory listings, only an entry with the root's name can be the root
+     */
+    public boolean isRoot(File file)
+    {
+        return file.getName().equals(root.getName()) && contains(file);
+    }
+}
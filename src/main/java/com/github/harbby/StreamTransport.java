@@ -0,0 +1,21 @@
+package com.github.harbby;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.OutputStream;
+
+public class StreamTransport
+        implements FileTransport
+{
+    @Override
+    public TransferMode getMode()
+    {
+        return TransferMode.STREAM;
+    }
+
+    @Override
+    public Sink open(HttpExchange exchange, OutputStream body)
+    {
+        return (file, position, count) -> IOUtils.transferTo(file, position, count, body);
+    }
+}
@@ -0,0 +1,165 @@
+package com.github.harbby;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A streaming ustar writer. Headers are 512 byte blocks between the file bodies, a body goes to the socket
+ * through a {@link FileTransport.Sink} (sendfile when available) and is padded to the block size. Names that
+ * do not fit the ustar name field or are not ascii, and files of 8GB and more, get a pax extended header.
+ */
+public class TarWriter
+{
+    private static final int BLOCK = 512;
+    private static final long MAX_USTAR_SIZE = 077777777777L;
+
+    private final OutputStream out;
+    private final FileTransport.Sink sink;
+    private long offset;
+    private int padding;
+
+    /**
+     * @param sink writes file bodies, it must keep them ordered with writes to out
+     */
+    public TarWriter(OutputStream out, FileTransport.Sink sink)
+    {
+        this.out = out;
+        this.sink = sink;
+    }
+
+    public void putDirectory(String name, long lastModified)
+            throws IOException
+    {
+        writeHeader(name.endsWith("/") ? name : name + "/", '5', 0755, 0, lastModified);
+    }
+
+    /**
+     * write length bytes of the file
+     */
+    public void putFile(String name, long lastModified, FileChannel file, long length)
+            throws IOException
+    {
+        writeHeader(name, '0', 0644, length, lastModified);
+        long transferred = length == 0 ? 0 : sink.transferFrom(file, 0, length);
+        if (transferred != length) {
+            throw new IOException("file " + name + " changed while archiving, expected " + length + " bytes but sent " + transferred);
+        }
+        offset += length;
+        padding = (int) ((BLOCK - length % BLOCK) % BLOCK);
+    }
+
+    /**
+     * write the two zero blocks ending the archive and flush
+     */
+    public void finish()
+            throws IOException
+    {
+        byte[] end = new byte[padding + 2 * BLOCK];
+        out.write(end);
+        offset += end.length;
+        padding = 0;
+        out.flush();
+    }
+
+    /**
+     * bytes written so far
+     */
+    public long getOffset()
+    {
+        return offset;
+    }
+
+    private void writeHeader(String name, char type, int mode, long size, long lastModified)
+            throws IOException
+    {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        boolean longName = nameBytes.length > 100 || nameBytes.length != name.length();
+        boolean largeSize = size > MAX_USTAR_SIZE;
+        byte[] pax = new byte[0];
+        if (longName || largeSize) {
+            StringBuilder records = new StringBuilder();
+            if (longName) {
+                records.append(paxRecord("path", name));
+            }
+            if (largeSize) {
+                records.append(paxRecord("size", String.valueOf(size)));
+            }
+            pax = records.toString().getBytes(StandardCharsets.UTF_8);
+        }
+
+        // pending padding of the previous body, the pax header and the entry header go out in one write
+        int paxBlocks = pax.length == 0 ? 0 : 1 + (pax.length + BLOCK - 1) / BLOCK;
+        byte[] buffer = new byte[padding + (paxBlocks + 1) * BLOCK];
+        int position = padding;
+        if (pax.length > 0) {
+            fillHeader(buffer, position, "././@PaxHeader", 'x', 0644, pax.length, lastModified);
+            System.arraycopy(pax, 0, buffer, position + BLOCK, pax.length);
+            position += paxBlocks * BLOCK;
+        }
+        fillHeader(buffer, position, longName ? asciiName(name) : name, type, mode, largeSize ? 0 : size, lastModified);
+        out.write(buffer);
+        offset += buffer.length;
+        padding = 0;
+    }
+
+    private static void fillHeader(byte[] buffer, int start, String name, char type, int mode, long size, long lastModified)
+    {
+        byte[] nameBytes = name.getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(nameBytes, 0, buffer, start, Math.min(nameBytes.length, 100));
+        putOctal(buffer, start + 100, 8, mode);
+        putOctal(buffer, start + 108, 8, 0);
+        putOctal(buffer, start + 116, 8, 0);
+        putOctal(buffer, start + 124, 12, size);
+        putOctal(buffer, start + 136, 12, Math.max(0, lastModified / 1000));
+        buffer[start + 156] = (byte) type;
+        System.arraycopy(("ustar\0" + "00").getBytes(StandardCharsets.US_ASCII), 0, buffer, start + 257, 8);
+        // the checksum is computed with its own field as spaces
+        Arrays.fill(buffer, start + 148, start + 156, (byte) ' ');
+        long checksum = 0;
+        for (int i = start; i < start + BLOCK; i++) {
+            checksum += buffer[i] & 0xFF;
+        }
+        putOctal(buffer, start + 148, 7, checksum);
+    }
+
+    /**
+     * zero padded octal digits followed by a NUL, filling length bytes
+     */
+    private static void putOctal(byte[] buffer, int start, int length, long value)
+    {
+        buffer[start + length - 1] = 0;
+        for (int i = start + length - 2; i >= start; i--) {
+            buffer[i] = (byte) ('0' + (value & 7));
+            value >>>= 3;
+        }
+    }
+
+    /**
+     * "length key=value\n" where length counts the whole record including its own digits
+     */
+    private static String paxRecord(String key, String value)
+    {
+        int length = key.length() + value.getBytes(StandardCharsets.UTF_8).length + 3;
+        int digits = String.valueOf(length).length();
+        if (String.valueOf(length + digits).length() > digits) {
+            digits++;
+        }
+        return (length + digits) + " " + key + "=" + value + "\n";
+    }
+
+    /**
+     * the fallback name of an entry with a pax path, for readers that ignore pax headers
+     */
+    private static String asciiName(String name)
+    {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < name.length() && builder.length() < 100; i++) {
+            char c = name.charAt(i);
+            builder.append(c < 0x80 ? c : '_');
+        }
+        return builder.toString();
+    }
+}
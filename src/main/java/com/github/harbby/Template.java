@@ -0,0 +1,79 @@
+package com.github.harbby;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A page template compiled once into a list of segments: literal text pre-encoded as utf-8 and
+ * {@code ${name}} placeholders. Rendering writes the segments and the placeholder values straight
+ * to the output, no page sized string is ever built.
+ */
+public class Template
+{
+    private final List<Segment> segments;
+
+    private static class Segment
+    {
+        private final byte[] literal;
+        private final String placeholder;
+
+        private Segment(byte[] literal, String placeholder)
+        {
+            this.literal = literal;
+            this.placeholder = placeholder;
+        }
+    }
+
+    private Template(List<Segment> segments)
+    {
+        this.segments = segments;
+    }
+
+    public static Template compile(String source)
+    {
+        List<Segment> segments = new ArrayList<>();
+        int position = 0;
+        while (true) {
+            int start = source.indexOf("${", position);
+            int end = start == -1 ? -1 : source.indexOf('}', start + 2);
+            if (end == -1) {
+                break;
+            }
+            if (start > position) {
+                segments.add(new Segment(source.substring(position, start).getBytes(StandardCharsets.UTF_8), null));
+            }
+            segments.add(new Segment(null, source.substring(start + 2, end)));
+            position = end + 1;
+        }
+        if (position < source.length()) {
+            segments.add(new Segment(source.substring(position).getBytes(StandardCharsets.UTF_8), null));
+        }
+        return new Template(Collections.unmodifiableList(segments));
+    }
+
+    /**
+     * write the page, a placeholder without value is written as is
+     */
+    public void render(OutputStream out, Map<String, byte[]> values)
+            throws IOException
+    {
+        for (Segment segment : segments) {
+            if (segment.literal != null) {
+                out.write(segment.literal);
+                continue;
+            }
+            byte[] value = values.get(segment.placeholder);
+            if (value != null) {
+                out.write(value);
+            }
+            else {
+                out.write(("${" + segment.placeholder + "}").getBytes(StandardCharsets.UTF_8));
+            }
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package com.github.harbby;
+
+/**
+ * How a file body was written to the client.
+ */
+public enum TransferMode
+{
+    /** FileChannel.transferTo on the socket channel, sendfile(2) on linux */
+    SENDFILE,
+    /** memory mapped file copied in large chunks, used when the socket is not reachable e.g. https */
+    MAPPED,
+    /** positional reads into a small heap buffer */
+    STREAM
+}
@@ -0,0 +1,212 @@
+package com.github.harbby;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Writes an upload into a hidden temp file next to the target through a FileChannel, batching small writes in a
+ * pooled 1 MB direct buffer. Only {@link #commit()} renames it into place atomically, so readers never see a
+ * partial file; closing without commit deletes the temp file. With a {@link BlobStore} the body is hashed one
+ * buffer at a time while it is written and committed into the store.
+ */
+public class UploadSink
+        implements WritableByteChannel
+{
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 16;
+    private static final Queue<ByteBuffer> bufferPool = new ConcurrentLinkedQueue<>();
+
+    private final File target;
+    private final File tempFile;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final MessageDigest digest;
+    private ByteBuffer buffer;
+    private long written;
+    private boolean committed;
+    private boolean closed;
+
+    /**
+     * @param sizeHint expected upper bound of the size, or -1 if unknown
+     */
+    public UploadSink(File target, long sizeHint)
+            throws IOException
+    {
+        this(target, sizeHint, false);
+    }
+
+    /**
+     * @param sha256 hash the body for {@link #commit(BlobStore)}
+     */
+    public UploadSink(File target, long sizeHint, boolean sha256)
+            throws IOException
+    {
+        this.target = target;
+        try {
+            this.digest = sha256 ? MessageDigest.getInstance("SHA-256") : null;
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        File dir = target.getAbsoluteFile().getParentFile();
+        if (sizeHint > 0 && dir.getUsableSpace() < sizeHint) {
+            throw new InsufficientStorageException("upload needs " + sizeHint + " bytes but " + dir + " has " + dir.getUsableSpace());
+        }
+        this.tempFile = File.createTempFile("." + target.getName() + ".", ".uploading", dir);
+        this.file = new RandomAccessFile(tempFile, "rw");
+        this.channel = file.getChannel();
+        ByteBuffer pooled = bufferPool.poll();
+        this.buffer = pooled != null ? pooled : ByteBuffer.allocateDirect(BUFFER_SIZE);
+    }
+
+    @Override
+    public int write(ByteBuffer src)
+            throws IOException
+    {
+        int n = src.remaining();
+        while (src.hasRemaining()) {
+            if (!buffer.hasRemaining()) {
+                flushBuffer();
+            }
+            if (src.remaining() <= buffer.remaining()) {
+                buffer.put(src);
+            }
+            else {
+                ByteBuffer slice = src.duplicate();
+                slice.limit(slice.position() + buffer.remaining());
+                buffer.put(slice);
+                src.position(slice.position());
+            }
+        }
+        return n;
+    }
+
+    private void flushBuffer()
+            throws IOException
+    {
+        buffer.flip();
+        if (digest != null) {
+            digest.update(buffer.duplicate());
+        }
+        while (buffer.hasRemaining()) {
+            written += channel.write(buffer, written);
+        }
+        buffer.clear();
+    }
+
+    public long getWritten()
+    {
+        return written + (buffer == null ? 0 : buffer.position());
+    }
+
+    /**
+     * flush and atomically replace the target
+     */
+    public void commit()
+            throws IOException
+    {
+        finish();
+        replace(tempFile, target);
+        committed = true;
+    }
+
+    /**
+     * commit through the blob store, the body is stored once per distinct content. Returns true when the target
+     * became a link to an existing blob.
+     */
+    public boolean commit(BlobStore blobStore)
+            throws IOException
+    {
+        if (digest == null) {
+            throw new IllegalStateException("upload was not hashed");
+        }
+        finish();
+        StringBuilder sha256 = new StringBuilder(64);
+        for (byte b : digest.digest()) {
+            sha256.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        boolean deduplicated = blobStore.commit(tempFile, written, sha256.toString(), target);
+        committed = true;
+        return deduplicated;
+    }
+
+    private void finish()
+            throws IOException
+    {
+        flushBuffer();
+        closeChannel();
+    }
+
+    /**
+     * atomically replace target by source where the filesystem supports it
+     */
+    static void replace(File source, File target)
+            throws IOException
+    {
+        try {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (AtomicMoveNotSupportedException e) {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private void closeChannel()
+            throws IOException
+    {
+        if (!closed) {
+            closed = true;
+            file.close();
+            if (bufferPool.size() < MAX_POOLED_BUFFERS) {
+                buffer.clear();
+                bufferPool.offer(buffer);
+            }
+            buffer = null;
+        }
+    }
+
+    @Override
+    public boolean isOpen()
+    {
+        return !closed;
+    }
+
+    @Override
+    public void close()
+            throws IOException
+    {
+        if (committed) {
+            return;
+        }
+        try {
+            closeChannel();
+        }
+        finally {
+            if (tempFile.exists() && !tempFile.delete()) {
+                System.out.println("delete failed upload " + tempFile + " failed");
+            }
+        }
+    }
+
+    public static class InsufficientStorageException
+            extends IOException
+    {
+        private static final long serialVersionUID = 1L;
+
+        public InsufficientStorageException(String message)
+        {
+            super(message);
+        }
+    }
+}
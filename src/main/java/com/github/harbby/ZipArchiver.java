@@ -0,0 +1,392 @@
+package com.github.harbby;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Archives a directory tree as zip. Entries are prepared ahead of the writer on a fork-join pool: a stored
+ * entry gets its crc precomputed so its body can be sent with sendfile, a deflated entry up to
+ * {@code maxBufferedEntry} bytes is compressed into memory. The writer consumes them strictly in walk
+ * order, so the output is the same as a sequential run. Look-ahead is bounded by task count and bytes, and the
+ * entries small enough to be compressed into memory share one byte budget across all concurrent archives.
+ * Larger deflated files are compressed by the writer itself when their turn comes. Crcs of stored entries
+ * are kept in the digest index, archiving unchanged files again does not read them twice.
+ */
+public class ZipArchiver
+{
+    /**
+     * AUTO stores files that are already compressed (by extension) or do not shrink, deflates the rest
+     */
+    public enum Method
+    {
+        STORE, DEFLATE, AUTO
+    }
+
+    private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "zip", "gz", "tgz", "bz2", "xz", "zst", "7z", "rar", "jar", "war", "apk",
+            "jpg", "jpeg", "png", "gif", "webp", "mp3", "mp4", "mkv", "avi", "mov", "webm", "flac", "ogg", "pdf"));
+
+    private final ForkJoinPool pool;
+    private final Method defaultMethod;
+    private final int defaultLevel;
+    private final int maxBufferedEntry;
+    private final long maxLookAheadBytes;
+    private final long maxTotalBufferedBytes;
+    private final AtomicLong bufferedBytes = new AtomicLong();
+    private final DigestIndex digestIndex;
+
+    public ZipArchiver(int parallelism, Method defaultMethod, int defaultLevel, int maxBufferedEntry, long maxLookAheadBytes,
+            long maxTotalBufferedBytes, DigestIndex digestIndex)
+    {
+        this.pool = new ForkJoinPool(parallelism);
+        this.defaultMethod = defaultMethod;
+        this.defaultLevel = defaultLevel;
+        this.maxBufferedEntry = maxBufferedEntry;
+        this.maxLookAheadBytes = maxLookAheadBytes;
+        this.maxTotalBufferedBytes = maxTotalBufferedBytes;
+        this.digestIndex = digestIndex;
+    }
+
+    public Method getDefaultMethod()
+    {
+        return defaultMethod;
+    }
+
+    public int getDefaultLevel()
+    {
+        return defaultLevel;
+    }
+
+    /**
+     * a file or directory to archive under the given entry name
+     */
+    public static class Source
+    {
+        private final File file;
+        private final String name;
+        private final boolean directory;
+        private final long length;
+        private final long lastModified;
+
+        public Source(File file, String name)
+        {
+            this.file = file;
+            this.directory = file.isDirectory();
+            this.name = name;
+            this.length = directory ? 0 : file.length();
+            this.lastModified = file.lastModified();
+        }
+
+        /**
+         * from attributes already read, no further stat
+         */
+        public Source(File file, String name, BasicFileAttributes attributes)
+        {
+            this.file = file;
+            this.directory = attributes.isDirectory();
+            this.name = name;
+            this.length = directory ? 0 : attributes.size();
+            this.lastModified = attributes.lastModifiedTime().toMillis();
+        }
+
+        public File getFile()
+        {
+            return file;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        public boolean isDirectory()
+        {
+            return directory;
+        }
+
+        public long getLength()
+        {
+            return length;
+        }
+
+        public long getLastModified()
+        {
+            return lastModified;
+        }
+    }
+
+    /**
+     * the tree under dir in walk order (directories first, then by name), the directory itself is not included
+     */
+    public static List<Source> walk(File dir, String prefix, StateDirectory stateDirectory)
+    {
+        List<Source> sources = new ArrayList<>();
+        walk0(dir, prefix, stateDirectory, sources);
+        return sources;
+    }
+
+    private static void walk0(File dir, String prefix, StateDirectory stateDirectory, List<Source> sources)
+    {
+        // one stat per entry, the sort only compares the captured flag
+        List<Source> children = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir.toPath())) {
+            for (Path child : stream) {
+                File file = child.toFile();
+                if (stateDirectory.isRoot(file)) {
+                    continue;
+                }
+                BasicFileAttributes attributes;
+                try {
+                    attributes = Files.readAttributes(child, BasicFileAttributes.class);
+                }
+                catch (IOException e) {
+                    // removed while walking
+                    continue;
+                }
+                String name = prefix + file.getName();
+                if (attributes.isDirectory()) {
+                    children.add(new Source(file, name + "/", attributes));
+                }
+                else if (attributes.isRegularFile()) {
+                    children.add(new Source(file, name, attributes));
+                }
+            }
+        }
+        catch (IOException e) {
+            return;
+        }
+        children.sort((s1, s2) -> {
+            int cmp = Boolean.compare(s2.directory, s1.directory);
+            return cmp == 0 ? s1.file.getName().compareTo(s2.file.getName()) : cmp;
+        });
+        for (Source child : children) {
+            sources.add(child);
+            if (child.directory) {
+                walk0(child.file, child.name, stateDirectory, sources);
+            }
+        }
+    }
+
+    public void write(List<Source> sources, ZipWriter writer, Method method, int level)
+            throws IOException
+    {
+        Deque<ForkJoinTask<Prepared>> pending = new ArrayDeque<>();
+        int maxPending = pool.getParallelism() * 2;
+        long pendingBytes = 0;
+        long reserved = 0;
+        int next = 0;
+        try {
+            while (next < sources.size() || !pending.isEmpty()) {
+                while (next < sources.size() && pending.size() < maxPending) {
+                    Source source = sources.get(next);
+                    long buffered = buffered(source);
+                    if (pending.isEmpty()) {
+                        // the next entry is always prepared, even over the shared budget, every archive makes progress
+                        bufferedBytes.addAndGet(buffered);
+                    }
+                    else if (pendingBytes >= maxLookAheadBytes || !reserve(buffered)) {
+                        break;
+                    }
+                    next++;
+                    pendingBytes += source.length;
+                    reserved += buffered;
+                    pending.add(pool.submit(() -> prepare(source, method, level)));
+                }
+                Prepared prepared = pending.poll().get();
+                pendingBytes -= prepared.source.length;
+                writeEntry(writer, prepared, level);
+                bufferedBytes.addAndGet(-buffered(prepared.source));
+                reserved -= buffered(prepared.source);
+            }
+            writer.finish();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("archive interrupted", e);
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        }
+        finally {
+            for (ForkJoinTask<Prepared> task : pending) {
+                task.cancel(false);
+            }
+            bufferedBytes.addAndGet(-reserved);
+        }
+    }
+
+    /**
+     * bytes an entry may hold in memory while it waits for the writer
+     */
+    private long buffered(Source source)
+    {
+        return source.directory || source.length > maxBufferedEntry ? 0 : source.length;
+    }
+
+    /**
+     * take bytes from the budget shared by all archives, false when it is used up
+     */
+    private boolean reserve(long bytes)
+    {
+        while (true) {
+            long current = bufferedBytes.get();
+            if (bytes > 0 && current + bytes > maxTotalBufferedBytes) {
+                return false;
+            }
+            if (bufferedBytes.compareAndSet(current, current + bytes)) {
+                return true;
+            }
+        }
+    }
+
+    private void writeEntry(ZipWriter writer, Prepared prepared, int level)
+            throws IOException
+    {
+        Source source = prepared.source;
+        if (source.directory) {
+            writer.putDirectory(source.name, source.lastModified);
+            return;
+        }
+        if (prepared.compressed != null) {
+            writer.putDeflated(source.name, source.lastModified, prepared.crc, source.length, prepared.compressed, prepared.compressedLength);
+            return;
+        }
+        try (FileInputStream in = new FileInputStream(source.file)) {
+            if (prepared.stored) {
+                writer.putStored(source.name, source.lastModified, prepared.crc, in.getChannel(), source.length);
+            }
+            else {
+                writer.putDeflating(source.name, source.lastModified, in.getChannel(), source.length, level);
+            }
+        }
+    }
+
+    private static class Prepared
+    {
+        private final Source source;
+        private final boolean stored;
+        private final long crc;
+        private final byte[] compressed;
+        private final int compressedLength;
+
+        private Prepared(Source source, boolean stored, long crc, byte[] compressed, int compressedLength)
+        {
+            this.source = source;
+            this.stored = stored;
+            this.crc = crc;
+            this.compressed = compressed;
+            this.compressedLength = compressedLength;
+        }
+    }
+
+    private Prepared prepare(Source source, Method method, int level)
+            throws IOException
+    {
+        if (source.directory) {
+            return new Prepared(source, true, 0, null, 0);
+        }
+        boolean store = method == Method.STORE || level == Deflater.NO_COMPRESSION ||
+                (method == Method.AUTO && COMPRESSED_EXTENSIONS.contains(extension(source.name)));
+        if (store) {
+            return new Prepared(source, true, crc(source), null, 0);
+        }
+        if (source.length > maxBufferedEntry) {
+            return new Prepared(source, false, 0, null, 0);
+        }
+        byte[] input = new byte[(int) source.length];
+        try (FileInputStream in = new FileInputStream(source.file)) {
+            readFully(in.getChannel(), input, source);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(input, 0, input.length);
+        Deflater deflater = new Deflater(level, true);
+        try {
+            deflater.setInput(input);
+            deflater.finish();
+            byte[] output = new byte[Math.max(input.length / 2, 64)];
+            int length = 0;
+            while (!deflater.finished()) {
+                if (length == output.length) {
+                    output = Arrays.copyOf(output, output.length * 2);
+                }
+                length += deflater.deflate(output, length, output.length - length);
+                if (method == Method.AUTO && length >= input.length) {
+                    // incompressible, stored is smaller and can be sent with sendfile
+                    return new Prepared(source, true, crc.getValue(), null, 0);
+                }
+            }
+            return new Prepared(source, false, crc.getValue(), output, length);
+        }
+        finally {
+            deflater.end();
+        }
+    }
+
+    private long crc(Source source)
+            throws IOException
+    {
+        String indexed = digestIndex.lookup(source.file, DigestIndex.Algorithm.CRC32, source.length, source.lastModified);
+        if (indexed != null) {
+            return Long.parseLong(indexed, 16);
+        }
+        CRC32 crc = new CRC32();
+        ByteBuffer buffer = ByteBuffer.allocate(256 * 1024);
+        try (FileInputStream in = new FileInputStream(source.file)) {
+            FileChannel channel = in.getChannel();
+            long position = 0;
+            while (position < source.length) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), source.length - position));
+                int n = channel.read(buffer, position);
+                if (n < 0) {
+                    throw new IOException("file " + source.name + " changed while archiving, expected " + source.length + " bytes but read " + position);
+                }
+                crc.update(buffer.array(), 0, n);
+                position += n;
+            }
+        }
+        if (source.file.length() == source.length && source.file.lastModified() == source.lastModified) {
+            digestIndex.record(source.file, DigestIndex.Algorithm.CRC32, source.length, source.lastModified, String.format("%08x", crc.getValue()));
+        }
+        return crc.getValue();
+    }
+
+    private static void readFully(FileChannel channel, byte[] bytes, Source source)
+            throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, buffer.position()) < 0) {
+                throw new IOException("file " + source.name + " changed while archiving, expected " + source.length + " bytes but read " + buffer.position());
+            }
+        }
+    }
+
+    private static String extension(String name)
+    {
+        int index = name.lastIndexOf('.');
+        return index == -1 ? "" : name.substring(index + 1).toLowerCase(Locale.ROOT);
+    }
+}
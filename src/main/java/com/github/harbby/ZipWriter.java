@@ -0,0 +1,319 @@
+package com.github.harbby;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A streaming zip writer with zip64 support. Entries whose crc and sizes are known up front are written with
+ * complete local headers, so a stored body can go to the socket through a {@link FileTransport.Sink}
+ * (sendfile when available). Deflating a file on the fly uses a data descriptor instead.
+ * The output is never seeked, it can be written straight into a response body.
+ */
+public class ZipWriter
+{
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    private static final int ZIP64_MAGIC_COUNT = 0xFFFF;
+    private static final int FLAG_DATA_DESCRIPTOR = 0x08;
+    private static final int FLAG_UTF8 = 0x800;
+    private static final int STORED = 0;
+    private static final int DEFLATED = 8;
+
+    private final OutputStream out;
+    private final FileTransport.Sink sink;
+    private final List<CentralEntry> entries = new ArrayList<>();
+    private final byte[] readBuffer = new byte[256 * 1024];
+    private final byte[] deflateBuffer = new byte[256 * 1024];
+    private long offset;
+
+    private static class CentralEntry
+    {
+        private final byte[] name;
+        private final int flags;
+        private final int method;
+        private final long dosTime;
+        private final long crc;
+        private final long compressedSize;
+        private final long size;
+        private final long offset;
+        private final boolean directory;
+
+        private CentralEntry(byte[] name, int flags, int method, long dosTime, long crc, long compressedSize, long size, long offset, boolean directory)
+        {
+            this.name = name;
+            this.flags = flags;
+            this.method = method;
+            this.dosTime = dosTime;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.offset = offset;
+            this.directory = directory;
+        }
+    }
+
+    /**
+     * @param sink writes stored file bodies, it must keep them ordered with writes to out
+     */
+    public ZipWriter(OutputStream out, FileTransport.Sink sink)
+    {
+        this.out = out;
+        this.sink = sink;
+    }
+
+    public void putDirectory(String name, long lastModified)
+            throws IOException
+    {
+        byte[] nameBytes = (name.endsWith("/") ? name : name + "/").getBytes(StandardCharsets.UTF_8);
+        long dosTime = toDosTime(lastModified);
+        long entryOffset = offset;
+        writeLocalHeader(nameBytes, FLAG_UTF8, STORED, dosTime, 0, 0, 0, false);
+        entries.add(new CentralEntry(nameBytes, FLAG_UTF8, STORED, dosTime, 0, 0, 0, entryOffset, true));
+    }
+
+    /**
+     * store length bytes of the file uncompressed, crc must be the crc32 of exactly these bytes
+     */
+    public void putStored(String name, long lastModified, long crc, FileChannel file, long length)
+            throws IOException
+    {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        long dosTime = toDosTime(lastModified);
+        long entryOffset = offset;
+        writeLocalHeader(nameBytes, FLAG_UTF8, STORED, dosTime, crc, length, length, length >= ZIP64_MAGIC);
+        long transferred = length == 0 ? 0 : sink.transferFrom(file, 0, length);
+        if (transferred != length) {
+            throw new IOException("file " + name + " changed while archiving, expected " + length + " bytes but sent " + transferred);
+        }
+        offset += length;
+        entries.add(new CentralEntry(nameBytes, FLAG_UTF8, STORED, dosTime, crc, length, length, entryOffset, false));
+    }
+
+    /**
+     * an entry deflated ahead of time, the raw deflate stream is in compressed[0, compressedLength)
+     */
+    public void putDeflated(String name, long lastModified, long crc, long size, byte[] compressed, int compressedLength)
+            throws IOException
+    {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        long dosTime = toDosTime(lastModified);
+        long entryOffset = offset;
+        writeLocalHeader(nameBytes, FLAG_UTF8, DEFLATED, dosTime, crc, compressedLength, size, size >= ZIP64_MAGIC);
+        out.write(compressed, 0, compressedLength);
+        offset += compressedLength;
+        entries.add(new CentralEntry(nameBytes, FLAG_UTF8, DEFLATED, dosTime, crc, compressedLength, size, entryOffset, false));
+    }
+
+    /**
+     * deflate length bytes of the file while writing, crc and sizes follow in a data descriptor
+     */
+    public void putDeflating(String name, long lastModified, FileChannel file, long length, int level)
+            throws IOException
+    {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        long dosTime = toDosTime(lastModified);
+        long entryOffset = offset;
+        int flags = FLAG_UTF8 | FLAG_DATA_DESCRIPTOR;
+        // deflate may grow incompressible data a little, reserve zip64 sizes well before the limit. The data
+        // descriptor must use the same size format the local header announced
+        boolean zip64 = length > ZIP64_MAGIC - (ZIP64_MAGIC >>> 6);
+        writeLocalHeader(nameBytes, flags, DEFLATED, dosTime, 0, 0, 0, zip64);
+
+        CRC32 crc = new CRC32();
+        Deflater deflater = new Deflater(level, true);
+        long compressedSize = 0;
+        try {
+            long position = 0;
+            while (position < length) {
+                ByteBuffer buffer = ByteBuffer.wrap(readBuffer, 0, (int) Math.min(readBuffer.length, length - position));
+                int n = file.read(buffer, position);
+                if (n < 0) {
+                    throw new IOException("file " + name + " changed while archiving, expected " + length + " bytes but read " + position);
+                }
+                crc.update(readBuffer, 0, n);
+                deflater.setInput(readBuffer, 0, n);
+                while (!deflater.needsInput()) {
+                    compressedSize += deflate(deflater);
+                }
+                position += n;
+            }
+            deflater.finish();
+            while (!deflater.finished()) {
+                compressedSize += deflate(deflater);
+            }
+        }
+        finally {
+            deflater.end();
+        }
+
+        ByteBuffer descriptor = newBuffer(24);
+        descriptor.putInt(0x08074b50);
+        descriptor.putInt((int) crc.getValue());
+        if (zip64) {
+            descriptor.putLong(compressedSize);
+            descriptor.putLong(length);
+        }
+        else if (compressedSize >= ZIP64_MAGIC) {
+            throw new IOException("file " + name + " deflated to " + compressedSize + " bytes, beyond the reserve of its local header");
+        }
+        else {
+            descriptor.putInt((int) compressedSize);
+            descriptor.putInt((int) length);
+        }
+        write(descriptor);
+        entries.add(new CentralEntry(nameBytes, flags, DEFLATED, dosTime, crc.getValue(), compressedSize, length, entryOffset, false));
+    }
+
+    private int deflate(Deflater deflater)
+            throws IOException
+    {
+        int n = deflater.deflate(deflateBuffer, 0, deflateBuffer.length);
+        if (n > 0) {
+            out.write(deflateBuffer, 0, n);
+            offset += n;
+        }
+        return n;
+    }
+
+    /**
+     * write the central directory, the zip64 end records when needed, and flush
+     */
+    public void finish()
+            throws IOException
+    {
+        long centralOffset = offset;
+        for (CentralEntry entry : entries) {
+            boolean sizeOverflow = entry.size >= ZIP64_MAGIC || entry.compressedSize >= ZIP64_MAGIC;
+            boolean offsetOverflow = entry.offset >= ZIP64_MAGIC;
+            int extraLength = (sizeOverflow ? 16 : 0) + (offsetOverflow ? 8 : 0);
+            ByteBuffer header = newBuffer(46 + entry.name.length + (extraLength > 0 ? 4 + extraLength : 0));
+            header.putInt(0x02014b50);
+            header.putShort((short) (extraLength > 0 ? 45 : 20));
+            header.putShort((short) (extraLength > 0 ? 45 : 20));
+            header.putShort((short) entry.flags);
+            header.putShort((short) entry.method);
+            header.putInt((int) entry.dosTime);
+            header.putInt((int) entry.crc);
+            header.putInt((int) (sizeOverflow ? ZIP64_MAGIC : entry.compressedSize));
+            header.putInt((int) (sizeOverflow ? ZIP64_MAGIC : entry.size));
+            header.putShort((short) entry.name.length);
+            header.putShort((short) (extraLength > 0 ? 4 + extraLength : 0));
+            header.putShort((short) 0);
+            header.putShort((short) 0);
+            header.putShort((short) 0);
+            header.putInt(entry.directory ? 0x10 : 0);
+            header.putInt((int) (offsetOverflow ? ZIP64_MAGIC : entry.offset));
+            header.put(entry.name);
+            if (extraLength > 0) {
+                header.putShort((short) 0x0001);
+                header.putShort((short) extraLength);
+                if (sizeOverflow) {
+                    header.putLong(entry.size);
+                    header.putLong(entry.compressedSize);
+                }
+                if (offsetOverflow) {
+                    header.putLong(entry.offset);
+                }
+            }
+            write(header);
+        }
+        long centralSize = offset - centralOffset;
+        int count = entries.size();
+        if (count >= ZIP64_MAGIC_COUNT || centralOffset >= ZIP64_MAGIC || centralSize >= ZIP64_MAGIC) {
+            long zip64EndOffset = offset;
+            ByteBuffer end64 = newBuffer(56 + 20);
+            end64.putInt(0x06064b50);
+            end64.putLong(44);
+            end64.putShort((short) 45);
+            end64.putShort((short) 45);
+            end64.putInt(0);
+            end64.putInt(0);
+            end64.putLong(count);
+            end64.putLong(count);
+            end64.putLong(centralSize);
+            end64.putLong(centralOffset);
+            // zip64 end of central directory locator
+            end64.putInt(0x07064b50);
+            end64.putInt(0);
+            end64.putLong(zip64EndOffset);
+            end64.putInt(1);
+            write(end64);
+        }
+        ByteBuffer end = newBuffer(22);
+        end.putInt(0x06054b50);
+        end.putShort((short) 0);
+        end.putShort((short) 0);
+        end.putShort((short) Math.min(count, ZIP64_MAGIC_COUNT));
+        end.putShort((short) Math.min(count, ZIP64_MAGIC_COUNT));
+        end.putInt((int) Math.min(centralSize, ZIP64_MAGIC));
+        end.putInt((int) Math.min(centralOffset, ZIP64_MAGIC));
+        end.putShort((short) 0);
+        write(end);
+        out.flush();
+    }
+
+    /**
+     * bytes written so far
+     */
+    public long getOffset()
+    {
+        return offset;
+    }
+
+    private void writeLocalHeader(byte[] name, int flags, int method, long dosTime, long crc, long compressedSize, long size, boolean zip64)
+            throws IOException
+    {
+        ByteBuffer header = newBuffer(30 + name.length + (zip64 ? 20 : 0));
+        header.putInt(0x04034b50);
+        header.putShort((short) (zip64 ? 45 : 20));
+        header.putShort((short) flags);
+        header.putShort((short) method);
+        header.putInt((int) dosTime);
+        header.putInt((int) crc);
+        header.putInt((int) (zip64 ? ZIP64_MAGIC : compressedSize));
+        header.putInt((int) (zip64 ? ZIP64_MAGIC : size));
+        header.putShort((short) name.length);
+        header.putShort((short) (zip64 ? 20 : 0));
+        header.put(name);
+        if (zip64) {
+            header.putShort((short) 0x0001);
+            header.putShort((short) 16);
+            header.putLong(size);
+            header.putLong(compressedSize);
+        }
+        write(header);
+    }
+
+    private void write(ByteBuffer buffer)
+            throws IOException
+    {
+        // one write per header, a chunked response turns every write into a chunk
+        out.write(buffer.array(), 0, buffer.position());
+        offset += buffer.position();
+    }
+
+    private static ByteBuffer newBuffer(int size)
+    {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static long toDosTime(long epochMillis)
+    {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(epochMillis);
+        int year = calendar.get(Calendar.YEAR);
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return (year - 1980) << 25 | (calendar.get(Calendar.MONTH) + 1) << 21 | calendar.get(Calendar.DAY_OF_MONTH) << 16 |
+                calendar.get(Calendar.HOUR_OF_DAY) << 11 | calendar.get(Calendar.MINUTE) << 5 | calendar.get(Calendar.SECOND) >> 1;
+    }
+}